@@ -0,0 +1,86 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.model.RecordPayloads;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Events per second through {@code processRecords}, one event per record ({@code PLAIN}) versus
+ * {@value EVENTS_PER_RECORD} newline-delimited events per gzip or zstd record. Same events, same fakes as
+ * {@link ProcessRecordsBenchmark}: the difference is decompressing and splitting lines, against handling 100 times
+ * fewer records. </p>
+ * <p> Scores are per event ({@link OperationsPerInvocation}), so they compare directly across formats. </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class BatchedPayloadBenchmark {
+    private static final int EVENTS = 10_000;
+    private static final int EVENTS_PER_RECORD = 100;
+    private static final int KCL_BATCH = 1000; // what Main asks the poller for (maxRecords)
+
+    @Param({"PLAIN", "GZIP", "ZSTD"})
+    public RecordPayloads.Format format;
+
+    @Param({"SMALL", "MEDIUM"})
+    public Payloads.Size payload;
+
+    private LogShardRecordProcessor processor;
+    private List<ProcessRecordsInput> inputs;
+    private NoopEventBridgePublisher publisher;
+
+    @Setup
+    public void setup() {
+        AppConfig config = AppConfig.from(Map.<String, String>of()::get);
+        publisher = new NoopEventBridgePublisher(config);
+        processor = new LogShardRecordProcessor(config, List.of(new InMemoryDynamoWriter(config), publisher), new Metrics(), null, null, null, null, null);
+        processor.initialize(InitializationInput.builder().shardId("shardId-000000000000").build());
+
+        ByteBuffer[] events = Payloads.records(payload, EVENTS, 0);
+        ByteBuffer[] data = format == RecordPayloads.Format.PLAIN ? events : Payloads.batched(events, EVENTS_PER_RECORD, format);
+        Instant arrival = Instant.now();
+        inputs = new ArrayList<>();
+        for (int from = 0; from < data.length; from += KCL_BATCH) {
+            List<KinesisClientRecord> records = new ArrayList<>(KCL_BATCH);
+            for (int i = from; i < Math.min(data.length, from + KCL_BATCH); i++) {
+                records.add(KinesisClientRecord.builder()
+                        .sequenceNumber("4959" + String.format("%052d", i))
+                        .partitionKey("pk-" + (i % 64))
+                        .approximateArrivalTimestamp(arrival)
+                        .data(data[i])
+                        .build());
+            }
+            inputs.add(ProcessRecordsInput.builder()
+                    .records(records)
+                    .checkpointer(Checkpointers.noop())
+                    .millisBehindLatest(0L)
+                    .build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void processRecords() {
+        for (ProcessRecordsInput input : inputs) processor.processRecords(input);
+    }
+}
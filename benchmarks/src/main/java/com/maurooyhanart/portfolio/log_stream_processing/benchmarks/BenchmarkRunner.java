@@ -0,0 +1,23 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p> Entry point of {@code benchmarks.jar}. Same command line as JMH's own {@code Main}, except that the GC profiler
+ * is always on, so every run reports the allocation rate ({@code gc.alloc.rate.norm} is bytes per operation). </p>
+ * <p> e.g. {@code java -jar benchmarks/target/benchmarks.jar Decode -p payload=LARGE} </p>
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,25 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * <p> Fake KCL checkpointers. {@link RecordProcessorCheckpointer} has a lot of methods we don't care about, so this is
+ * a proxy that accepts every call and does nothing. </p>
+ */
+public final class Checkpointers {
+    private Checkpointers() { }
+
+    public static RecordProcessorCheckpointer noop() {
+        return (RecordProcessorCheckpointer) Proxy.newProxyInstance(
+                RecordProcessorCheckpointer.class.getClassLoader(),
+                new Class<?>[]{RecordProcessorCheckpointer.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "noop checkpointer";
+                    default -> null;
+                });
+    }
+}
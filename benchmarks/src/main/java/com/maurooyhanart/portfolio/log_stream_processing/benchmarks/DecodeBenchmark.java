@@ -0,0 +1,65 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEventDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> JSON decode of one record, as {@code processRecords} does it. </p>
+ * <ul>
+ *     <li>{@code objectMapper}: the original path, the bytes decoded to a {@code String} and read by the generic
+ *     {@code ObjectMapper} into a new {@link LogEvent},</li>
+ *     <li>{@code streaming}: {@link LogEventDecoder} into a reused event, as the shard processor does now.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private static final int RECORDS = 1024;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public Payloads.Size payload;
+
+    @Param({"0", "20"})
+    public int errorEvery;
+
+    private ByteBuffer[] records;
+    private int next;
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final LogEventDecoder decoder = new LogEventDecoder(true);
+    private final LogEvent scratch = new LogEvent();
+
+    @Setup
+    public void setup() {
+        records = Payloads.records(payload, RECORDS, errorEvery);
+    }
+
+    private ByteBuffer nextRecord() {
+        ByteBuffer r = records[next];
+        next = (next + 1) & (RECORDS - 1);
+        return r;
+    }
+
+    @Benchmark
+    public LogEvent objectMapper() throws IOException {
+        String raw = StandardCharsets.UTF_8.decode(nextRecord().duplicate()).toString();
+        return mapper.readValue(raw, LogEvent.class);
+    }
+
+    @Benchmark
+    public LogEvent streaming() throws IOException {
+        return decoder.decode(nextRecord(), scratch);
+    }
+}
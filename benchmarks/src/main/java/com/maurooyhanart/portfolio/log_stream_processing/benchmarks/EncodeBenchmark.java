@@ -0,0 +1,88 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEventDecoder;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.EncodedItem;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> What happens to an event after it's decoded, up to the DynamoDB request. </p>
+ * <ul>
+ *     <li>{@code jsonSize}: the original {@code enqueue}, which serialized every event just to measure it,</li>
+ *     <li>{@code encode}: {@link DynamoWriter#encode}, the item built (pk bucketing included) and measured once,</li>
+ *     <li>{@code batchRequest}: a full {@code BatchWriteItemRequest} over a 25 items slice, which is what every
+ *     flush builds.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+    private static final int RECORDS = 1024;
+    private static final int BATCH = 25;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public Payloads.Size payload;
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private DynamoWriter writer;
+    private LogEvent[] events;
+    private String[] sequenceNumbers;
+    private List<WriteRequest> slice;
+    private String table;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        AppConfig config = AppConfig.from(Map.<String, String>of()::get);
+        writer = new InMemoryDynamoWriter(config);
+        table = config.dynamoTable();
+
+        LogEventDecoder decoder = new LogEventDecoder(true);
+        ByteBuffer[] records = Payloads.records(payload, RECORDS, 0);
+        events = new LogEvent[RECORDS];
+        sequenceNumbers = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            events[i] = decoder.decode(records[i], new LogEvent());
+            sequenceNumbers[i] = "4959" + String.format("%052d", i);
+        }
+
+        slice = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) slice.add(writer.encode(events[i], sequenceNumbers[i]).request());
+    }
+
+    @Benchmark
+    public int jsonSize() throws IOException {
+        int i = next;
+        next = (next + 1) & (RECORDS - 1);
+        return mapper.writeValueAsBytes(events[i]).length;
+    }
+
+    @Benchmark
+    public EncodedItem encode() {
+        int i = next;
+        next = (next + 1) & (RECORDS - 1);
+        return writer.encode(events[i], sequenceNumbers[i]);
+    }
+
+    @Benchmark
+    public BatchWriteItemRequest batchRequest() {
+        return BatchWriteItemRequest.builder().requestItems(Map.of(table, slice)).build();
+    }
+}
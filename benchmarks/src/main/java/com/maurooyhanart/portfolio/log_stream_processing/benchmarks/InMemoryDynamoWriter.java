@@ -0,0 +1,38 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.PartitionSharding;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.WriteRateController;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> A {@link DynamoWriter} that encodes items for real but never calls DynamoDB: every batch completes right away.
+ * It only counts what it was given (thread safe, shards share it), so that the benchmarks measure the consumer and not the network. </p>
+ * <p> It overrides the table overload, which the other two and the shard and table views all end up in. </p>
+ */
+public class InMemoryDynamoWriter extends DynamoWriter {
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder items = new LongAdder();
+
+    public InMemoryDynamoWriter(AppConfig config) {
+        super(config, null, new WriteRateController(config.ddbMaxBatchesPerSecond(), config.ddbMaxConcurrency()),
+                PartitionSharding.fromConfig(config), new Metrics());
+    }
+
+    @Override
+    public CompletableFuture<Void> putBatchAsync(String table, List<WriteRequest> batch, String shardId) {
+        batches.increment();
+        items.add(batch.size());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public long batches() { return batches.sum(); }
+
+    public long items() { return items.sum(); }
+}
@@ -0,0 +1,298 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.AdaptivePollingSleep;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Histogram;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p> A local stand-in for a Kinesis stream, to compare the retrieval modes offline: producers append records to
+ * in-memory shards, and each shard is read either like KCL polls it or like enhanced fan-out pushes it, into real
+ * shard processors. It reports what the processors' {@code log_end_to_end_seconds} saw (record arrival to sink write)
+ * for each mode. </p>
+ * <ul>
+ *     <li>polling: {@code GetRecords} calls of {@code --max-records} that take {@code --call-ms}, within the shard's
+ *     5 calls/s and 2 MB/s shared by {@code --consumers} polling applications, waiting between calls as
+ *     {@link AdaptivePollingSleep} says (with {@code --idle-ms} and {@code --empty-backoff-ms}),</li>
+ *     <li>fan-out: every record is pushed {@code --push-ms} after it arrives, with 2 MB/s of our own,</li>
+ *     <li>sinks are the same fakes as {@link LoadDriver} ({@code --sinks}, {@code memory} by default, with
+ *     {@code --sink-ms} per call).</li>
+ * </ul>
+ * <p> e.g. {@code java -cp benchmarks/target/benchmarks.jar com.maurooyhanart.portfolio.log_stream_processing.benchmarks.KinesisStandIn --rate 200 --consumers 3} </p>
+ * <p> Options: {@code --seconds} per mode (30), {@code --shards} (4), {@code --rate} records/sec per shard (500),
+ * {@code --payload} SMALL/MEDIUM/LARGE (MEDIUM), {@code --consumers} (2), {@code --max-records} (1000),
+ * {@code --idle-ms} (0), {@code --empty-backoff-ms} (1000), {@code --call-ms} (25), {@code --push-ms} (70),
+ * {@code --sinks} (memory), {@code --sink-ms} (5), {@code --only} polling or fanout. </p>
+ */
+public class KinesisStandIn {
+    private static final int PAYLOADS = 4096;
+    private static final long SHARD_READ_BYTES_PER_SEC = 2L * 1024 * 1024;
+    private static final int SHARD_CALLS_PER_SEC = 5;
+    private static final long MAX_BYTES_PER_CALL = 10L * 1024 * 1024;
+    private static final int MAX_RECORDS_PER_PUSH = 10_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> opts = options(args);
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "30"));
+        int shards = Integer.parseInt(opts.getOrDefault("shards", "4"));
+        int rate = Integer.parseInt(opts.getOrDefault("rate", "500"));
+        Payloads.Size payload = Payloads.Size.valueOf(opts.getOrDefault("payload", "MEDIUM"));
+        String only = opts.get("only");
+
+        Map<String, String> env = new HashMap<>();
+        env.put("SINKS", opts.getOrDefault("sinks", "memory"));
+        env.put("MEMORY_SINK_LATENCY_MS", opts.getOrDefault("sink-ms", "5"));
+        env.put("POLLING_MAX_RECORDS", opts.getOrDefault("max-records", "1000"));
+        env.put("POLLING_IDLE_MS", opts.getOrDefault("idle-ms", "0"));
+        env.put("POLLING_EMPTY_BACKOFF_MS", opts.getOrDefault("empty-backoff-ms", "1000"));
+        Reader.Settings settings = new Reader.Settings(
+                Integer.parseInt(opts.getOrDefault("consumers", "2")),
+                Long.parseLong(opts.getOrDefault("call-ms", "25")),
+                Long.parseLong(opts.getOrDefault("push-ms", "70")));
+
+        ByteBuffer[] payloads = Payloads.records(payload, PAYLOADS, 20);
+        System.out.printf("%d shards, %d records/s per shard, %s payloads, %d polling consumer(s) on the stream%n",
+                shards, rate, payload, settings.consumers());
+        System.out.printf("%-10s %12s %12s %9s %9s %9s %9s %9s%n",
+                "retrieval", "records/s", "calls/s/sh", "empty %", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (String mode : List.of("polling", "fanout")) {
+            if (only != null && !only.equals(mode)) continue;
+            env.put("KCL_RETRIEVAL", mode);
+            run(mode, AppConfig.from(env::get), payloads, shards, rate, seconds, settings);
+        }
+    }
+
+    private static void run(String mode, AppConfig config, ByteBuffer[] payloads, int shards, int rate, int seconds,
+                            Reader.Settings settings) throws InterruptedException {
+        List<LogSink<?>> sinks = LoadDriver.fakeSinks(config);
+        Metrics metrics = new Metrics();
+        List<Reader> readers = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            String shardId = String.format("shardId-%012d", i);
+            ShardStream stream = new ShardStream(payloads, rate);
+            LogShardRecordProcessor processor = new LogShardRecordProcessor(config, sinks, metrics, null, null, null, null, null);
+            processor.initialize(InitializationInput.builder().shardId(shardId).build());
+            readers.add(new Reader(shardId, mode, stream, processor, config, settings));
+        }
+        for (Reader r : readers) {
+            r.stream.producer.start();
+            r.thread.start();
+        }
+
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        for (Reader r : readers) r.stream.running = false;
+        for (Reader r : readers) r.running = false;
+        for (Reader r : readers) {
+            r.stream.producer.join();
+            r.thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // every shard's series of the metric the consumer exports, as one
+        Histogram all = new Metrics().latency("all", "");
+        long records = 0, calls = 0, empty = 0;
+        for (Reader r : readers) {
+            all.add(metrics.latency("log_end_to_end_seconds", "", "shard", r.shardId, "retrieval", mode));
+            records += r.delivered;
+            calls += r.calls;
+            empty += r.emptyCalls;
+        }
+        System.out.printf("%-10s %12.0f %12.2f %9.1f %9.1f %9.1f %9.1f %9.1f%n", mode, records / elapsed,
+                calls / elapsed / readers.size(), calls == 0 ? 0.0 : 100.0 * empty / calls,
+                ms(all.percentile(50)), ms(all.percentile(90)), ms(all.percentile(99)), ms(all.percentile(100)));
+        for (LogSink<?> sink : sinks) sink.close();
+    }
+
+    private static double ms(long nanos) { return nanos / 1e6; }
+
+    private record StoredRecord(String sequenceNumber, ByteBuffer data, Instant arrival) { }
+
+    /** One shard of the stream, and the producer thread that appends to it at a steady rate. */
+    private static final class ShardStream {
+        final Thread producer;
+        volatile boolean running = true;
+
+        private final List<StoredRecord> records = new ArrayList<>(); // guarded by this
+        private final ByteBuffer[] payloads;
+        private final int rate;
+
+        ShardStream(ByteBuffer[] payloads, int rate) {
+            this.payloads = payloads;
+            this.rate = rate;
+            this.producer = new Thread(this::produce, "producer");
+        }
+
+        /** Appends every 10ms, like a producer that batches its puts. */
+        private void produce() {
+            long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+            long next = System.nanoTime();
+            double owed = 0;
+            long seq = 0;
+            while (running) {
+                owed += rate / 100.0;
+                synchronized (this) {
+                    Instant now = Instant.now();
+                    for (; owed >= 1; owed--, seq++) {
+                        records.add(new StoredRecord(Long.toString(seq), payloads[(int) (seq % payloads.length)], now));
+                    }
+                }
+                next += tickNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+        }
+
+        synchronized int size() { return records.size(); }
+
+        synchronized StoredRecord get(int i) { return records.get(i); }
+    }
+
+    /** Reads one shard the way the retrieval mode does, and feeds the processor. */
+    private static final class Reader {
+        record Settings(int consumers, long callMs, long pushMs) { }
+
+        final String shardId;
+        final ShardStream stream;
+        final Thread thread;
+        volatile boolean running = true;
+        long delivered;
+        long calls;
+        long emptyCalls;
+
+        private final LogShardRecordProcessor processor;
+        private final RecordProcessorCheckpointer checkpointer = Checkpointers.noop();
+        private final AppConfig config;
+        private final Settings settings;
+        private int position;
+        // the shard's read budget, in bytes
+        private double bytesAvailable;
+        private long refilledAtNanos = System.nanoTime();
+
+        Reader(String shardId, String mode, ShardStream stream, LogShardRecordProcessor processor, AppConfig config,
+               Settings settings) {
+            this.shardId = shardId;
+            this.stream = stream;
+            this.processor = processor;
+            this.config = config;
+            this.settings = settings;
+            this.thread = new Thread(mode.equals("fanout") ? this::push : this::poll, mode + "-" + shardId);
+        }
+
+        /** GetRecords in a loop, within our share of the shard's call and byte limits. */
+        private void poll() {
+            int consumers = Math.max(1, settings.consumers());
+            long minGapNanos = TimeUnit.SECONDS.toNanos(1) * consumers / SHARD_CALLS_PER_SEC;
+            AdaptivePollingSleep.Backoff backoff = AdaptivePollingSleep.fromConfig(config).backoff();
+            long lastCall = 0L;
+            while (running) {
+                long now = System.nanoTime();
+                if (lastCall != 0L && now - lastCall < minGapNanos) LockSupport.parkNanos(minGapNanos - (now - lastCall));
+                lastCall = System.nanoTime();
+                sleepMillis(settings.callMs());
+                int n = deliver(config.pollingMaxRecords(), Math.min(MAX_BYTES_PER_CALL, refill(consumers)), Long.MAX_VALUE);
+                calls++;
+                if (n == 0) emptyCalls++;
+                long wait = backoff.next(n, millisBehindLatest());
+                long spentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastCall);
+                sleepMillis(wait - spentMillis);
+            }
+            processor.shutdownRequested(ShutdownRequestedInput.builder().checkpointer(checkpointer).build());
+        }
+
+        /** What SubscribeToShard does: each record shows up {@code pushMs} after it arrived. */
+        private void push() {
+            while (running) {
+                if (position >= stream.size()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                long dueAt = stream.get(position).arrival().toEpochMilli() + settings.pushMs();
+                sleepMillis(dueAt - System.currentTimeMillis());
+                deliver(MAX_RECORDS_PER_PUSH, refill(1), System.currentTimeMillis() - settings.pushMs());
+                calls++;
+            }
+            processor.shutdownRequested(ShutdownRequestedInput.builder().checkpointer(checkpointer).build());
+        }
+
+        /**
+         * Hands the next records to the processor.
+         * @param maxRecords at most this many
+         * @param maxBytes at most this many bytes
+         * @param arrivedBy only records that arrived by then (epoch millis)
+         * @return how many records were handed over
+         */
+        private int deliver(int maxRecords, long maxBytes, long arrivedBy) {
+            List<KinesisClientRecord> batch = new ArrayList<>();
+            long bytes = 0;
+            int end = stream.size();
+            while (position < end && batch.size() < maxRecords) {
+                StoredRecord r = stream.get(position);
+                if (r.arrival().toEpochMilli() > arrivedBy || bytes + r.data().remaining() > maxBytes) break;
+                bytes += r.data().remaining();
+                batch.add(KinesisClientRecord.builder()
+                        .sequenceNumber(r.sequenceNumber())
+                        .partitionKey("pk")
+                        .approximateArrivalTimestamp(r.arrival())
+                        .data(r.data())
+                        .build());
+                position++;
+            }
+            bytesAvailable -= bytes;
+            processor.processRecords(ProcessRecordsInput.builder()
+                    .records(batch)
+                    .checkpointer(checkpointer)
+                    .millisBehindLatest(millisBehindLatest())
+                    .build());
+            delivered += batch.size();
+            return batch.size();
+        }
+
+        /** @return how far the next unread record is from now, 0 when there's none */
+        private long millisBehindLatest() {
+            if (position >= stream.size()) return 0L;
+            return Math.max(0L, System.currentTimeMillis() - stream.get(position).arrival().toEpochMilli());
+        }
+
+        /**
+         * @param sharedBy how many consumers share the shard's read throughput
+         * @return the bytes we may read now (up to a second worth of it)
+         */
+        private long refill(int sharedBy) {
+            long now = System.nanoTime();
+            double perSecond = (double) SHARD_READ_BYTES_PER_SEC / sharedBy;
+            bytesAvailable = Math.min(perSecond, bytesAvailable + perSecond * (now - refilledAtNanos) / 1e9);
+            refilledAtNanos = now;
+            return (long) Math.max(0, bytesAvailable);
+        }
+
+        private static void sleepMillis(long ms) {
+            if (ms > 0) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Expected an --option, got " + args[i]);
+            opts.put(args[i].substring(2), args[i + 1]);
+        }
+        return opts;
+    }
+}
@@ -0,0 +1,71 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+/**
+ * <p> Log-linear histogram of nanosecond latencies: 32 buckets per power of two, so any percentile is within ~3% of
+ * the real value, in a fixed 15KB. Not thread safe; one per thread, then {@link #merge}. </p>
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS) * SUB];
+    private long total;
+    private long max;
+
+    /**
+     * @param nanos the latency
+     * @param count how many records had it
+     */
+    void record(long nanos, long count) {
+        long v = Math.max(0L, nanos);
+        counts[index(v)] += count;
+        total += count;
+        max = Math.max(max, v);
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    void reset() {
+        java.util.Arrays.fill(counts, 0L);
+        total = 0L;
+        max = 0L;
+    }
+
+    long total() { return total; }
+
+    long max() { return max; }
+
+    /**
+     * @param p the percentile, in {@code [0, 100]}
+     * @return the latency under which {@code p}% of the records are, in nanoseconds
+     */
+    long percentile(double p) {
+        if (total == 0) return 0L;
+        long target = Math.max(1L, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) return Math.min(max, valueAt(i));
+        }
+        return max;
+    }
+
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /** @return the upper bound of the bucket */
+    private static long valueAt(int idx) {
+        if (idx < SUB) return idx;
+        int exp = idx / SUB + SUB_BITS - 1;
+        int sub = idx % SUB;
+        return ((long) (SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
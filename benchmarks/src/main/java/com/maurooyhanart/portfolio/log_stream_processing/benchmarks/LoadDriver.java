@@ -0,0 +1,235 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.InMemorySink;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p> Load test of the consumer without AWS: feeds synthetic {@code ProcessRecordsInput} batches through real shard
+ * processors, one thread per shard, for each sink configuration in turn, and reports records/sec and end-to-end
+ * latency percentiles. </p>
+ * <ul>
+ *     <li>a configuration is just env variables for {@link AppConfig#from}, {@code SINKS} included. {@code dynamodb}
+ *     and {@code eventbridge} are replaced by their in-memory fakes, {@code memory} is the real
+ *     {@link InMemorySink},</li>
+ *     <li>end-to-end latency is from the moment a record is handed to {@code processRecords} to the moment it's
+ *     checkpointed, which is when every sink that blocks the checkpoint has it,</li>
+ *     <li>the first {@code --warmup} seconds are not counted.</li>
+ * </ul>
+ * <p> e.g. {@code java -cp benchmarks/target/benchmarks.jar com.maurooyhanart.portfolio.log_stream_processing.benchmarks.LoadDriver --shards 4 --seconds 30} </p>
+ * <p> Options: {@code --seconds} (default 20), {@code --warmup} (5), {@code --shards} (4), {@code --batch} records per
+ * {@code processRecords} call (1000), {@code --payload} SMALL/MEDIUM/LARGE (MEDIUM), {@code --error-every} (20),
+ * {@code --rate} records/sec per shard, 0 for as fast as it goes (0), {@code --only} runs only the configurations
+ * whose name contains it. </p>
+ */
+public class LoadDriver {
+    private static final int PAYLOADS = 4096;
+
+    private static Map<String, Map<String, String>> scenarios() {
+        Map<String, Map<String, String>> s = new LinkedHashMap<>();
+        s.put("memory", Map.of("SINKS", "memory"));
+        s.put("memory, 20ms calls", Map.of("SINKS", "memory", "MEMORY_SINK_LATENCY_MS", "20"));
+        s.put("memory, 2% throttled", Map.of("SINKS", "memory", "MEMORY_SINK_THROTTLE_RATE", "0.02"));
+        s.put("memory, 1% failing", Map.of("SINKS", "memory", "MEMORY_SINK_FAILURE_RATE", "0.01"));
+        s.put("dynamodb encode + eventbridge", Map.of("SINKS", "dynamodb,eventbridge"));
+        s.put("dynamodb encode + memory + blocking alerts",
+                Map.of("SINKS", "dynamodb,memory,eventbridge", "EVENTBRIDGE_REQUIRED", "true"));
+        return s;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> opts = options(args);
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "20"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        int shards = Integer.parseInt(opts.getOrDefault("shards", "4"));
+        int batch = Integer.parseInt(opts.getOrDefault("batch", "1000"));
+        Payloads.Size payload = Payloads.Size.valueOf(opts.getOrDefault("payload", "MEDIUM"));
+        int errorEvery = Integer.parseInt(opts.getOrDefault("error-every", "20"));
+        int rate = Integer.parseInt(opts.getOrDefault("rate", "0"));
+        String only = opts.get("only");
+
+        ByteBuffer[] payloads = Payloads.records(payload, PAYLOADS, errorEvery);
+        System.out.printf("%d shards, %d records per call, %s payloads, %s%n", shards, batch, payload,
+                rate > 0 ? rate + " records/s per shard" : "unthrottled");
+        System.out.printf("%-45s %12s %9s %9s %9s %9s %9s%n", "sinks", "records/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        for (Map.Entry<String, Map<String, String>> sc : scenarios().entrySet()) {
+            if (only != null && !sc.getKey().contains(only)) continue;
+            run(sc.getKey(), AppConfig.from(sc.getValue()::get), payloads, shards, batch, rate, warmup, seconds);
+        }
+    }
+
+    private static void run(String name, AppConfig config, ByteBuffer[] payloads, int shards, int batch, int rate,
+                            int warmup, int seconds) throws InterruptedException {
+        List<LogSink<?>> sinks = fakeSinks(config);
+        Metrics metrics = new Metrics();
+        List<Shard> running = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            Shard s = new Shard(String.format("shardId-%012d", i), config, sinks, metrics, payloads, batch, rate);
+            running.add(s);
+            s.thread.start();
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+        for (Shard s : running) s.resetRequested = true;
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        for (Shard s : running) s.running = false;
+        for (Shard s : running) s.thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (Shard s : running) all.merge(s.latencies);
+        System.out.printf("%-45s %12.0f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, all.total() / elapsed,
+                ms(all.percentile(50)), ms(all.percentile(90)), ms(all.percentile(99)), ms(all.percentile(99.9)),
+                ms(all.max()));
+        for (LogSink<?> sink : sinks) {
+            if (sink instanceof InMemorySink m) {
+                System.out.printf("%-45s calls=%d written=%d throttled=%d failed=%d%n", "", m.calls(), m.written(),
+                        m.throttled(), m.failed());
+            }
+            sink.close();
+        }
+    }
+
+    /**
+     * @return the sinks named in {@code SINKS}, with the AWS ones replaced by fakes
+     */
+    static List<LogSink<?>> fakeSinks(AppConfig config) {
+        List<LogSink<?>> sinks = new ArrayList<>();
+        for (String sink : config.sinks()) {
+            switch (sink) {
+                case "dynamodb" -> sinks.add(new InMemoryDynamoWriter(config));
+                case "eventbridge" -> sinks.add(new NoopEventBridgePublisher(config));
+                case "memory" -> sinks.add(InMemorySink.fromConfig(config));
+                default -> throw new IllegalArgumentException("Unknown sink: " + sink);
+            }
+        }
+        return sinks;
+    }
+
+    private static double ms(long nanos) { return nanos / 1e6; }
+
+    /** One shard: a processor fed by its own thread, and the checkpoints it makes. */
+    private static final class Shard {
+        final Thread thread;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        volatile boolean running = true;
+        volatile boolean resetRequested;
+
+        private final LogShardRecordProcessor processor;
+        private final ByteBuffer[] payloads;
+        private final int batch;
+        private final int rate;
+        // fed batches not fully checkpointed yet: {first sequence number, last sequence number, fed at}
+        private final ArrayDeque<long[]> fed = new ArrayDeque<>();
+        private long nextSeq;
+
+        Shard(String shardId, AppConfig config, List<LogSink<?>> sinks, Metrics metrics, ByteBuffer[] payloads,
+              int batch, int rate) {
+            this.processor = new LogShardRecordProcessor(config, sinks, metrics, null, null, null, null, null);
+            this.payloads = payloads;
+            this.batch = batch;
+            this.rate = rate;
+            this.processor.initialize(InitializationInput.builder().shardId(shardId).build());
+            this.thread = new Thread(this::loop, "load-" + shardId);
+        }
+
+        private void loop() {
+            RecordProcessorCheckpointer checkpointer = checkpointer();
+            long pauseNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * batch / rate : 0L;
+            long nextAt = System.nanoTime();
+            while (running) {
+                if (resetRequested) {
+                    resetRequested = false;
+                    latencies.reset();
+                }
+                List<KinesisClientRecord> records = new ArrayList<>(batch);
+                Instant arrival = Instant.now();
+                long first = nextSeq;
+                for (int i = 0; i < batch; i++, nextSeq++) {
+                    records.add(KinesisClientRecord.builder()
+                            .sequenceNumber(Long.toString(nextSeq))
+                            .partitionKey("pk")
+                            .approximateArrivalTimestamp(arrival)
+                            .data(payloads[(int) (nextSeq % payloads.length)])
+                            .build());
+                }
+                fed.addLast(new long[]{first, nextSeq - 1, System.nanoTime()});
+                processor.processRecords(ProcessRecordsInput.builder()
+                        .records(records)
+                        .checkpointer(checkpointer)
+                        .millisBehindLatest(0L)
+                        .build());
+
+                if (pauseNanos > 0) {
+                    nextAt += pauseNanos;
+                    long wait = nextAt - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                }
+            }
+            processor.shutdownRequested(ShutdownRequestedInput.builder().checkpointer(checkpointer).build());
+        }
+
+        /** Every record up to {@code seq} is done: record how long each took since it was fed. */
+        private void checkpointed(long seq) {
+            long now = System.nanoTime();
+            while (!fed.isEmpty() && fed.peekFirst()[0] <= seq) {
+                long[] b = fed.peekFirst();
+                long upTo = Math.min(seq, b[1]);
+                latencies.record(now - b[2], upTo - b[0] + 1);
+                if (upTo == b[1]) fed.pollFirst();
+                else b[0] = upTo + 1;
+            }
+        }
+
+        private RecordProcessorCheckpointer checkpointer() {
+            return (RecordProcessorCheckpointer) Proxy.newProxyInstance(
+                    RecordProcessorCheckpointer.class.getClassLoader(),
+                    new Class<?>[]{RecordProcessorCheckpointer.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "checkpoint" -> {
+                                // checkpoint(seq, subSeq): the records fed here are never aggregated
+                                if (args != null && args.length == 2 && args[0] instanceof String seq) {
+                                    checkpointed(Long.parseLong(seq));
+                                }
+                                return null;
+                            }
+                            case "hashCode" -> { return System.identityHashCode(proxy); }
+                            case "equals" -> { return proxy == args[0]; }
+                            case "toString" -> { return "load checkpointer"; }
+                            default -> { return null; }
+                        }
+                    });
+        }
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Expected an --option, got " + args[i]);
+            opts.put(args[i].substring(2), args[i + 1]);
+        }
+        return opts;
+    }
+}
@@ -0,0 +1,25 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.EventBridgePublisher;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p> An {@link EventBridgePublisher} that drops every alert. Its dispatcher thread still starts, but it never gets
+ * anything to send. </p>
+ */
+public class NoopEventBridgePublisher extends EventBridgePublisher {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    public NoopEventBridgePublisher(AppConfig config) {
+        super(config, null, new Metrics());
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(LogEvent e) {
+        return DONE;
+    }
+}
@@ -0,0 +1,90 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.DecodePool;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Records per second through one shard's {@code processRecords} over full 1000 records KCL batches, decoding on
+ * the record thread ({@code parallelism=1}) versus on a {@link DecodePool} of that many threads. Same records and
+ * fakes as {@link ProcessRecordsBenchmark}; the buffering, flushes and checkpoints stay on the record thread either
+ * way, so this shows how much of a batch's time the decoding and item encoding were. </p>
+ * <p> Scores are per record ({@link OperationsPerInvocation}). Run it on a machine with at least as many cores as the
+ * highest {@code parallelism}. </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class ParallelDecodeBenchmark {
+    private static final int RECORDS = 10_000;
+    private static final int KCL_BATCH = 1000; // what Main asks the poller for (maxRecords)
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"MEDIUM", "LARGE"})
+    public Payloads.Size payload;
+
+    private LogShardRecordProcessor processor;
+    private List<ProcessRecordsInput> inputs;
+    private NoopEventBridgePublisher publisher;
+    private DecodePool pool;
+
+    @Setup
+    public void setup() {
+        AppConfig config = AppConfig.from(Map.of("SHARD_PARALLELISM", Integer.toString(parallelism))::get);
+        publisher = new NoopEventBridgePublisher(config);
+        pool = DecodePool.start(config);
+        processor = new LogShardRecordProcessor(config, List.of(new InMemoryDynamoWriter(config), publisher),
+                new Metrics(), null, null, pool, null, null);
+        processor.initialize(InitializationInput.builder().shardId("shardId-000000000000").build());
+
+        // 1 in 10 is an ERROR, so that the alerts' prepare (a copy of the event) is in there too
+        ByteBuffer[] data = Payloads.records(payload, RECORDS, 10);
+        Instant arrival = Instant.now();
+        inputs = new ArrayList<>();
+        for (int from = 0; from < data.length; from += KCL_BATCH) {
+            List<KinesisClientRecord> records = new ArrayList<>(KCL_BATCH);
+            for (int i = from; i < Math.min(data.length, from + KCL_BATCH); i++) {
+                records.add(KinesisClientRecord.builder()
+                        .sequenceNumber("4959" + String.format("%052d", i))
+                        .partitionKey("pk-" + (i % 64))
+                        .approximateArrivalTimestamp(arrival)
+                        .data(data[i])
+                        .build());
+            }
+            inputs.add(ProcessRecordsInput.builder()
+                    .records(records)
+                    .checkpointer(Checkpointers.noop())
+                    .millisBehindLatest(0L)
+                    .build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+        if (pool != null) pool.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void processRecords() {
+        for (ProcessRecordsInput input : inputs) processor.processRecords(input);
+    }
+}
@@ -0,0 +1,131 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.github.luben.zstd.Zstd;
+import com.maurooyhanart.portfolio.log_stream_processing.model.RecordPayloads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p> Synthetic log lines, shaped like what the producers put on the stream. </p>
+ * <ul>
+ *     <li>{@link Size} sets the message length and how many keys the {@code context} object has,</li>
+ *     <li>services and levels repeat the way they do in real traffic (a few dozen services, mostly INFO),</li>
+ *     <li>the generator is seeded, so every fork sees the same records,</li>
+ *     <li>{@link #batched} packs them the way batching producers do: newline-delimited, gzip or zstd compressed.</li>
+ * </ul>
+ */
+public final class Payloads {
+    public enum Size {
+        SMALL(80, 0),
+        MEDIUM(400, 8),
+        LARGE(4_000, 64);
+
+        final int messageChars;
+        final int contextKeys;
+
+        Size(int messageChars, int contextKeys) {
+            this.messageChars = messageChars;
+            this.contextKeys = contextKeys;
+        }
+    }
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "INFO", "DEBUG", "WARN", "INFO", "INFO", "DEBUG", "INFO"};
+    private static final int SERVICES = 32;
+
+    private Payloads() { }
+
+    /**
+     * @param size message length and context width
+     * @param count how many records
+     * @param errorEvery every how many records one is an ERROR; 0 for none
+     * @return the JSON documents, as read-only buffers like the ones KCL hands out
+     */
+    public static ByteBuffer[] records(Size size, int count, int errorEvery) {
+        Random rnd = new Random(42);
+        long ts = Instant.parse("2025-01-01T00:00:00Z").toEpochMilli();
+        ByteBuffer[] out = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            String level = errorEvery > 0 && i % errorEvery == errorEvery - 1 ? "ERROR" : LEVELS[rnd.nextInt(LEVELS.length)];
+            byte[] json = json(Instant.ofEpochMilli(ts + i * 7L), level, "service-" + rnd.nextInt(SERVICES), size, rnd);
+            out[i] = ByteBuffer.wrap(json).asReadOnlyBuffer();
+        }
+        return out;
+    }
+
+    /**
+     * @param events plain records, see {@link #records}
+     * @param perRecord how many events per batched record
+     * @param format {@link RecordPayloads.Format#GZIP} or {@link RecordPayloads.Format#ZSTD}
+     * @return the events as newline-delimited JSON, {@code perRecord} per compressed record, as read-only buffers
+     */
+    public static ByteBuffer[] batched(ByteBuffer[] events, int perRecord, RecordPayloads.Format format) {
+        ByteBuffer[] out = new ByteBuffer[(events.length + perRecord - 1) / perRecord];
+        for (int r = 0; r < out.length; r++) {
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            for (int i = r * perRecord; i < Math.min(events.length, (r + 1) * perRecord); i++) {
+                ByteBuffer e = events[i].duplicate();
+                byte[] b = new byte[e.remaining()];
+                e.get(b);
+                lines.writeBytes(b);
+                lines.write('\n');
+            }
+            out[r] = ByteBuffer.wrap(compress(lines.toByteArray(), format)).asReadOnlyBuffer();
+        }
+        return out;
+    }
+
+    private static byte[] compress(byte[] raw, RecordPayloads.Format format) {
+        switch (format) {
+            case GZIP -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4);
+                try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+                    gz.write(raw);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return out.toByteArray();
+            }
+            case ZSTD -> { return Zstd.compress(raw, 3); }
+            default -> throw new IllegalArgumentException("Not a batched format: " + format);
+        }
+    }
+
+    private static byte[] json(Instant ts, String level, String service, Size size, Random rnd) {
+        StringBuilder sb = new StringBuilder(size.messageChars + size.contextKeys * 32 + 128);
+        sb.append("{\"timestamp\":\"").append(ts).append("\",")
+                .append("\"level\":\"").append(level).append("\",")
+                .append("\"service\":\"").append(service).append("\",")
+                .append("\"message\":\"");
+        while (sb.length() < size.messageChars + 80) {
+            sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+        }
+        sb.append('"');
+        if (size.contextKeys > 0) {
+            sb.append(",\"context\":{");
+            for (int k = 0; k < size.contextKeys; k++) {
+                if (k > 0) sb.append(',');
+                sb.append("\"key").append(k).append("\":");
+                switch (k % 3) {
+                    case 0 -> sb.append(rnd.nextInt(1_000_000));
+                    case 1 -> sb.append('"').append(WORDS[rnd.nextInt(WORDS.length)]).append('-').append(rnd.nextInt(1000)).append('"');
+                    default -> sb.append(rnd.nextBoolean());
+                }
+            }
+            sb.append('}');
+        }
+        sb.append('}');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final String[] WORDS = {
+            "request", "handled", "user", "order", "timeout", "upstream", "cache", "miss", "retrying", "connection",
+            "payment", "accepted", "latency", "queue", "worker", "shard", "lease", "renewed", "token", "expired"
+    };
+}
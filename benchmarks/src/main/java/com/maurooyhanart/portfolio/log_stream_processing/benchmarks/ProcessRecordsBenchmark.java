@@ -0,0 +1,80 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> The whole per-record path of one shard: {@code processRecords} over a KCL batch, which decodes, encodes,
+ * buffers, flushes ({@code maybeFlush}) and checkpoints. DynamoDB, EventBridge and the checkpointer are in-memory
+ * fakes, so this is the consumer's own cost per record. </p>
+ * <p> Scores are per record ({@link OperationsPerInvocation}), allocation included. </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class ProcessRecordsBenchmark {
+    private static final int KCL_BATCH = 1000; // what Main asks the poller for (maxRecords)
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public Payloads.Size payload;
+
+    @Param({"0", "20"})
+    public int errorEvery;
+
+    private LogShardRecordProcessor processor;
+    private ProcessRecordsInput input;
+    private InMemoryDynamoWriter writer;
+    private NoopEventBridgePublisher publisher;
+
+    @Setup
+    public void setup() {
+        AppConfig config = AppConfig.from(Map.<String, String>of()::get);
+        writer = new InMemoryDynamoWriter(config);
+        publisher = new NoopEventBridgePublisher(config);
+        processor = new LogShardRecordProcessor(config, List.of(writer, publisher), new Metrics(), null, null, null, null, null);
+        processor.initialize(InitializationInput.builder().shardId("shardId-000000000000").build());
+
+        ByteBuffer[] data = Payloads.records(payload, KCL_BATCH, errorEvery);
+        Instant arrival = Instant.now();
+        List<KinesisClientRecord> records = new ArrayList<>(KCL_BATCH);
+        for (int i = 0; i < KCL_BATCH; i++) {
+            records.add(KinesisClientRecord.builder()
+                    .sequenceNumber("4959" + String.format("%052d", i))
+                    .partitionKey("pk-" + (i % 64))
+                    .approximateArrivalTimestamp(arrival)
+                    .data(data[i])
+                    .build());
+        }
+        input = ProcessRecordsInput.builder()
+                .records(records)
+                .checkpointer(Checkpointers.noop())
+                .millisBehindLatest(0L)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KCL_BATCH)
+    public void processRecords() {
+        processor.processRecords(input);
+    }
+}
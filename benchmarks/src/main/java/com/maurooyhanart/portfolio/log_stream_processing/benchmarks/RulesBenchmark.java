@@ -0,0 +1,109 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.rules.Rules;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Records per second through {@code processRecords} without rules, and with rules that drop the DEBUG events
+ * ({@code DROP_DEBUG}, 20% of {@link Payloads}' traffic) or keep only 10% of the INFO ones on top of that
+ * ({@code SAMPLE_INFO}, about 85% filtered out). Same records and fakes as {@link ProcessRecordsBenchmark}. </p>
+ * <p> A filtered event stops being decoded at its service and level, and is never prepared, buffered or flushed: the
+ * difference is what the rules save per event, net of evaluating them. </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class RulesBenchmark {
+    private static final int RECORDS = 10_000;
+    private static final int KCL_BATCH = 1000; // what Main asks the poller for (maxRecords)
+
+    public enum RuleFile {
+        NONE(null),
+        DROP_DEBUG("* DEBUG drop\n"),
+        SAMPLE_INFO("* DEBUG drop\n* INFO sample 0.1\n");
+
+        final String text;
+
+        RuleFile(String text) { this.text = text; }
+    }
+
+    @Param({"NONE", "DROP_DEBUG", "SAMPLE_INFO"})
+    public RuleFile rules;
+
+    @Param({"SMALL", "MEDIUM"})
+    public Payloads.Size payload;
+
+    private LogShardRecordProcessor processor;
+    private List<ProcessRecordsInput> inputs;
+    private NoopEventBridgePublisher publisher;
+    private Rules compiled;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        String ruleFile = "";
+        if (rules.text != null) {
+            file = Files.createTempFile("rules", ".txt");
+            Files.writeString(file, rules.text);
+            ruleFile = file.toString();
+        }
+        AppConfig config = AppConfig.from(Map.of("RULES_FILE", ruleFile, "RULES_RELOAD_MS", "0")::get);
+        publisher = new NoopEventBridgePublisher(config);
+        compiled = Rules.start(config, config.sinks(), new Metrics());
+        processor = new LogShardRecordProcessor(config, List.of(new InMemoryDynamoWriter(config), publisher),
+                new Metrics(), null, null, null, compiled, null);
+        processor.initialize(InitializationInput.builder().shardId("shardId-000000000000").build());
+
+        ByteBuffer[] data = Payloads.records(payload, RECORDS, 10);
+        Instant arrival = Instant.now();
+        inputs = new ArrayList<>();
+        for (int from = 0; from < data.length; from += KCL_BATCH) {
+            List<KinesisClientRecord> records = new ArrayList<>(KCL_BATCH);
+            for (int i = from; i < Math.min(data.length, from + KCL_BATCH); i++) {
+                records.add(KinesisClientRecord.builder()
+                        .sequenceNumber("4959" + String.format("%052d", i))
+                        .partitionKey("pk-" + (i % 64))
+                        .approximateArrivalTimestamp(arrival)
+                        .data(data[i])
+                        .build());
+            }
+            inputs.add(ProcessRecordsInput.builder()
+                    .records(records)
+                    .checkpointer(Checkpointers.noop())
+                    .millisBehindLatest(0L)
+                    .build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        publisher.close();
+        if (compiled != null) compiled.close();
+        if (file != null) Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void processRecords() {
+        for (ProcessRecordsInput input : inputs) processor.processRecords(input);
+    }
+}
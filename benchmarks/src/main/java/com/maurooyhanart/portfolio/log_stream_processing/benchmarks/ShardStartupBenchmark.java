@@ -0,0 +1,78 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.aws.AwsClients;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.EventBridgePublisher;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.PartitionSharding;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.WriteRateController;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> What a newly leased shard costs before it can process its first record. </p>
+ * <ul>
+ *     <li>{@code sharedClients}: the processor built on the process-wide writer and publisher, as the factory does,</li>
+ *     <li>{@code perShardClients}: the processor plus its own DynamoDB/EventBridge clients and HTTP pools, which is
+ *     what every lease used to pay. Nothing is called, so no credentials or network are needed.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ShardStartupBenchmark {
+    private static final InitializationInput INIT = InitializationInput.builder().shardId("shardId-000000000000").build();
+
+    private AppConfig config;
+    private WriteRateController rateController;
+    private PartitionSharding sharding;
+    private AwsClients shared;
+    private Metrics metrics;
+    private DynamoWriter sharedWriter;
+    private EventBridgePublisher sharedPublisher;
+
+    @Setup
+    public void setup() {
+        config = AppConfig.from(Map.<String, String>of()::get);
+        rateController = new WriteRateController(config.ddbMaxBatchesPerSecond(), config.ddbMaxConcurrency());
+        sharding = PartitionSharding.fromConfig(config);
+        shared = AwsClients.create(config);
+        metrics = new Metrics();
+        sharedWriter = new DynamoWriter(config, shared.dynamo(), rateController, sharding, metrics);
+        sharedPublisher = new EventBridgePublisher(config, shared.eventBridge(), metrics);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sharedPublisher.close();
+        sharedWriter.close();
+        shared.close();
+    }
+
+    @Benchmark
+    public LogShardRecordProcessor sharedClients() {
+        LogShardRecordProcessor p = new LogShardRecordProcessor(config, List.of(sharedWriter, sharedPublisher), metrics, null, null, null, null, null);
+        p.initialize(INIT);
+        return p;
+    }
+
+    @Benchmark
+    public LogShardRecordProcessor perShardClients() {
+        try (AwsClients own = AwsClients.create(config);
+             EventBridgePublisher publisher = new EventBridgePublisher(config, own.eventBridge(), metrics);
+             DynamoWriter writer = new DynamoWriter(config, own.dynamo(), rateController, sharding, metrics)) {
+            LogShardRecordProcessor p = new LogShardRecordProcessor(config, List.of(writer, publisher), metrics, null, null, null, null, null);
+            p.initialize(INIT);
+            return p;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.maurooyhanart.portfolio.log_stream_processing.benchmarks;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEventDecoder;
+import com.maurooyhanart.portfolio.log_stream_processing.spill.SpillLog;
+import com.maurooyhanart.portfolio.log_stream_processing.spill.SpillReplayer;
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * <p> Appending a flushed 25 items batch to the spill log (SPILL_DIR), with and without fsync. The replayer runs
+ * against the in-memory writer, so the backlog keeps getting committed and segments recycled, like in production
+ * with a healthy table. </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SpillAppendBenchmark {
+    private static final int BATCH = 25;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public Payloads.Size payload;
+
+    @Param({"false", "true"})
+    public boolean fsync;
+
+    private Path dir;
+    private SpillReplayer replayer;
+    private SpillLog log;
+    private List<WriteRequest> batch;
+    private List<String> keys;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("spill-bench");
+        AppConfig config = AppConfig.from(Map.of(
+                "SPILL_DIR", dir.toString(),
+                "SPILL_FSYNC", Boolean.toString(fsync),
+                "SPILL_SEGMENT_MB", "16")::get);
+        InMemoryDynamoWriter writer = new InMemoryDynamoWriter(config);
+        replayer = SpillReplayer.start(config, writer, null);
+        log = replayer.logFor("shardId-000000000000");
+
+        LogEventDecoder decoder = new LogEventDecoder(false);
+        ByteBuffer[] records = Payloads.records(payload, BATCH, 0);
+        batch = new ArrayList<>(BATCH);
+        keys = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            String key = "4959" + String.format("%052d", i);
+            batch.add(writer.encode(decoder.decode(records[i], new LogEvent()), key).request());
+            keys.add(key);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        replayer.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        log.append(batch, keys).join();
+    }
+}
@@ -84,6 +84,21 @@ resource "aws_iam_policy" "app_permissions" {
         Resource = var.kinesis_stream_arn
       },
 
+      # Kinesis: enhanced fan-out (KCL_RETRIEVAL=fanout) registers a stream consumer and subscribes through it
+      {
+        Sid    = "KinesisEnhancedFanOut"
+        Effect = "Allow"
+        Action = [
+          "kinesis:RegisterStreamConsumer",
+          "kinesis:DescribeStreamConsumer",
+          "kinesis:SubscribeToShard"
+        ]
+        Resource = [
+          var.kinesis_stream_arn,
+          "${var.kinesis_stream_arn}/consumer/*"
+        ]
+      },
+
       # DynamoDB: KCL lease table + your app logs table
       {
         Sid    = "DynamoAppTableRW"
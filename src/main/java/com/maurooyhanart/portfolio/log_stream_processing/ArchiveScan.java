@@ -0,0 +1,210 @@
+package com.maurooyhanart.portfolio.log_stream_processing;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.maurooyhanart.portfolio.log_stream_processing.archive.ArchiveRow;
+import com.maurooyhanart.portfolio.log_stream_processing.archive.BlockIndex;
+import com.maurooyhanart.portfolio.log_stream_processing.archive.SegmentReader;
+import com.maurooyhanart.portfolio.log_stream_processing.aws.AwsClients;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * <p> Reads events back from the cold archive ({@code ArchiveSink}), filtered by service, level and time, and prints
+ * them as JSON lines on stdout. </p>
+ * <ul>
+ *     <li>same env config as the consumer: the segments are read from {@code ARCHIVE_DIR}, or with {@code --s3}
+ *     from {@code ARCHIVE_S3_BUCKET} under {@code ARCHIVE_S3_PREFIX}. With both {@code --from} and {@code --to},
+ *     only the days of the range (and the one before) are listed: an event archived more than a day late may be
+ *     filed under an earlier day, leave a bound out to list everything,</li>
+ *     <li>a segment whose time range (in its name) is outside the query isn't opened. From the others, only the
+ *     blocks whose index matches are read and decompressed: ranged GETs on S3,</li>
+ *     <li>segments are read in name order, so roughly oldest first; events come out in archive order within one.
+ *     A replay may have archived an event twice, with the same {@code key}.</li>
+ * </ul>
+ * <p> e.g. {@code java -cp app.jar com.maurooyhanart.portfolio.log_stream_processing.ArchiveScan --s3 --service
+ * payments --level ERROR --from 2026-10-01T00:00:00Z --to 2026-10-02T00:00:00Z} </p>
+ * <p> Options: {@code --dir} a local archive directory (default {@code ARCHIVE_DIR}), {@code --s3} read from the
+ * bucket instead, {@code --shard} only this shard, {@code --service}, {@code --level} (any case), {@code --from} and
+ * {@code --to} (inclusive, an ISO instant or epoch millis), {@code --limit} at most this many events (0, no limit).
+ * What was read and skipped is reported on stderr. </p>
+ */
+public class ArchiveScan {
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+    // past this, listing day by day costs more than listing everything
+    private static final long MAX_LISTED_DAYS = 400;
+
+    private final String shard;
+    private final String service;
+    private final String level;
+    private final long from;
+    private final long to;
+    private final long limit;
+    private final JsonGenerator out;
+
+    private long segmentsSkipped;
+    private long segmentsRead;
+    private long blocksSkipped;
+    private long blocksRead;
+    private long rowsRead;
+    private long matched;
+
+    private ArchiveScan(Map<String, String> opts, OutputStream stdout) throws IOException {
+        this.shard = opts.get("shard");
+        this.service = opts.get("service");
+        this.level = opts.get("level");
+        this.from = opts.containsKey("from") ? time(opts.get("from")) : Long.MIN_VALUE;
+        this.to = opts.containsKey("to") ? time(opts.get("to")) : Long.MAX_VALUE;
+        this.limit = Long.parseLong(opts.getOrDefault("limit", "0"));
+        this.out = new JsonFactory().createGenerator(stdout);
+        // one event per line
+        this.out.setRootValueSeparator(null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = options(args);
+        AppConfig cfg = AppConfig.fromEnv();
+        ArchiveScan scan = new ArchiveScan(opts, System.out);
+        long start = System.nanoTime();
+        if (opts.containsKey("s3")) {
+            if (cfg.archiveS3Bucket().isBlank()) throw new IllegalArgumentException("--s3 needs ARCHIVE_S3_BUCKET");
+            try (AwsClients clients = AwsClients.create(cfg)) {
+                scan.s3(clients.s3(), cfg.archiveS3Bucket(), cfg.archiveS3Prefix());
+            }
+        } else {
+            scan.dir(Paths.get(opts.getOrDefault("dir", cfg.archiveDir())));
+        }
+        scan.out.flush();
+        System.err.printf("Matched %d event(s) in %.2f s: %d segment(s) read, %d skipped; %d block(s) read, %d skipped; %d row(s) read%n",
+                scan.matched, (System.nanoTime() - start) / 1e9, scan.segmentsRead, scan.segmentsSkipped,
+                scan.blocksRead, scan.blocksSkipped, scan.rowsRead);
+    }
+
+    private void dir(Path root) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            files.filter(f -> f.getFileName().toString().endsWith(".lsg")).forEach(segments::add);
+        }
+        segments.sort((a, b) -> a.getFileName().compareTo(b.getFileName()));
+        for (Path f : segments) {
+            if (done()) return;
+            if (skip(f.getParent().getFileName().toString(), f.getFileName().toString())) continue;
+            try (SegmentReader reader = SegmentReader.open(SegmentReader.file(f))) {
+                scan(reader);
+            }
+        }
+    }
+
+    private void s3(S3AsyncClient s3, String bucket, String prefix) throws IOException {
+        String root = prefix.isEmpty() ? "" : prefix + "/";
+        List<String> prefixes = new ArrayList<>();
+        if (from != Long.MIN_VALUE && to != Long.MAX_VALUE) {
+            LocalDate day = LocalDate.ofInstant(Instant.ofEpochMilli(from), ZoneOffset.UTC);
+            LocalDate last = LocalDate.ofInstant(Instant.ofEpochMilli(to), ZoneOffset.UTC);
+            // a segment is filed under the day of its oldest event, which can be the day before the range
+            day = day.minusDays(1);
+            if (day.plusDays(MAX_LISTED_DAYS).isAfter(last)) {
+                for (; !day.isAfter(last); day = day.plusDays(1)) {
+                    prefixes.add(root + day.format(DAY) + "/");
+                }
+            }
+        }
+        if (prefixes.isEmpty()) prefixes.add(root);
+
+        List<S3Object> objects = new ArrayList<>();
+        for (String p : prefixes) {
+            ListObjectsV2Request req = ListObjectsV2Request.builder().bucket(bucket).prefix(p).build();
+            s3.listObjectsV2Paginator(req).subscribe(r -> objects.addAll(r.contents())).join();
+        }
+        objects.sort((a, b) -> name(a.key()).compareTo(name(b.key())));
+        for (S3Object o : objects) {
+            if (done()) return;
+            String key = o.key();
+            int slash = key.lastIndexOf('/');
+            String shardId = slash > 0 ? name(key.substring(0, slash)) : "";
+            if (skip(shardId, name(key))) continue;
+            try (SegmentReader reader = SegmentReader.open(SegmentReader.s3(s3, bucket, key, o.size()))) {
+                scan(reader);
+            }
+        }
+    }
+
+    /** @return whether the segment can be skipped by its shard and name alone */
+    private boolean skip(String shardId, String fileName) {
+        long[] range = SegmentReader.timeRange(fileName);
+        if (range == null || (shard != null && !shard.equals(shardId)) || range[1] < from || range[0] > to) {
+            segmentsSkipped++;
+            return true;
+        }
+        return false;
+    }
+
+    private void scan(SegmentReader reader) throws IOException {
+        segmentsRead++;
+        for (BlockIndex block : reader.blocks()) {
+            if (done()) return;
+            if (!block.matches(service, from, to)) {
+                blocksSkipped++;
+                continue;
+            }
+            blocksRead++;
+            for (ArchiveRow row : reader.read(block)) {
+                rowsRead++;
+                if (row.tsMillis() < from || row.tsMillis() > to) continue;
+                if (service != null && !service.equals(row.service())) continue;
+                if (level != null && !level.equalsIgnoreCase(row.level())) continue;
+                print(row);
+                if (done()) return;
+            }
+        }
+    }
+
+    private void print(ArchiveRow row) throws IOException {
+        out.writeStartObject();
+        out.writeStringField("timestamp", Instant.ofEpochMilli(row.tsMillis()).toString());
+        out.writeStringField("service", row.service());
+        out.writeStringField("level", row.level());
+        out.writeStringField("message", row.message());
+        out.writeStringField("key", row.key());
+        out.writeEndObject();
+        out.writeRaw('\n');
+        matched++;
+    }
+
+    private boolean done() { return limit > 0 && matched >= limit; }
+
+    private static String name(String path) { return path.substring(path.lastIndexOf('/') + 1); }
+
+    /** @return an ISO instant ({@code 2026-10-01T00:00:00Z}) or epoch millis, in millis */
+    private static long time(String s) {
+        return s.chars().allMatch(Character::isDigit) ? Long.parseLong(s) : Instant.parse(s).toEpochMilli();
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            opts.put(key, hasValue ? args[++i] : "true");
+        }
+        return opts;
+    }
+}
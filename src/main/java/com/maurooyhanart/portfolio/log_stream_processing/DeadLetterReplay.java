@@ -0,0 +1,172 @@
+package com.maurooyhanart.portfolio.log_stream_processing;
+
+import com.maurooyhanart.portfolio.log_stream_processing.aws.AwsClients;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetter;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetterQueue;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DynamoDeadLetterStore;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.FileDeadLetterStore;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogShardRecordProcessor;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.PartitionSharding;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.WriteRateController;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p> Feeds dead letters through a shard processor again, e.g. once the bug that made them fail is fixed, and
+ * reports the throughput. </p>
+ * <ul>
+ *     <li>same env config as the consumer: the records go to the sinks in {@code SINKS} (straight to DynamoDB, the
+ *     spill log is not used), and the ones that fail again are dead-lettered again, to {@code DLQ},</li>
+ *     <li>one processor per original shard, fed in order, then shut down so that every flush is written,</li>
+ *     <li>nothing is checkpointed: the dead letters are not Kinesis records anymore.</li>
+ * </ul>
+ * <p> e.g. {@code java -cp app.jar com.maurooyhanart.portfolio.log_stream_processing.DeadLetterReplay --delete} </p>
+ * <p> Options: {@code --source} {@code file} or {@code dynamodb} (default {@code DLQ}), {@code --limit} at most this
+ * many dead letters (0, no limit), {@code --batch} records per {@code processRecords} call (1000), {@code --delete}
+ * removes the replayed dead letters once they're written (whole files for the file store). </p>
+ */
+public class DeadLetterReplay {
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = options(args);
+        AppConfig cfg = AppConfig.fromEnv();
+        String source = opts.getOrDefault("source", cfg.dlq());
+        long limit = Long.parseLong(opts.getOrDefault("limit", "0"));
+        int batch = Integer.parseInt(opts.getOrDefault("batch", "1000"));
+        boolean delete = opts.containsKey("delete");
+
+        AwsClients clients = AwsClients.create(cfg);
+        Metrics metrics = new Metrics();
+        WriteRateController rateController = new WriteRateController(cfg.ddbMaxBatchesPerSecond(), cfg.ddbMaxConcurrency());
+        DynamoWriter dynamoWriter = new DynamoWriter(cfg, clients.dynamo(), rateController, PartitionSharding.fromConfig(cfg), metrics);
+        DeadLetterQueue deadLetters = DeadLetterQueue.start(cfg, dynamoWriter, metrics);
+        List<LogSink<?>> sinks = Main.sinks(cfg, clients, dynamoWriter, null, metrics);
+
+        try {
+            // read everything first: records that fail again are written to the DLQ while we replay
+            Map<String, List<DeadLetter>> byShard = new LinkedHashMap<>();
+            List<Path> replayedFiles = new ArrayList<>();
+            long read = 0;
+            switch (source) {
+                case "file" -> {
+                    for (Path f : FileDeadLetterStore.files(Paths.get(cfg.dlqDir()))) {
+                        List<DeadLetter> in = new ArrayList<>();
+                        FileDeadLetterStore.read(f, in::add);
+                        // only whole files, so that --delete never drops a dead letter that wasn't replayed
+                        if (limit > 0 && read + in.size() > limit && read > 0) break;
+                        for (DeadLetter d : in) byShard.computeIfAbsent(d.shardId(), s -> new ArrayList<>()).add(d);
+                        read += in.size();
+                        replayedFiles.add(f);
+                    }
+                }
+                case "dynamodb" -> read = DynamoDeadLetterStore.scan(clients.dynamo(), cfg.dlqTable(), limit,
+                        d -> byShard.computeIfAbsent(d.shardId(), s -> new ArrayList<>()).add(d));
+                default -> throw new IllegalArgumentException("Nothing to replay from: " + source + " (use --source file|dynamodb)");
+            }
+            System.out.printf("Replaying %d dead letter(s) from %d shard(s), source: %s%n", read, byShard.size(), source);
+
+            long failedBefore = deadLetters != null ? deadLetters.offered() : 0L;
+            long start = System.nanoTime();
+            for (Map.Entry<String, List<DeadLetter>> shard : byShard.entrySet()) {
+                replay(cfg, sinks, metrics, deadLetters, shard.getKey(), shard.getValue(), batch);
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long failedAgain = deadLetters != null ? deadLetters.offered() - failedBefore : 0L;
+            System.out.printf("Replayed %d record(s) in %.2f s: %.0f records/s, %d dead-lettered again%n",
+                    read, elapsed, read / Math.max(elapsed, 1e-9), failedAgain);
+
+            if (delete) {
+                if (source.equals("file")) {
+                    for (Path f : replayedFiles) Files.deleteIfExists(f);
+                    System.out.printf("Deleted %d file(s)%n", replayedFiles.size());
+                } else {
+                    List<WriteRequest> deletes = new ArrayList<>();
+                    for (List<DeadLetter> l : byShard.values()) {
+                        for (DeadLetter d : l) deletes.add(DynamoDeadLetterStore.deleteRequest(d));
+                    }
+                    dynamoWriter.putBatchAsync(cfg.dlqTable(), deletes, "dlq").join();
+                    System.out.printf("Deleted %d item(s)%n", deletes.size());
+                }
+            }
+        } finally {
+            for (LogSink<?> sink : sinks) sink.close();
+            if (deadLetters != null) deadLetters.close();
+            dynamoWriter.close();
+            clients.close();
+        }
+    }
+
+    private static void replay(AppConfig cfg, List<LogSink<?>> sinks, Metrics metrics, DeadLetterQueue deadLetters,
+                               String shardId, List<DeadLetter> letters, int batch) {
+        RecordProcessorCheckpointer checkpointer = noopCheckpointer();
+        // no rollups: their windows were written when the records first went through. no rules either: a dead letter
+        // is an event they kept, or one that failed before they could look at it. no recent keys: nothing was written
+        LogShardRecordProcessor processor = new LogShardRecordProcessor(cfg, sinks, metrics, deadLetters, null, null,
+                null, null);
+        processor.initialize(InitializationInput.builder().shardId(shardId).build());
+        for (int i = 0; i < letters.size(); i += batch) {
+            List<KinesisClientRecord> records = new ArrayList<>(Math.min(batch, letters.size() - i));
+            for (DeadLetter d : letters.subList(i, Math.min(i + batch, letters.size()))) {
+                records.add(KinesisClientRecord.builder()
+                        .data(ByteBuffer.wrap(d.data()).asReadOnlyBuffer())
+                        // the raw sequence number: the processor's checkpoint bookkeeping parses it, a key wouldn't
+                        .sequenceNumber(d.sequenceNumber())
+                        .partitionKey(shardId)
+                        .approximateArrivalTimestamp(Instant.ofEpochMilli(d.atMillis()))
+                        .build());
+            }
+            processor.processRecords(ProcessRecordsInput.builder()
+                    .records(records)
+                    .checkpointer(checkpointer)
+                    .millisBehindLatest(0L)
+                    .build());
+        }
+        // flushes what's left and waits for every write
+        processor.shutdownRequested(ShutdownRequestedInput.builder().checkpointer(checkpointer).build());
+    }
+
+    /** {@link RecordProcessorCheckpointer} has a lot of methods; none of them does anything here. */
+    private static RecordProcessorCheckpointer noopCheckpointer() {
+        return (RecordProcessorCheckpointer) Proxy.newProxyInstance(
+                RecordProcessorCheckpointer.class.getClassLoader(),
+                new Class<?>[]{RecordProcessorCheckpointer.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "replay checkpointer";
+                    default -> null;
+                });
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            opts.put(key, hasValue ? args[++i] : "true");
+        }
+        return opts;
+    }
+}
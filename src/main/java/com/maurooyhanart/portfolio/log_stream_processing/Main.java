@@ -1,14 +1,31 @@
 package com.maurooyhanart.portfolio.log_stream_processing;
 
+import com.maurooyhanart.portfolio.log_stream_processing.archive.ArchiveSink;
+import com.maurooyhanart.portfolio.log_stream_processing.aws.AwsClients;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
 import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetterQueue;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.AdaptivePollingSleep;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.DecodePool;
 import com.maurooyhanart.portfolio.log_stream_processing.kinesis.LogRecordProcessorFactory;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
-import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
-import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import com.maurooyhanart.portfolio.log_stream_processing.kinesis.RecentKeys;
+import com.maurooyhanart.portfolio.log_stream_processing.rollup.Rollups;
+import com.maurooyhanart.portfolio.log_stream_processing.rules.Rules;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.PrometheusEndpoint;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.EventBridgePublisher;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.InMemorySink;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.PartitionSharding;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.WriteRateController;
+import com.maurooyhanart.portfolio.log_stream_processing.spill.SpillReplayer;
 import software.amazon.kinesis.common.ConfigsBuilder;
+import software.amazon.kinesis.coordinator.CoordinatorConfig;
 import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.coordinator.SchedulerCoordinatorFactory;
+import software.amazon.kinesis.retrieval.RetrievalSpecificConfig;
+import software.amazon.kinesis.retrieval.fanout.FanOutConfig;
 import software.amazon.kinesis.retrieval.polling.PollingConfig;
 import software.amazon.kinesis.common.InitialPositionInStream;
 import software.amazon.kinesis.retrieval.RetrievalConfig;
@@ -16,20 +33,44 @@ import software.amazon.kinesis.common.InitialPositionInStreamExtended;
 import software.amazon.kinesis.common.StreamIdentifier;
 import software.amazon.kinesis.processor.SingleStreamTracker;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         AppConfig cfg = AppConfig.fromEnv();
-        DefaultCredentialsProvider creds = DefaultCredentialsProvider.create();
-        Region region = Region.of(cfg.awsRegion());
         String workerId = UUID.randomUUID().toString();
 
-        KinesisAsyncClient kinesis = KinesisAsyncClient.builder().region(region).credentialsProvider(creds).build();
-        DynamoDbAsyncClient dynamo = DynamoDbAsyncClient.builder().region(region).credentialsProvider(creds).build();
-        CloudWatchAsyncClient cloudwatch = CloudWatchAsyncClient.builder().region(region).credentialsProvider(creds).build();
+        // one set of clients (and connection pools) for the whole process, shared by KCL and every shard
+        AwsClients clients = AwsClients.create(cfg);
+        Metrics metrics = new Metrics();
+        // shared by every shard, so that throttling seen by one slows all of them down
+        WriteRateController rateController = new WriteRateController(cfg.ddbMaxBatchesPerSecond(), cfg.ddbMaxConcurrency());
+        registerRateControllerMetrics(metrics, rateController);
+        DynamoWriter dynamoWriter = new DynamoWriter(cfg, clients.dynamo(), rateController, PartitionSharding.fromConfig(cfg), metrics);
 
-        LogRecordProcessorFactory factory = new LogRecordProcessorFactory(cfg);
+        // null unless DLQ is set
+        DeadLetterQueue deadLetters = DeadLetterQueue.start(cfg, dynamoWriter, metrics);
+
+        // null unless SPILL_DIR is set. recovers and starts replaying whatever previous runs left on disk
+        SpillReplayer spillReplayer = SpillReplayer.start(cfg, dynamoWriter, deadLetters);
+
+        // null unless ROLLUPS is set
+        Rollups rollups = Rollups.start(cfg, dynamoWriter, clients.dynamo(), metrics);
+        // null unless SHARD_PARALLELISM is over 1
+        DecodePool decodePool = DecodePool.start(cfg);
+        // null unless DEDUP_CACHE_KEYS is set
+        RecentKeys recentKeys = RecentKeys.start(cfg);
+
+        List<LogSink<?>> sinks = sinks(cfg, clients, dynamoWriter, spillReplayer, metrics);
+        // null unless RULES_FILE is set. compiled against the sinks' order, reloaded when the file changes
+        Rules rules = Rules.start(cfg, cfg.sinks(), metrics);
+        LogRecordProcessorFactory factory = new LogRecordProcessorFactory(cfg, sinks, metrics, deadLetters, rollups,
+                decodePool, rules, recentKeys);
+        PrometheusEndpoint endpoint = cfg.metricsPort() > 0 ? PrometheusEndpoint.start(metrics, cfg.metricsPort()) : null;
         InitialPositionInStream initialPosition = InitialPositionInStream.LATEST;
         InitialPositionInStreamExtended initialPositionExtended =
                 InitialPositionInStreamExtended.newInitialPosition(initialPosition);
@@ -38,34 +79,131 @@ public class Main {
                 initialPositionExtended
         );
 
-        PollingConfig pollingConfig = new PollingConfig(cfg.streamName(), kinesis)
-                .idleTimeBetweenReadsInMillis(0)
-                .maxRecords(1000);
-
         ConfigsBuilder configs = new ConfigsBuilder(
                 streamTracker,
                 cfg.applicationName(),
-                kinesis,
-                dynamo,
-                cloudwatch,
+                clients.kinesis(),
+                clients.dynamo(),
+                clients.cloudWatch(),
                 workerId,
                 factory
         );
 
         RetrievalConfig retrieval = configs.retrievalConfig()
-                .retrievalSpecificConfig(pollingConfig);
+                .retrievalSpecificConfig(retrievalSpecificConfig(cfg, clients));
 
         Scheduler scheduler = new Scheduler(
                 configs.checkpointConfig(),
-                configs.coordinatorConfig(),
+                coordinatorConfig(cfg, configs),
                 configs.leaseManagementConfig(),
                 configs.lifecycleConfig(),
                 configs.metricsConfig(),
-                configs.processorConfig(),
+                // the rollups close the pane of an idle shard from processRecords
+                configs.processorConfig().callProcessRecordsEvenForEmptyRecordList(rollups != null),
                 retrieval
         );
 
-        Runtime.getRuntime().addShutdownHook(new Thread(scheduler::shutdown));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            scheduler.shutdown();
+            if (rules != null) rules.close();
+            if (decodePool != null) decodePool.close();
+            if (spillReplayer != null) spillReplayer.close();
+            for (LogSink<?> sink : sinks) sink.close();
+            // after the sinks: their last failed writes may still be dead-lettered
+            if (deadLetters != null) deadLetters.close();
+            dynamoWriter.close();
+            clients.close();
+            if (endpoint != null) endpoint.close();
+        }));
         scheduler.run();
     }
+
+    /**
+     * Builds the sinks named in {@link AppConfig#sinks()}, in that order. {@code dynamodb:<table>} is the DynamoDB
+     * sink writing to another table, for the rules to route events to; it doesn't go through the spill log.
+     * @throws IllegalArgumentException if a name is unknown
+     * @throws IOException if the archive's directory can't be recovered
+     */
+    static List<LogSink<?>> sinks(AppConfig cfg, AwsClients clients, DynamoWriter dynamoWriter,
+                                          SpillReplayer spillReplayer, Metrics metrics) throws IOException {
+        List<LogSink<?>> sinks = new ArrayList<>();
+        for (String name : cfg.sinks()) {
+            if (name.startsWith("dynamodb:") && name.length() > "dynamodb:".length()) {
+                sinks.add(dynamoWriter.forTable(name.substring("dynamodb:".length())));
+                continue;
+            }
+            switch (name) {
+                // with spilling on, DynamoDB items go through the local log first
+                case "dynamodb" -> sinks.add(spillReplayer != null ? spillReplayer.sink() : dynamoWriter);
+                case "eventbridge" -> sinks.add(new EventBridgePublisher(cfg, clients.eventBridge(), metrics));
+                case "memory" -> sinks.add(InMemorySink.fromConfig(cfg));
+                // recovers and uploads whatever previous runs left in ARCHIVE_DIR
+                case "archive" -> sinks.add(ArchiveSink.start(cfg, clients, metrics));
+                default -> throw new IllegalArgumentException("Unknown sink in SINKS: " + name);
+            }
+        }
+        System.out.printf("Sinks: %s%n", cfg.sinks());
+        return sinks;
+    }
+
+    /**
+     * Enhanced fan-out or polling, depending on {@link AppConfig#retrieval()}.
+     * <ul>
+     *     <li>{@code fanout}: KCL registers a stream consumer (named {@code EFO_CONSUMER_NAME}, or after the app) and
+     *     records are pushed over HTTP/2 as they arrive, with 2 MB/s per shard of our own,</li>
+     *     <li>{@code polling}: {@code GetRecords} calls of up to {@code POLLING_MAX_RECORDS} records, which share the
+     *     shard's 2 MB/s and 5 calls/s with every other polling consumer of the stream. Empty reads back off
+     *     ({@link AdaptivePollingSleep}).</li>
+     * </ul>
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    private static RetrievalSpecificConfig retrievalSpecificConfig(AppConfig cfg, AwsClients clients) {
+        switch (cfg.retrieval()) {
+            case "fanout" -> {
+                FanOutConfig fanOut = new FanOutConfig(clients.kinesis())
+                        .streamName(cfg.streamName())
+                        .applicationName(cfg.applicationName());
+                if (!cfg.efoConsumerName().isBlank()) fanOut.consumerName(cfg.efoConsumerName());
+                System.out.printf("Retrieval: enhanced fan-out, consumer %s%n",
+                        cfg.efoConsumerName().isBlank() ? cfg.applicationName() : cfg.efoConsumerName());
+                return fanOut;
+            }
+            case "polling" -> {
+                System.out.printf("Retrieval: polling, %d records per call, %d ms idle, up to %d ms when empty%n",
+                        cfg.pollingMaxRecords(), cfg.pollingIdleMs(), cfg.pollingEmptyBackoffMs());
+                return new PollingConfig(cfg.streamName(), clients.kinesis())
+                        .idleTimeBetweenReadsInMillis(cfg.pollingIdleMs())
+                        .maxRecords(cfg.pollingMaxRecords())
+                        .sleepTimeController(AdaptivePollingSleep.fromConfig(cfg));
+            }
+            default -> throw new IllegalArgumentException("Unknown KCL_RETRIEVAL: " + cfg.retrieval() + " (use polling|fanout)");
+        }
+    }
+
+    /**
+     * With {@code THREADS=virtual}, KCL runs every shard's record processor on a virtual thread of its own instead of
+     * its cached pool: checkpoint backoffs, a full flush pipeline and forced flushes park the shard, not a carrier.
+     */
+    private static CoordinatorConfig coordinatorConfig(AppConfig cfg, ConfigsBuilder configs) {
+        CoordinatorConfig coordinator = configs.coordinatorConfig();
+        if (!Threads.virtual(cfg)) return coordinator;
+        System.out.println("Threads: virtual, for shard processors, SDK callbacks and sink retries");
+        return coordinator.coordinatorFactory(new SchedulerCoordinatorFactory() {
+            @Override
+            public ExecutorService createExecutorService() {
+                return Threads.perTask("ShardRecordProcessor", true);
+            }
+        });
+    }
+
+    /** The controller is shared by every shard, so its state is exported once, without a shard label. */
+    private static void registerRateControllerMetrics(Metrics metrics, WriteRateController rateController) {
+        metrics.gauge("ddb_rate_limit_batches_per_second", "BatchWriteItem calls per second currently allowed",
+                rateController::currentRate);
+        metrics.gauge("ddb_concurrency_limit", "BatchWriteItem calls currently allowed in flight",
+                rateController::currentConcurrencyLimit);
+        metrics.gauge("ddb_calls_in_flight", "BatchWriteItem calls in flight", rateController::inFlight);
+        metrics.counter("ddb_throttle_events_total", "Throttled BatchWriteItem calls seen by the rate controller",
+                rateController::throttleEvents);
+    }
 }
@@ -0,0 +1,12 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+/**
+ * One archived event: what the DynamoDB item has, plus the event's key (so readers can drop the copies a replay
+ * archived twice).
+ * @param tsMillis the event's timestamp, 0 if it had none
+ * @param service the service, or {@code null}
+ * @param level the level, or {@code null}
+ * @param message the message, or {@code null}
+ * @param key the event's key, {@code seq[:subSeq][:line]}
+ */
+public record ArchiveRow(long tsMillis, String service, String level, String message, String key) { }
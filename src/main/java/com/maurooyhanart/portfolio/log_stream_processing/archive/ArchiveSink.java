@@ -0,0 +1,279 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import com.maurooyhanart.portfolio.log_stream_processing.aws.AwsClients;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Backoff;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * <p> The cold archive ({@code archive} in {@code SINKS}): every event, kept cheaply for as long as needed, in
+ * compressed columnar segments under {@code ARCHIVE_DIR/<shardId>/}, uploaded to S3 (or anything speaking its API,
+ * like MinIO) when {@code ARCHIVE_S3_BUCKET} is set. </p>
+ * <ul>
+ *     <li>a flush is written once it's in the shard's journal on local disk (forced with {@code ARCHIVE_FSYNC}), so
+ *     the checkpoint never passes events that aren't archived. Building blocks, compressing and uploading happen
+ *     later on their own threads, see {@link ShardArchive},</li>
+ *     <li>a segment's blocks are {@link BlockCodec columnar} and zstd compressed, with a footer indexing each block's
+ *     time range and services. {@code ArchiveScan} reads only the blocks a query needs,</li>
+ *     <li>sealed segments are uploaded to {@code <prefix>/yyyy/MM/dd/<shardId>/<segment>} and deleted locally. An
+ *     upload that keeps failing leaves the file where it is; it's uploaded again on the next start, with whatever
+ *     the previous run didn't get to seal,</li>
+ *     <li>delivery is at-least-once like everywhere else: a replayed flush is archived twice, with the same keys.</li>
+ * </ul>
+ */
+public final class ArchiveSink implements LogSink<ArchiveRow> {
+    private static final Backoff UPLOAD_BACKOFF = new Backoff(8, 1000L, 60_000L);
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy/MM/dd").withZone(ZoneOffset.UTC);
+    // the fixed part of a row, on top of its strings
+    private static final int ROW_OVERHEAD_BYTES = 24;
+
+    private final Path root;
+    private final int blockRows;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final boolean fsync;
+    private final S3AsyncClient s3;
+    private final String bucket;
+    private final String prefix;
+    // segment ids are unique per process: another worker may archive the same shard into the same bucket
+    private final String nonce = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong segmentCounter = new AtomicLong();
+    private final AtomicLong journalIds = new AtomicLong(System.currentTimeMillis());
+    private final ConcurrentHashMap<String, ShardArchive> shards = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, CompletableFuture<Void>> uploads = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+
+    private final Counter rows;
+    private final Counter segments;
+    private final Counter uploaded;
+    private final Counter failures;
+
+    private ArchiveSink(AppConfig config, S3AsyncClient s3, Metrics metrics) {
+        this.root = Paths.get(config.archiveDir());
+        this.blockRows = Math.max(1, config.archiveBlockRows());
+        this.segmentBytes = config.archiveSegmentBytes();
+        this.segmentMillis = config.archiveSegmentMs();
+        this.fsync = config.archiveFsync();
+        this.s3 = s3;
+        this.bucket = config.archiveS3Bucket();
+        this.prefix = config.archiveS3Prefix();
+        boolean virtual = Threads.virtual(config);
+        this.executor = Executors.newSingleThreadExecutor(Threads.factory("archive", virtual));
+        this.timer = Threads.timer("archive-roll", virtual);
+        this.rows = metrics.counter("archive_rows_total", "Events appended to the archive journals");
+        this.segments = metrics.counter("archive_segments_total", "Archive segments sealed");
+        this.uploaded = metrics.counter("archive_uploads_total", "Archive segments uploaded to S3");
+        this.failures = metrics.counter("archive_failures_total", "Archive blocks, seals or uploads that failed");
+        metrics.gauge("archive_uploads_pending", "Sealed segments being uploaded", uploads::size);
+    }
+
+    /**
+     * Recovers what previous runs left in {@link AppConfig#archiveDir()}, for every shard, and uploads what's sealed.
+     * @param clients for S3, when {@link AppConfig#archiveS3Bucket()} is set
+     */
+    public static ArchiveSink start(AppConfig config, AwsClients clients, Metrics metrics) throws IOException {
+        ArchiveSink sink = new ArchiveSink(config, clients.s3(), metrics);
+        Files.createDirectories(sink.root);
+        int recovered = 0;
+        try (Stream<Path> dirs = Files.list(sink.root)) {
+            for (Path d : (Iterable<Path>) dirs::iterator) {
+                if (!Files.isDirectory(d)) continue;
+                for (Path sealed : ShardArchive.recover(sink, d)) {
+                    if (sink.s3 != null) sink.upload(d.getFileName().toString(), sealed);
+                    recovered++;
+                }
+            }
+        }
+        long period = Math.max(1000L, Math.min(sink.segmentMillis, 60_000L) / 4);
+        sink.timer.scheduleWithFixedDelay(sink::tick, period, period, TimeUnit.MILLISECONDS);
+        System.out.printf("Archiving to %s%s, %d segment(s) left by previous runs%n", sink.root,
+                sink.s3 != null ? " and s3://" + sink.bucket + "/" + sink.prefix : "", recovered);
+        return sink;
+    }
+
+    @Override
+    public String name() { return "archive"; }
+
+    @Override
+    public ArchiveRow prepare(LogEvent e, String sequenceNumber) {
+        return new ArchiveRow(e.timestamp != null ? e.timestamp.toEpochMilli() : 0L, e.service, e.level, e.message,
+                sequenceNumber);
+    }
+
+    @Override
+    public int sizeOf(ArchiveRow row) {
+        return ROW_OVERHEAD_BYTES + row.key().length() + (row.message() != null ? row.message().length() : 0);
+    }
+
+    @Override
+    public CompletableFuture<Void> write(List<ArchiveRow> items) {
+        return CompletableFuture.failedFuture(new IllegalStateException("Archive sink not bound to a shard"));
+    }
+
+    @Override
+    public LogSink<ArchiveRow> forShard(String shardId) {
+        ShardArchive shard = shards.computeIfAbsent(shardId, id -> {
+            try {
+                Path dir = root.resolve(id);
+                Files.createDirectories(dir);
+                return new ShardArchive(this, id, dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return new ShardSink(shard);
+    }
+
+    /** The archive sink, bound to a shard's journal by {@link #forShard}. */
+    private final class ShardSink implements LogSink<ArchiveRow> {
+        private final ShardArchive shard;
+
+        ShardSink(ShardArchive shard) { this.shard = shard; }
+
+        @Override
+        public String name() { return ArchiveSink.this.name(); }
+
+        @Override
+        public ArchiveRow prepare(LogEvent e, String sequenceNumber) { return ArchiveSink.this.prepare(e, sequenceNumber); }
+
+        @Override
+        public int sizeOf(ArchiveRow row) { return ArchiveSink.this.sizeOf(row); }
+
+        @Override
+        public CompletableFuture<Void> write(List<ArchiveRow> items) {
+            try {
+                shard.append(items);
+                rows.add(items.size());
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException e) {
+                failures.inc();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (ShardArchive shard : shards.values()) shard.tick(now);
+    }
+
+    // called by the shard archives
+
+    boolean fsync() { return fsync; }
+
+    int blockRows() { return blockRows; }
+
+    long segmentBytes() { return segmentBytes; }
+
+    long segmentMillis() { return segmentMillis; }
+
+    ExecutorService executor() { return executor; }
+
+    long nextJournalId() { return journalIds.incrementAndGet(); }
+
+    String nextSegmentId() { return System.currentTimeMillis() + "-" + nonce + "-" + segmentCounter.getAndIncrement(); }
+
+    void failed() { failures.inc(); }
+
+    /** A segment was sealed (on the archive thread): uploads it, if there's a bucket. */
+    void sealed(String shardId, Path segment) {
+        segments.inc();
+        if (s3 != null) upload(shardId, segment);
+    }
+
+    private void upload(String shardId, Path segment) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        uploads.put(segment, done);
+        upload(shardId, segment, 0, done);
+    }
+
+    private void upload(String shardId, Path segment, int attempt, CompletableFuture<Void> done) {
+        PutObjectRequest req = PutObjectRequest.builder().bucket(bucket).key(objectKey(shardId, segment)).build();
+        s3.putObject(req, AsyncRequestBody.fromFile(segment)).whenComplete((r, ex) -> {
+            if (ex == null) {
+                try {
+                    Files.deleteIfExists(segment);
+                } catch (IOException e) {
+                    System.err.printf("Archive %s: uploaded %s but couldn't delete it: %s%n", shardId, segment, e);
+                }
+                uploaded.inc();
+                finish(segment, done);
+                return;
+            }
+            if (attempt < UPLOAD_BACKOFF.maxRetries()) {
+                try {
+                    UPLOAD_BACKOFF.schedule(timer, attempt + 1, () -> upload(shardId, segment, attempt + 1, done));
+                    return;
+                } catch (RejectedExecutionException closing) {
+                    // closing: no more retries in this run
+                }
+            }
+            System.err.printf("Archive %s: couldn't upload %s, kept for the next start: %s%n", shardId, segment, ex);
+            failures.inc();
+            finish(segment, done);
+        });
+    }
+
+    private void finish(Path segment, CompletableFuture<Void> done) {
+        uploads.remove(segment, done);
+        done.complete(null);
+    }
+
+    /** {@code <prefix>/yyyy/MM/dd/<shardId>/<segment>}, dated by the segment's oldest event */
+    private String objectKey(String shardId, Path segment) {
+        String name = segment.getFileName().toString();
+        long[] range = SegmentReader.timeRange(name);
+        String day = DAY.format(Instant.ofEpochMilli(range != null ? range[0] : 0L));
+        return (prefix.isEmpty() ? "" : prefix + "/") + day + "/" + shardId + "/" + name;
+    }
+
+    /**
+     * Seals every shard's segment, with what's still pending, and waits a while for the uploads. Whatever isn't done
+     * by then is picked up on the next start.
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        for (ShardArchive shard : shards.values()) shard.flush();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) System.err.println("Archive: segments still being written");
+            CompletableFuture.allOf(uploads.values().toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            System.err.printf("Archive: %d upload(s) still running, left for the next start%n", uploads.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.printf("Archive: %s%n", e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p> The columnar layout of one block of archived events, before compression. Every column is stored whole, one
+ * after the other, so similar values sit together and compress well: </p>
+ * <pre>
+ * varint rows, long minTs, long maxTs
+ * services: varint count, strings     (the block's dictionary, and its service index)
+ * levels:   varint count, strings
+ * ts:       zigzag varint deltas, from minTs
+ * service:  varint dictionary ids
+ * level:    varint dictionary ids
+ * key:      strings
+ * message:  strings
+ * </pre>
+ * <p> A string is a varint byte length and its UTF-8 bytes; a missing service, level or message is an empty string.
+ * The journal stores its frames in this same layout, uncompressed. </p>
+ */
+final class BlockCodec {
+    private BlockCodec() { }
+
+    static byte[] encode(List<ArchiveRow> rows) {
+        long min = rows.isEmpty() ? 0L : Long.MAX_VALUE;
+        long max = rows.isEmpty() ? 0L : Long.MIN_VALUE;
+        Map<String, Integer> services = new HashMap<>();
+        Map<String, Integer> levels = new HashMap<>();
+        List<String> serviceNames = new ArrayList<>();
+        List<String> levelNames = new ArrayList<>();
+        int[] serviceIds = new int[rows.size()];
+        int[] levelIds = new int[rows.size()];
+        int bytes = 64;
+        for (int i = 0; i < rows.size(); i++) {
+            ArchiveRow r = rows.get(i);
+            min = Math.min(min, r.tsMillis());
+            max = Math.max(max, r.tsMillis());
+            serviceIds[i] = id(services, serviceNames, r.service());
+            levelIds[i] = id(levels, levelNames, r.level());
+            bytes += 16 + length(r.key()) + length(r.message());
+        }
+
+        Out out = new Out(bytes);
+        out.varInt(rows.size());
+        out.fixedLong(min);
+        out.fixedLong(max);
+        out.strings(serviceNames);
+        out.strings(levelNames);
+        long prev = min;
+        for (ArchiveRow r : rows) {
+            long d = r.tsMillis() - prev;
+            out.varLong((d << 1) ^ (d >> 63));
+            prev = r.tsMillis();
+        }
+        for (int id : serviceIds) out.varInt(id);
+        for (int id : levelIds) out.varInt(id);
+        for (ArchiveRow r : rows) out.string(r.key());
+        for (ArchiveRow r : rows) out.string(r.message());
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the head of a block: enough to index it, without decoding its rows.
+     * @param raw the block, uncompressed
+     * @param offset where the block starts in its segment
+     * @param length its length there, header included
+     */
+    static BlockIndex index(byte[] raw, long offset, int length) {
+        In in = new In(raw);
+        int rows = in.varInt();
+        long min = in.fixedLong();
+        long max = in.fixedLong();
+        return new BlockIndex(offset, length, rows, min, max, in.strings());
+    }
+
+    static List<ArchiveRow> decode(byte[] raw) {
+        In in = new In(raw);
+        int rows = in.varInt();
+        long min = in.fixedLong();
+        in.fixedLong();
+        List<String> services = in.strings();
+        List<String> levels = in.strings();
+        long[] ts = new long[rows];
+        long prev = min;
+        for (int i = 0; i < rows; i++) {
+            long z = in.varLong();
+            prev += (z >>> 1) ^ -(z & 1);
+            ts[i] = prev;
+        }
+        int[] serviceIds = new int[rows];
+        for (int i = 0; i < rows; i++) serviceIds[i] = in.varInt();
+        int[] levelIds = new int[rows];
+        for (int i = 0; i < rows; i++) levelIds[i] = in.varInt();
+        String[] keys = new String[rows];
+        for (int i = 0; i < rows; i++) keys[i] = in.string();
+        List<ArchiveRow> out = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            out.add(new ArchiveRow(ts[i], orNull(services.get(serviceIds[i])), orNull(levels.get(levelIds[i])),
+                    orNull(in.string()), keys[i]));
+        }
+        return out;
+    }
+
+    private static int id(Map<String, Integer> ids, List<String> names, String value) {
+        String v = value == null ? "" : value;
+        Integer id = ids.get(v);
+        if (id == null) {
+            id = names.size();
+            ids.put(v, id);
+            names.add(v);
+        }
+        return id;
+    }
+
+    private static int length(String s) { return s == null ? 1 : s.length() + 2; }
+
+    private static String orNull(String s) { return s.isEmpty() ? null : s; }
+
+    /** A growable byte array with the varint and string encodings above. */
+    static final class Out {
+        private byte[] buf;
+        private int size;
+
+        Out(int capacity) { buf = new byte[Math.max(16, capacity)]; }
+
+        void varInt(int v) { varLong(v & 0xffffffffL); }
+
+        void varLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0L) {
+                buf[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void fixedLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) buf[size++] = (byte) (v >>> shift);
+        }
+
+        void string(String s) {
+            byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+            varInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+        }
+
+        void strings(List<String> l) {
+            varInt(l.size());
+            for (String s : l) string(s);
+        }
+
+        byte[] toByteArray() { return Arrays.copyOf(buf, size); }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+        }
+    }
+
+    /** Reads what {@link Out} wrote. */
+    static final class In {
+        private final byte[] buf;
+        private int pos;
+
+        In(byte[] buf) { this.buf = buf; }
+
+        int varInt() { return (int) varLong(); }
+
+        long varLong() {
+            long v = 0L;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                if (b >= 0) return v;
+            }
+        }
+
+        long fixedLong() {
+            long v = 0L;
+            for (int i = 0; i < 8; i++) v = (v << 8) | (buf[pos++] & 0xff);
+            return v;
+        }
+
+        String string() {
+            int n = varInt();
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        List<String> strings() {
+            int n = varInt();
+            List<String> l = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) l.add(string());
+            return l;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import java.util.List;
+
+/**
+ * Where a block is in its segment and what's in it, as kept in the segment's footer.
+ * @param offset where the block starts, header included
+ * @param length its length, header included
+ * @param rows how many events it has
+ * @param minTs its oldest event's timestamp
+ * @param maxTs its newest event's timestamp
+ * @param services every service it has events of ({@code ""} for events without one)
+ */
+public record BlockIndex(long offset, int length, int rows, long minTs, long maxTs, List<String> services) {
+
+    /**
+     * @param service a service, or {@code null} for any
+     * @param fromMillis the start of the time range, inclusive
+     * @param toMillis its end, inclusive
+     * @return whether the block can have events of that service in that range
+     */
+    public boolean matches(String service, long fromMillis, long toMillis) {
+        return maxTs >= fromMillis && minTs <= toMillis && (service == null || services.contains(service));
+    }
+}
@@ -0,0 +1,192 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * <p> A segment being written: {@code <id>.open} in its shard's directory, renamed to
+ * {@code <minTs>-<maxTs>-<id>.lsg} once sealed (so a reader can skip it by its name alone). </p>
+ * <pre>
+ * "LSG1"
+ * block*:  int compressedLength, int rawLength, int crc32c, long journalId, zstd(BlockCodec)
+ * footer:  varint blocks, then per block varlong offset, varint length, varint rows, long minTs, long maxTs,
+ *          strings services
+ * trailer: int footerLength, int footerCrc32c, "LSGF"
+ * </pre>
+ * <p> An open segment has no footer: {@link #recover} rebuilds it from the blocks, up to the first torn or corrupt
+ * one. The journal id of a block tells recovery which journals it already holds. Only the archive thread touches a
+ * segment. </p>
+ */
+final class SegmentFile {
+    static final int MAGIC = 0x4c534731; // "LSG1"
+    static final int FOOTER_MAGIC = 0x4c534746; // "LSGF"
+    static final int BLOCK_HEADER_BYTES = 20;
+    static final int TRAILER_BYTES = 12;
+    static final String OPEN_SUFFIX = ".open";
+    static final String SEALED_SUFFIX = ".lsg";
+    private static final int ZSTD_LEVEL = 3;
+
+    private final Path path;
+    private final String id;
+    private final boolean fsync;
+    private final long createdMillis;
+    private final FileChannel channel;
+    private final List<BlockIndex> blocks = new ArrayList<>();
+    private final Set<Long> journalIds = new HashSet<>();
+    private long size;
+
+    private SegmentFile(Path path, String id, boolean fsync, long createdMillis, FileChannel channel, long size) {
+        this.path = path;
+        this.id = id;
+        this.fsync = fsync;
+        this.createdMillis = createdMillis;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    /**
+     * @param dir the shard's directory
+     * @param id the segment's unique id, see {@code ArchiveSink}
+     */
+    static SegmentFile create(Path dir, String id, boolean fsync) throws IOException {
+        Path path = dir.resolve(id + OPEN_SUFFIX);
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writeFully(ch, ByteBuffer.allocate(4).putInt(0, MAGIC), 0L);
+        return new SegmentFile(path, id, fsync, System.currentTimeMillis(), ch, 4L);
+    }
+
+    /**
+     * Reopens a segment a previous run left open, dropping whatever follows its last valid block.
+     * @param path the {@code .open} file
+     */
+    static SegmentFile recover(Path path, boolean fsync) throws IOException {
+        String name = path.getFileName().toString();
+        String id = name.substring(0, name.length() - OPEN_SUFFIX.length());
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SegmentFile seg = new SegmentFile(path, id, fsync, Files.getLastModifiedTime(path).toMillis(), ch, 4L);
+        long fileSize = ch.size();
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        if (fileSize < 4 || ch.read(magic, 0L) < 4 || magic.getInt(0) != MAGIC) {
+            ch.truncate(0L);
+            writeFully(ch, ByteBuffer.allocate(4).putInt(0, MAGIC), 0L);
+            return seg;
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        CRC32C crc = new CRC32C();
+        long off = 4L;
+        while (off + BLOCK_HEADER_BYTES <= fileSize) {
+            header.clear();
+            readFully(ch, header, off);
+            int zLen = header.getInt(0);
+            int rawLen = header.getInt(4);
+            if (zLen <= 0 || rawLen <= 0 || off + BLOCK_HEADER_BYTES + zLen > fileSize) break;
+            ByteBuffer z = ByteBuffer.allocate(zLen);
+            readFully(ch, z, off + BLOCK_HEADER_BYTES);
+            crc.reset();
+            crc.update(z.array(), 0, zLen);
+            if ((int) crc.getValue() != header.getInt(8)) break;
+            byte[] raw = Zstd.decompress(z.array(), rawLen);
+            seg.blocks.add(BlockCodec.index(raw, off, BLOCK_HEADER_BYTES + zLen));
+            seg.journalIds.add(header.getLong(12));
+            off += BLOCK_HEADER_BYTES + zLen;
+        }
+        ch.truncate(off);
+        seg.size = off;
+        return seg;
+    }
+
+    /**
+     * Compresses the rows into a new block at the end of the segment.
+     * @param journalId the journal they came from
+     */
+    void append(List<ArchiveRow> rows, long journalId) throws IOException {
+        byte[] raw = BlockCodec.encode(rows);
+        byte[] z = Zstd.compress(raw, ZSTD_LEVEL);
+        CRC32C crc = new CRC32C();
+        crc.update(z, 0, z.length);
+        ByteBuffer buf = ByteBuffer.allocate(BLOCK_HEADER_BYTES + z.length)
+                .putInt(z.length).putInt(raw.length).putInt((int) crc.getValue()).putLong(journalId).put(z);
+        buf.flip();
+        writeFully(channel, buf, size);
+        if (fsync) channel.force(false);
+        blocks.add(BlockCodec.index(raw, size, BLOCK_HEADER_BYTES + z.length));
+        journalIds.add(journalId);
+        size += BLOCK_HEADER_BYTES + z.length;
+    }
+
+    /**
+     * Writes the footer, forces the file to disk and renames it. An empty segment is deleted instead.
+     * @return the sealed file, or {@code null} if the segment was empty
+     */
+    Path seal() throws IOException {
+        if (blocks.isEmpty()) {
+            channel.close();
+            Files.deleteIfExists(path);
+            return null;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        BlockCodec.Out out = new BlockCodec.Out(64 * blocks.size());
+        out.varInt(blocks.size());
+        for (BlockIndex b : blocks) {
+            out.varLong(b.offset());
+            out.varInt(b.length());
+            out.varInt(b.rows());
+            out.fixedLong(b.minTs());
+            out.fixedLong(b.maxTs());
+            out.strings(b.services());
+            min = Math.min(min, b.minTs());
+            max = Math.max(max, b.maxTs());
+        }
+        byte[] footer = out.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(footer, 0, footer.length);
+        ByteBuffer buf = ByteBuffer.allocate(footer.length + TRAILER_BYTES)
+                .put(footer).putInt(footer.length).putInt((int) crc.getValue()).putInt(FOOTER_MAGIC);
+        buf.flip();
+        writeFully(channel, buf, size);
+        // always forced: the journals it replaces are deleted next
+        channel.force(true);
+        channel.close();
+        Path sealed = path.resolveSibling(min + "-" + max + "-" + id + SEALED_SUFFIX);
+        return Files.move(path, sealed, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Closes the file as it is, to be recovered on the next start. */
+    void abandon() {
+        try { channel.close(); } catch (IOException ignored) { }
+    }
+
+    boolean isEmpty() { return blocks.isEmpty(); }
+
+    long size() { return size; }
+
+    long createdMillis() { return createdMillis; }
+
+    /** @return the journals whose rows are in this segment */
+    Set<Long> journalIds() { return journalIds; }
+
+    static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) throw new IOException("Unexpected end of file");
+            position += n;
+        }
+    }
+}
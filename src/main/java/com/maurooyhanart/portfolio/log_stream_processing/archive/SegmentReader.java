@@ -0,0 +1,160 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import com.github.luben.zstd.Zstd;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32C;
+
+/**
+ * <p> Reads a sealed segment (see {@link SegmentFile} for the layout): the footer first, then only the blocks a
+ * query needs, by offset. From S3 every read is a ranged GET, so a query skipping most blocks downloads little more
+ * than their index. </p>
+ */
+public final class SegmentReader implements AutoCloseable {
+    // one read gets the trailer and, most of the time, the whole footer
+    private static final int TAIL_BYTES = 64 * 1024;
+
+    private final Source source;
+    private final List<BlockIndex> blocks;
+
+    /** Random access to a segment's bytes. */
+    public interface Source extends AutoCloseable {
+        long size() throws IOException;
+
+        byte[] read(long offset, int length) throws IOException;
+
+        @Override
+        default void close() throws IOException { }
+    }
+
+    private SegmentReader(Source source, List<BlockIndex> blocks) {
+        this.source = source;
+        this.blocks = blocks;
+    }
+
+    /** @return a local segment file */
+    public static Source file(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        return new Source() {
+            @Override
+            public long size() throws IOException { return ch.size(); }
+
+            @Override
+            public byte[] read(long offset, int length) throws IOException {
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                SegmentFile.readFully(ch, buf, offset);
+                return buf.array();
+            }
+
+            @Override
+            public void close() throws IOException { ch.close(); }
+        };
+    }
+
+    /**
+     * @param size the object's size, as listed
+     * @return a segment object, read with ranged GETs
+     */
+    public static Source s3(S3AsyncClient s3, String bucket, String key, long size) {
+        return new Source() {
+            @Override
+            public long size() { return size; }
+
+            @Override
+            public byte[] read(long offset, int length) throws IOException {
+                GetObjectRequest req = GetObjectRequest.builder().bucket(bucket).key(key)
+                        .range("bytes=" + offset + "-" + (offset + length - 1)).build();
+                try {
+                    return s3.getObject(req, AsyncResponseTransformer.toBytes()).join().asByteArray();
+                } catch (CompletionException e) {
+                    throw new IOException("GET s3://" + bucket + "/" + key + " failed", e.getCause());
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the segment's block index.
+     * @throws IOException if it can't be read, or isn't a sealed segment
+     */
+    public static SegmentReader open(Source source) throws IOException {
+        long size = source.size();
+        if (size < 4 + SegmentFile.TRAILER_BYTES) throw new IOException("Not a segment: too small");
+        int tailLen = (int) Math.min(size, TAIL_BYTES);
+        byte[] tail = source.read(size - tailLen, tailLen);
+        ByteBuffer trailer = ByteBuffer.wrap(tail, tailLen - SegmentFile.TRAILER_BYTES, SegmentFile.TRAILER_BYTES);
+        int footerLen = trailer.getInt();
+        int footerCrc = trailer.getInt();
+        if (trailer.getInt() != SegmentFile.FOOTER_MAGIC || footerLen <= 0
+                || footerLen > size - 4 - SegmentFile.TRAILER_BYTES) {
+            throw new IOException("Not a sealed segment: bad trailer");
+        }
+        byte[] footer = footerLen + SegmentFile.TRAILER_BYTES <= tailLen
+                ? Arrays.copyOfRange(tail, tailLen - SegmentFile.TRAILER_BYTES - footerLen, tailLen - SegmentFile.TRAILER_BYTES)
+                : source.read(size - SegmentFile.TRAILER_BYTES - footerLen, footerLen);
+        CRC32C crc = new CRC32C();
+        crc.update(footer, 0, footer.length);
+        if ((int) crc.getValue() != footerCrc) throw new IOException("Corrupt segment footer");
+
+        BlockCodec.In in = new BlockCodec.In(footer);
+        int n = in.varInt();
+        List<BlockIndex> blocks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long offset = in.varLong();
+            int length = in.varInt();
+            int rows = in.varInt();
+            long min = in.fixedLong();
+            long max = in.fixedLong();
+            blocks.add(new BlockIndex(offset, length, rows, min, max, in.strings()));
+        }
+        return new SegmentReader(source, List.copyOf(blocks));
+    }
+
+    public List<BlockIndex> blocks() { return blocks; }
+
+    /**
+     * @param block one of {@link #blocks()}
+     * @return its rows, in the order they were archived
+     * @throws IOException if it can't be read, or fails its CRC
+     */
+    public List<ArchiveRow> read(BlockIndex block) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(source.read(block.offset(), block.length()));
+        int zLen = b.getInt(0);
+        int rawLen = b.getInt(4);
+        if (zLen != block.length() - SegmentFile.BLOCK_HEADER_BYTES) throw new IOException("Corrupt block header");
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), SegmentFile.BLOCK_HEADER_BYTES, zLen);
+        if ((int) crc.getValue() != b.getInt(8)) throw new IOException("Corrupt block at " + block.offset());
+        byte[] z = Arrays.copyOfRange(b.array(), SegmentFile.BLOCK_HEADER_BYTES, block.length());
+        return BlockCodec.decode(Zstd.decompress(z, rawLen));
+    }
+
+    /**
+     * @param fileName a sealed segment's file (or object) name
+     * @return its {@code {minTs, maxTs}}, or {@code null} if it isn't a sealed segment's name
+     */
+    public static long[] timeRange(String fileName) {
+        if (!fileName.endsWith(SegmentFile.SEALED_SUFFIX)) return null;
+        String[] parts = fileName.split("-", 3);
+        if (parts.length < 3) return null;
+        try {
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException { source.close(); }
+}
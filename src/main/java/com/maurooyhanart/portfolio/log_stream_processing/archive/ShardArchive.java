@@ -0,0 +1,225 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * <p> One shard's archive, process-wide (every processor of the shard appends to the same one). </p>
+ * <ul>
+ *     <li>the record thread appends each flush to the current journal, {@code journal-<id>.log}, before the flush
+ *     counts as written: that's what the checkpoint waits for. A frame is {@code int length, int crc32c} and the
+ *     rows in {@link BlockCodec}'s layout, uncompressed,</li>
+ *     <li>every {@code ARCHIVE_BLOCK_ROWS} rows the journal is closed and its rows become a block, compressed and
+ *     appended to the open segment on the archive thread, and the journal is deleted. Compression never runs on a
+ *     record thread,</li>
+ *     <li>the segment is sealed (and uploaded) once it's {@code ARCHIVE_SEGMENT_MB} big or {@code ARCHIVE_SEGMENT_SEC}
+ *     old.</li>
+ * </ul>
+ * <p> A crash loses nothing that was acknowledged: on the next start, {@link #recover} seals the open segment and
+ * turns the journals it doesn't hold into a segment of their own. </p>
+ */
+final class ShardArchive {
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final int FRAME_HEADER_BYTES = 8;
+
+    private final ArchiveSink owner;
+    private final String shardId;
+    private final Path dir;
+
+    // record-thread side, under the lock
+    private FileChannel journal;
+    private long journalId;
+    private long journalSize;
+    private List<ArchiveRow> pending = new ArrayList<>();
+    private long pendingSince;
+
+    // archive-thread side
+    private SegmentFile segment;
+    private volatile long segmentCreated;
+
+    ShardArchive(ArchiveSink owner, String shardId, Path dir) {
+        this.owner = owner;
+        this.shardId = shardId;
+        this.dir = dir;
+    }
+
+    /** Journals one flush, then hands its rows over to the archive thread once there are enough for a block. */
+    synchronized void append(List<ArchiveRow> rows) throws IOException {
+        if (journal == null) {
+            journalId = owner.nextJournalId();
+            journal = FileChannel.open(journalPath(dir, journalId), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            journalSize = 0L;
+        }
+        byte[] payload = BlockCodec.encode(rows);
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length)
+                .putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        frame.flip();
+        SegmentFile.writeFully(journal, frame, journalSize);
+        if (owner.fsync()) journal.force(false);
+        journalSize += frame.capacity();
+
+        if (pending.isEmpty()) pendingSince = System.currentTimeMillis();
+        pending.addAll(rows);
+        if (pending.size() >= owner.blockRows()) cut();
+    }
+
+    /** Closes the current journal and queues its rows as a block. Called under the lock. */
+    private void cut() throws IOException {
+        if (pending.isEmpty()) return;
+        List<ArchiveRow> rows = pending;
+        long id = journalId;
+        pending = new ArrayList<>();
+        journal.close();
+        journal = null;
+        owner.executor().execute(() -> appendBlock(rows, id));
+    }
+
+    /** Cuts and seals what's older than {@code ARCHIVE_SEGMENT_SEC}. Called by the sink's timer. */
+    void tick(long now) {
+        long openSince = segmentCreated;
+        synchronized (this) {
+            boolean due = (openSince > 0 && now - openSince >= owner.segmentMillis())
+                    || (!pending.isEmpty() && now - pendingSince >= owner.segmentMillis());
+            if (!due) return;
+            try {
+                cut();
+            } catch (IOException e) {
+                System.err.printf("Archive %s: couldn't close journal %d: %s%n", shardId, journalId, e);
+            }
+        }
+        owner.executor().execute(this::seal);
+    }
+
+    /** Cuts and seals everything, on shutdown; the archive thread still has to run what this queues. */
+    void flush() {
+        synchronized (this) {
+            try {
+                cut();
+            } catch (IOException e) {
+                System.err.printf("Archive %s: couldn't close journal %d: %s%n", shardId, journalId, e);
+            }
+        }
+        owner.executor().execute(this::seal);
+    }
+
+    // archive thread
+
+    private void appendBlock(List<ArchiveRow> rows, long id) {
+        try {
+            if (segment == null) {
+                segment = SegmentFile.create(dir, owner.nextSegmentId(), owner.fsync());
+                segmentCreated = segment.createdMillis();
+            }
+            segment.append(rows, id);
+            // the block is in the segment (and forced with ARCHIVE_FSYNC), the journal isn't needed anymore
+            Files.deleteIfExists(journalPath(dir, id));
+            if (segment.size() >= owner.segmentBytes()) seal();
+        } catch (IOException e) {
+            System.err.printf("Archive %s: couldn't append journal %d, kept for the next start: %s%n", shardId, id, e);
+            owner.failed();
+            abandon();
+        }
+    }
+
+    private void seal() {
+        if (segment == null) return;
+        try {
+            Path sealed = segment.seal();
+            if (sealed != null) owner.sealed(shardId, sealed);
+        } catch (IOException e) {
+            System.err.printf("Archive %s: couldn't seal segment, left open for the next start: %s%n", shardId, e);
+            owner.failed();
+            segment.abandon();
+        }
+        segment = null;
+        segmentCreated = 0L;
+    }
+
+    /** Leaves the segment open on disk, for {@link #recover}; the next block starts a new one. */
+    private void abandon() {
+        if (segment != null) segment.abandon();
+        segment = null;
+        segmentCreated = 0L;
+    }
+
+    /**
+     * Seals what a previous run left in a shard's directory: open segments, then journals none of them holds.
+     * @return every sealed segment in the directory, old and new
+     */
+    static List<Path> recover(ArchiveSink owner, Path dir) throws IOException {
+        List<Path> opened = new ArrayList<>();
+        TreeMap<Long, Path> journals = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                String name = f.getFileName().toString();
+                if (name.endsWith(SegmentFile.OPEN_SUFFIX)) opened.add(f);
+                else if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX)) {
+                    journals.put(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())), f);
+                }
+            }
+        }
+
+        Set<Long> held = new HashSet<>();
+        for (Path f : opened) {
+            SegmentFile seg = SegmentFile.recover(f, owner.fsync());
+            seg.seal();
+            held.addAll(seg.journalIds());
+        }
+        for (Long id : held) {
+            Path j = journals.remove(id);
+            if (j != null) Files.delete(j);
+        }
+
+        SegmentFile seg = null;
+        for (Map.Entry<Long, Path> j : journals.entrySet()) {
+            List<ArchiveRow> rows = readJournal(j.getValue());
+            if (rows.isEmpty()) continue;
+            if (seg == null) seg = SegmentFile.create(dir, owner.nextSegmentId(), owner.fsync());
+            seg.append(rows, j.getKey());
+        }
+        if (seg != null) seg.seal();
+        // only now: until the segment is sealed, the journals are what has the rows
+        for (Path j : journals.values()) Files.delete(j);
+
+        List<Path> sealed = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(f -> f.getFileName().toString().endsWith(SegmentFile.SEALED_SUFFIX)).sorted().forEach(sealed::add);
+        }
+        return sealed;
+    }
+
+    /** @return the rows of every whole frame of a journal, up to the first torn or corrupt one */
+    private static List<ArchiveRow> readJournal(Path path) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        List<ArchiveRow> rows = new ArrayList<>();
+        CRC32C crc = new CRC32C();
+        while (buf.remaining() >= FRAME_HEADER_BYTES) {
+            int len = buf.getInt(buf.position());
+            if (len <= 0 || buf.remaining() - FRAME_HEADER_BYTES < len) break;
+            crc.reset();
+            crc.update(buf.array(), buf.position() + FRAME_HEADER_BYTES, len);
+            if ((int) crc.getValue() != buf.getInt(buf.position() + 4)) break;
+            byte[] payload = new byte[len];
+            buf.position(buf.position() + FRAME_HEADER_BYTES).get(payload);
+            rows.addAll(BlockCodec.decode(payload));
+        }
+        return rows;
+    }
+
+    private static Path journalPath(Path dir, long id) { return dir.resolve(JOURNAL_PREFIX + id + JOURNAL_SUFFIX); }
+}
@@ -0,0 +1,145 @@
+package com.maurooyhanart.portfolio.log_stream_processing.aws;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientAsyncConfiguration;
+import software.amazon.awssdk.core.client.config.SdkAdvancedAsyncClientOption;
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.Http2Configuration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.eventbridge.EventBridgeAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p> Process-wide registry of the AWS clients. It's created once by {@code Main} and shared by KCL and every shard
+ * processor, so that a lease rebalance doesn't build (and leak) new clients, connection pools and TLS sessions. </p>
+ * <p> There is one HTTP client per service, tuned with {@link AppConfig#httpMaxConnections()} and
+ * {@link AppConfig#httpConnectionMaxIdleMs()}, with TCP keep-alive on. The SDK doesn't close HTTP clients it didn't
+ * build, so {@link #close()} closes them after the service clients. </p>
+ * <p> With enhanced fan-out ({@code KCL_RETRIEVAL=fanout}) the Kinesis client speaks HTTP/2: {@code SubscribeToShard}
+ * pushes records over one long-lived stream per shard, and every shard's subscription shares the connection. </p>
+ * <p> The S3 client is only built for the cold archive, when {@code ARCHIVE_S3_BUCKET} is set. With
+ * {@code ARCHIVE_S3_ENDPOINT} it talks to that endpoint instead (e.g. MinIO), with path-style addressing. </p>
+ * <p> With {@code THREADS=virtual}, the clients complete their futures (so run the sinks' response callbacks) on
+ * virtual threads instead of the SDK's bounded pool. </p>
+ */
+public final class AwsClients implements AutoCloseable {
+    private final SdkAsyncHttpClient dynamoHttp;
+    private final SdkAsyncHttpClient kinesisHttp;
+    private final SdkAsyncHttpClient cloudWatchHttp;
+    private final SdkAsyncHttpClient eventBridgeHttp;
+    // null: no archive bucket
+    private final SdkAsyncHttpClient s3Http;
+
+    private final DynamoDbAsyncClient dynamo;
+    private final KinesisAsyncClient kinesis;
+    private final CloudWatchAsyncClient cloudWatch;
+    private final EventBridgeAsyncClient eventBridge;
+    private final S3AsyncClient s3;
+    // null: the SDK's own pool
+    private final ExecutorService completions;
+
+    private AwsClients(AppConfig config) {
+        Region region = Region.of(config.awsRegion());
+        DefaultCredentialsProvider creds = DefaultCredentialsProvider.create();
+
+        this.dynamoHttp = asyncHttp(config);
+        this.kinesisHttp = config.retrieval().equals("fanout") ? http2(config) : asyncHttp(config);
+        this.cloudWatchHttp = asyncHttp(config);
+        this.eventBridgeHttp = asyncHttp(config);
+
+        this.completions = Threads.virtual(config) ? Threads.perTask("sdk-async", true) : null;
+        ClientAsyncConfiguration async = completions == null ? ClientAsyncConfiguration.builder().build()
+                : ClientAsyncConfiguration.builder()
+                        .advancedOption(SdkAdvancedAsyncClientOption.FUTURE_COMPLETION_EXECUTOR, completions)
+                        .build();
+
+        this.dynamo = DynamoDbAsyncClient.builder().region(region).credentialsProvider(creds).httpClient(dynamoHttp).asyncConfiguration(async).build();
+        this.kinesis = KinesisAsyncClient.builder().region(region).credentialsProvider(creds).httpClient(kinesisHttp).asyncConfiguration(async).build();
+        this.cloudWatch = CloudWatchAsyncClient.builder().region(region).credentialsProvider(creds).httpClient(cloudWatchHttp).asyncConfiguration(async).build();
+        this.eventBridge = EventBridgeAsyncClient.builder().region(region).credentialsProvider(creds).httpClient(eventBridgeHttp).asyncConfiguration(async).build();
+
+        if (config.archiveS3Bucket().isBlank()) {
+            this.s3Http = null;
+            this.s3 = null;
+        } else {
+            this.s3Http = asyncHttp(config);
+            S3AsyncClientBuilder s3Builder = S3AsyncClient.builder().region(region).credentialsProvider(creds).httpClient(s3Http).asyncConfiguration(async);
+            if (!config.archiveS3Endpoint().isBlank()) {
+                s3Builder.endpointOverride(URI.create(config.archiveS3Endpoint())).forcePathStyle(true);
+            }
+            this.s3 = s3Builder.build();
+        }
+    }
+
+    public static AwsClients create(AppConfig config) {
+        return new AwsClients(config);
+    }
+
+    private static SdkAsyncHttpClient asyncHttp(AppConfig config) {
+        return NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(config.httpMaxConnections())
+                .connectionMaxIdleTime(Duration.ofMillis(config.httpConnectionMaxIdleMs()))
+                .tcpKeepAlive(true)
+                .build();
+    }
+
+    /** What KCL's own {@code KinesisClientUtil} sets up for fan-out, with our idle timeout and keep-alive. */
+    private static SdkAsyncHttpClient http2(AppConfig config) {
+        return NettyNioAsyncHttpClient.builder()
+                .protocol(Protocol.HTTP2)
+                // one stream per subscribed shard, all on the same connections
+                .maxConcurrency(Integer.MAX_VALUE)
+                .http2Configuration(Http2Configuration.builder()
+                        .initialWindowSize(512 * 1024)
+                        .healthCheckPingPeriod(Duration.ofSeconds(10))
+                        .build())
+                .connectionMaxIdleTime(Duration.ofMillis(config.httpConnectionMaxIdleMs()))
+                .tcpKeepAlive(true)
+                .build();
+    }
+
+    public DynamoDbAsyncClient dynamo() { return dynamo; }
+
+    public KinesisAsyncClient kinesis() { return kinesis; }
+
+    public CloudWatchAsyncClient cloudWatch() { return cloudWatch; }
+
+    public EventBridgeAsyncClient eventBridge() { return eventBridge; }
+
+    /** @return the archive's S3 client, or {@code null} if {@code ARCHIVE_S3_BUCKET} isn't set */
+    public S3AsyncClient s3() { return s3; }
+
+    @Override
+    public void close() {
+        closeQuietly(dynamo);
+        closeQuietly(kinesis);
+        closeQuietly(cloudWatch);
+        closeQuietly(eventBridge);
+        if (s3 != null) closeQuietly(s3);
+        closeQuietly(dynamoHttp);
+        closeQuietly(kinesisHttp);
+        closeQuietly(cloudWatchHttp);
+        closeQuietly(eventBridgeHttp);
+        if (s3Http != null) closeQuietly(s3Http);
+        // the SDK doesn't shut down an executor it didn't build either
+        if (completions != null) completions.shutdown();
+    }
+
+    private static void closeQuietly(AutoCloseable c) {
+        try { c.close(); } catch (Exception e) {
+            System.err.printf("Failed to close %s: %s%n", c.getClass().getSimpleName(), e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.maurooyhanart.portfolio.log_stream_processing.concurrent;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Exponential backoff with jitter, the one every retry of the consumer goes through: the {@code n}th retry waits
+ * {@code min(max, base * 2^n)} plus a random {@code [0, base)}, so that shards failing together don't retry
+ * together. </p>
+ * <ul>
+ *     <li>{@link #run} retries a blocking action on the calling thread, sleeping in between. Used for checkpoints,
+ *     which KCL wants on the record thread (a virtual one with {@code THREADS=virtual}, where sleeping is cheap),</li>
+ *     <li>{@link #schedule} is for the asynchronous sink calls: the retry is put on a timer instead of sleeping, and
+ *     the caller keeps track of the attempts.</li>
+ * </ul>
+ */
+public final class Backoff {
+    /** Checkpoints: a handful of quick retries, KCL's lease may be gone anyway. */
+    public static final Backoff CHECKPOINT = new Backoff(5, 200L, 2500L);
+
+    private final int maxRetries;
+    private final long baseMillis;
+    private final long maxMillis;
+
+    /**
+     * @param maxRetries how many times an action is retried after its first attempt
+     * @param baseMillis the first retry's wait, and the jitter's range
+     * @param maxMillis the longest wait, jitter aside
+     */
+    public Backoff(int maxRetries, long baseMillis, long maxMillis) {
+        this.maxRetries = maxRetries;
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    public int maxRetries() { return maxRetries; }
+
+    /**
+     * @param retry which retry this is, from 1
+     * @return how long to wait before it
+     */
+    public long delayMillis(int retry) {
+        long exp = baseMillis << Math.min(retry, 30);
+        return Math.min(maxMillis, exp) + ThreadLocalRandom.current().nextLong(0, baseMillis);
+    }
+
+    /**
+     * Schedules a retry after its backoff.
+     * @param timer the timer to run it on
+     * @param retry which retry this is, from 1
+     * @param task the retry
+     * @return the scheduled retry
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService timer, int retry, Runnable task) {
+        return timer.schedule(task, delayMillis(retry), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs an action, and retries it while it throws, up to {@link #maxRetries()} times.
+     * @param action the action to run
+     * @throws RuntimeException what the last attempt threw, or one wrapping the {@link InterruptedException} if the
+     * thread is interrupted while waiting for a retry (the interrupt flag is set again)
+     */
+    public void run(Runnable action) {
+        for (int retry = 0; ; retry++) {
+            try {
+                action.run();
+                return;
+            } catch (RuntimeException ex) {
+                if (retry == maxRetries) throw ex;
+                try {
+                    Thread.sleep(delayMillis(retry + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    RuntimeException interrupted = new RuntimeException("Interrupted while waiting for a retry", ie);
+                    interrupted.addSuppressed(ex);
+                    throw interrupted;
+                }
+            }
+        }
+    }
+}
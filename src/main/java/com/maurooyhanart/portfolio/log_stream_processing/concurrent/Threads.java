@@ -0,0 +1,98 @@
+package com.maurooyhanart.portfolio.log_stream_processing.concurrent;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p> Where the consumer's threads come from, by execution mode ({@code THREADS}): </p>
+ * <ul>
+ *     <li>{@code platform} (the default): what it always was, daemon platform threads,</li>
+ *     <li>{@code virtual}: virtual threads (Java 21+) for KCL's shard record processors, the AWS clients' response
+ *     callbacks and the sinks' retry timers. A shard thread waiting on its checkpoint backoff, a full flush
+ *     pipeline or a forced flush then doesn't hold a carrier thread, so a worker can run many more shards without
+ *     a bigger pool.</li>
+ * </ul>
+ * <p> The build targets Java 17 by default, so the Java 21 API is looked up reflectively; asking for virtual threads
+ * on an older JRE fails at startup. Build with {@code -Pjava21} to target 21 directly. </p>
+ */
+public final class Threads {
+    private Threads() { }
+
+    /**
+     * @param config the app config
+     * @return whether {@link AppConfig#threads()} asks for virtual threads
+     * @throws IllegalArgumentException if it's unknown
+     * @throws IllegalStateException if it's {@code virtual} on a JRE older than 21
+     */
+    public static boolean virtual(AppConfig config) {
+        return switch (config.threads()) {
+            case "platform" -> false;
+            case "virtual" -> {
+                if (Runtime.version().feature() < 21) {
+                    throw new IllegalStateException("THREADS=virtual needs Java 21, this is " + Runtime.version());
+                }
+                yield true;
+            }
+            default -> throw new IllegalArgumentException("Unknown THREADS: " + config.threads());
+        };
+    }
+
+    /**
+     * @param prefix the threads' name prefix
+     * @param virtual virtual threads, or daemon platform threads
+     * @return a factory of threads named {@code prefix-N}
+     */
+    public static ThreadFactory factory(String prefix, boolean virtual) {
+        if (virtual) return virtualFactory(prefix);
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @param prefix the threads' name prefix
+     * @param virtual whether to start a virtual thread per task, or to pool platform threads
+     * @return an executor that never queues a task behind another one
+     */
+    public static ExecutorService perTask(String prefix, boolean virtual) {
+        if (!virtual) return Executors.newCachedThreadPool(factory(prefix, false));
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, virtualFactory(prefix));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads aren't available", e);
+        }
+    }
+
+    /**
+     * @param name the timer thread's name
+     * @param virtual whether the timer (and the tasks it runs) is a virtual thread
+     * @return a single-threaded timer
+     */
+    public static ScheduledExecutorService timer(String name, boolean virtual) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, factory(name, virtual));
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /** {@code Thread.ofVirtual().name(prefix + "-", 0).factory()} */
+    private static ThreadFactory virtualFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+            return (ThreadFactory) type.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads aren't available", e);
+        }
+    }
+}
@@ -1,26 +1,170 @@
 package com.maurooyhanart.portfolio.log_stream_processing.config;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
 public record AppConfig(
         String streamName,
         String applicationName,
         String awsRegion,
         String dynamoTable,
         String eventBus,
-        boolean alertsBlockCheckpoint
+        boolean alertsBlockCheckpoint,
+        int ddbMaxInFlight,
+        int httpMaxConnections,
+        long httpConnectionMaxIdleMs,
+        long alertCoalesceMs,
+        int ddbMaxConcurrency,
+        double ddbMaxBatchesPerSecond,
+        int ddbPkBuckets,
+        Map<String, Integer> ddbPkBucketOverrides,
+        int ddbPkMaxBuckets,
+        boolean ddbPkSpreadMax,
+        String spillDir,
+        int spillSegmentBytes,
+        boolean spillFsync,
+        long spillMaxBacklogBytes,
+        int spillReplayMaxInFlight,
+        List<String> sinks,
+        long memorySinkLatencyMs,
+        double memorySinkThrottleRate,
+        double memorySinkFailureRate,
+        int metricsPort,
+        String dlq,
+        String dlqDir,
+        long dlqFileMaxBytes,
+        String dlqTable,
+        int dlqMaxFlushAttempts,
+        String retrieval,
+        String efoConsumerName,
+        int pollingMaxRecords,
+        long pollingIdleMs,
+        long pollingEmptyBackoffMs,
+        boolean rollups,
+        String rollupTable,
+        long rollupWindowMs,
+        int rollupSlidingPanes,
+        int rollupTopN,
+        int rollupMaxKeys,
+        int shardParallelism,
+        String threads,
+        String rulesFile,
+        long rulesReloadMs,
+        int dedupCacheKeys,
+        String archiveDir,
+        int archiveBlockRows,
+        long archiveSegmentBytes,
+        long archiveSegmentMs,
+        boolean archiveFsync,
+        String archiveS3Bucket,
+        String archiveS3Prefix,
+        String archiveS3Endpoint
 ) {
     public static AppConfig fromEnv() {
+        return from(System::getenv);
+    }
+
+    /**
+     * Builds the config from any source of variables, using the same names and defaults as {@link #fromEnv()}.
+     * Handy for tools and benchmarks, e.g. {@code AppConfig.from(Map.of("SPILL_DIR", "/tmp/spill")::get)}.
+     * @param env looks up a variable; returns {@code null} when it's not set
+     * @return the config
+     */
+    public static AppConfig from(Function<String, String> env) {
         return new AppConfig(
-                envOr("KINESIS_STREAM", "log-stream"),
-                envOr("KCL_APP_NAME", "log-stream-consumer"),
-                envOr("AWS_REGION", "us-east-2"),
-                envOr("DDB_TABLE", "log-stream-logs"),
-                envOr("EVENT_BUS", "default"),
-                Boolean.parseBoolean(envOr("EVENTBRIDGE_REQUIRED", "false"))
+                envOr(env, "KINESIS_STREAM", "log-stream"),
+                envOr(env, "KCL_APP_NAME", "log-stream-consumer"),
+                envOr(env, "AWS_REGION", "us-east-2"),
+                envOr(env, "DDB_TABLE", "log-stream-logs"),
+                envOr(env, "EVENT_BUS", "default"),
+                Boolean.parseBoolean(envOr(env, "EVENTBRIDGE_REQUIRED", "false")),
+                Integer.parseInt(envOr(env, "DDB_MAX_IN_FLIGHT", "4")),
+                Integer.parseInt(envOr(env, "HTTP_MAX_CONNECTIONS", "128")),
+                Long.parseLong(envOr(env, "HTTP_KEEP_ALIVE_MS", "60000")),
+                Long.parseLong(envOr(env, "ALERT_COALESCE_MS", "1000")),
+                Integer.parseInt(envOr(env, "DDB_MAX_CONCURRENCY", "64")),
+                Double.parseDouble(envOr(env, "DDB_MAX_BATCHES_PER_SEC", "1000")),
+                Integer.parseInt(envOr(env, "DDB_PK_BUCKETS", "16")),
+                intMap(envOr(env, "DDB_PK_BUCKETS_OVERRIDES", "")),
+                Integer.parseInt(envOr(env, "DDB_PK_MAX_BUCKETS", "256")),
+                Boolean.parseBoolean(envOr(env, "DDB_PK_SPREAD_MAX", "false")),
+                envOr(env, "SPILL_DIR", ""),
+                Integer.parseInt(envOr(env, "SPILL_SEGMENT_MB", "64")) * 1024 * 1024,
+                Boolean.parseBoolean(envOr(env, "SPILL_FSYNC", "false")),
+                Long.parseLong(envOr(env, "SPILL_MAX_BACKLOG_MB", "4096")) * 1024L * 1024L,
+                Integer.parseInt(envOr(env, "SPILL_REPLAY_MAX_IN_FLIGHT", "8")),
+                list(envOr(env, "SINKS", "dynamodb,eventbridge")),
+                Long.parseLong(envOr(env, "MEMORY_SINK_LATENCY_MS", "5")),
+                Double.parseDouble(envOr(env, "MEMORY_SINK_THROTTLE_RATE", "0")),
+                Double.parseDouble(envOr(env, "MEMORY_SINK_FAILURE_RATE", "0")),
+                Integer.parseInt(envOr(env, "METRICS_PORT", "9404")),
+                envOr(env, "DLQ", "none").trim().toLowerCase(),
+                envOr(env, "DLQ_DIR", "dlq"),
+                Long.parseLong(envOr(env, "DLQ_FILE_MAX_MB", "64")) * 1024L * 1024L,
+                envOr(env, "DLQ_TABLE", "log-stream-dlq"),
+                Integer.parseInt(envOr(env, "DLQ_MAX_FLUSH_ATTEMPTS", "10")),
+                envOr(env, "KCL_RETRIEVAL", "polling").trim().toLowerCase(),
+                envOr(env, "EFO_CONSUMER_NAME", ""),
+                Integer.parseInt(envOr(env, "POLLING_MAX_RECORDS", "1000")),
+                Long.parseLong(envOr(env, "POLLING_IDLE_MS", "0")),
+                Long.parseLong(envOr(env, "POLLING_EMPTY_BACKOFF_MS", "1000")),
+                Boolean.parseBoolean(envOr(env, "ROLLUPS", "false")),
+                envOr(env, "ROLLUP_TABLE", "log-stream-rollups"),
+                Long.parseLong(envOr(env, "ROLLUP_WINDOW_SEC", "60")) * 1000L,
+                Integer.parseInt(envOr(env, "ROLLUP_SLIDING_PANES", "5")),
+                Integer.parseInt(envOr(env, "ROLLUP_TOP_N", "5")),
+                Integer.parseInt(envOr(env, "ROLLUP_MAX_KEYS", "256")),
+                Integer.parseInt(envOr(env, "SHARD_PARALLELISM", "1")),
+                envOr(env, "THREADS", "platform").trim().toLowerCase(),
+                envOr(env, "RULES_FILE", ""),
+                Long.parseLong(envOr(env, "RULES_RELOAD_MS", "5000")),
+                Integer.parseInt(envOr(env, "DEDUP_CACHE_KEYS", "0")),
+                envOr(env, "ARCHIVE_DIR", "archive"),
+                Integer.parseInt(envOr(env, "ARCHIVE_BLOCK_ROWS", "8192")),
+                Long.parseLong(envOr(env, "ARCHIVE_SEGMENT_MB", "64")) * 1024L * 1024L,
+                Long.parseLong(envOr(env, "ARCHIVE_SEGMENT_SEC", "900")) * 1000L,
+                Boolean.parseBoolean(envOr(env, "ARCHIVE_FSYNC", "false")),
+                envOr(env, "ARCHIVE_S3_BUCKET", ""),
+                envOr(env, "ARCHIVE_S3_PREFIX", "logs"),
+                envOr(env, "ARCHIVE_S3_ENDPOINT", "")
         );
     }
 
-    private static String envOr(String key, String def) {
-        String v = System.getenv(key);
+    /**
+     * @param s comma separated {@code key=value} pairs, e.g. {@code api-gateway=64,auth=32}
+     * @return the parsed map
+     */
+    private static Map<String, Integer> intMap(String s) {
+        Map<String, Integer> m = new HashMap<>();
+        for (String pair : s.split(",")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            m.put(pair.substring(0, eq).trim(), Integer.parseInt(pair.substring(eq + 1).trim()));
+        }
+        return m;
+    }
+
+    /**
+     * @param s comma separated values, e.g. {@code dynamodb,eventbridge,dynamodb:Audit-Logs}
+     * @return the trimmed, non-blank values, in order, lowercased up to their first {@code :} (table names are case
+     * sensitive)
+     */
+    private static List<String> list(String s) {
+        List<String> l = new ArrayList<>();
+        for (String v : s.split(",")) {
+            if (v.isBlank()) continue;
+            v = v.trim();
+            int colon = v.indexOf(':');
+            l.add(colon < 0 ? v.toLowerCase() : v.substring(0, colon).toLowerCase() + v.substring(colon));
+        }
+        return List.copyOf(l);
+    }
+
+    private static String envOr(Function<String, String> env, String key, String def) {
+        String v = env.apply(key);
         return v == null || v.isBlank() ? def : v;
     }
 }
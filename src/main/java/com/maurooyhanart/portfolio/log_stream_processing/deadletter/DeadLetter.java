@@ -0,0 +1,50 @@
+package com.maurooyhanart.portfolio.log_stream_processing.deadletter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A record the consumer gave up on, with everything needed to look at it or feed it again.
+ * @param shardId the shard it came from
+ * @param sequenceNumber its Kinesis sequence number, alone: what a replay sets on the record it feeds again
+ * @param key the key of the failed event, {@code seq[:subSeq][:line]}
+ * @param stage where it failed: {@code decode}, {@code prepare} or {@code write:<sink>}
+ * @param reason the failure, as {@code ExceptionClass: message}
+ * @param atMillis when it was dead-lettered
+ * @param data the raw record bytes, as they came from Kinesis
+ */
+public record DeadLetter(String shardId, String sequenceNumber, String key, String stage, String reason,
+                         long atMillis, byte[] data) {
+    private static final int MAX_REASON_CHARS = 1024;
+
+    /**
+     * Copies the record bytes (without moving the buffer's position) and describes the failure.
+     * @param shardId the shard
+     * @param key the event's key
+     * @param stage where it failed
+     * @param cause why
+     * @param data the record payload
+     * @return the dead letter
+     */
+    public static DeadLetter of(String shardId, String key, String stage, Throwable cause, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(data.position(), bytes);
+        return new DeadLetter(shardId, sequenceNumberOf(key), key, stage, reason(cause), System.currentTimeMillis(),
+                bytes);
+    }
+
+    /**
+     * @param key an event's key, {@code seq[:subSeq][:line]}
+     * @return the Kinesis sequence number it starts with
+     */
+    public static String sequenceNumberOf(String key) {
+        int colon = key.indexOf(':');
+        return colon < 0 ? key : key.substring(0, colon);
+    }
+
+    private static String reason(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        String r = t.getClass().getSimpleName() + ": " + t.getMessage();
+        return r.length() > MAX_REASON_CHARS ? r.substring(0, MAX_REASON_CHARS) : r;
+    }
+}
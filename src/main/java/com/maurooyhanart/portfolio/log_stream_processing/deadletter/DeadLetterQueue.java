@@ -0,0 +1,143 @@
+package com.maurooyhanart.portfolio.log_stream_processing.deadletter;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> The dead-letter channel: records the consumer gives up on (they can't be decoded, a sink can't prepare them,
+ * or a sink keeps rejecting them) are kept here with their raw bytes and the reason, instead of being dropped. </p>
+ * <ul>
+ *     <li>{@link #offer} only queues the record, it never blocks the record thread. If the queue is full the record
+ *     is dropped and counted,</li>
+ *     <li>a dispatcher thread drains the queue in batches into a {@link DeadLetterStore}: rolling local files or a
+ *     DynamoDB table ({@code DLQ}),</li>
+ *     <li>{@code DeadLetterReplay} feeds them through a shard processor again.</li>
+ * </ul>
+ */
+public class DeadLetterQueue implements AutoCloseable {
+    private static final int QUEUE_CAPACITY = 10_000;
+    // the stages that don't depend on the sinks; write:<sink> ones are resolved the first time they're seen
+    private static final String[] STAGES = {"decode", "decompress", "prepare"};
+
+    private final DeadLetterStore store;
+    private final Metrics metrics;
+    private final Counter dropped;
+    private final Counter written;
+    private final Counter lost;
+    // dlq_records_total by stage, so that an offer doesn't go through the registry
+    private final ConcurrentHashMap<String, Counter> recorded = new ConcurrentHashMap<>();
+    private final LongAdder offered = new LongAdder();
+    private final BlockingQueue<DeadLetter> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    /**
+     * @param store where the dead letters go
+     * @param metrics the process-wide metrics registry
+     * @param virtual whether the dispatcher is a virtual thread
+     */
+    public DeadLetterQueue(DeadLetterStore store, Metrics metrics, boolean virtual) {
+        this.store = store;
+        this.metrics = metrics;
+        this.dropped = metrics.counter("dlq_dropped_total", "Dead letters dropped because the queue was full or closed");
+        this.written = metrics.counter("dlq_written_total", "Dead letters stored");
+        this.lost = metrics.counter("dlq_write_failures_total", "Dead letters the store failed to write");
+        for (String stage : STAGES) recorded.put(stage, recordedCounter(stage));
+        metrics.gauge("dlq_queue_depth", "Dead letters waiting for the dispatcher", queue::size);
+        this.dispatcher = Threads.factory("dlq-" + store.name(), virtual).newThread(this::dispatchLoop);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @return the queue, or {@code null} if {@link AppConfig#dlq()} is {@code none}
+     * @throws IllegalArgumentException if {@link AppConfig#dlq()} is unknown
+     */
+    public static DeadLetterQueue start(AppConfig config, DynamoWriter writer, Metrics metrics) throws IOException {
+        DeadLetterStore store = switch (config.dlq()) {
+            case "none" -> null;
+            case "file" -> new FileDeadLetterStore(Paths.get(config.dlqDir()), config.dlqFileMaxBytes());
+            case "dynamodb" -> new DynamoDeadLetterStore(writer, config.dlqTable());
+            default -> throw new IllegalArgumentException("Unknown DLQ: " + config.dlq());
+        };
+        if (store == null) return null;
+        System.out.printf("Dead letters go to: %s%n", store.name());
+        return new DeadLetterQueue(store, metrics, Threads.virtual(config));
+    }
+
+    /**
+     * Queues a dead letter. Never blocks.
+     * @param d the dead letter
+     * @return whether it was queued
+     */
+    public boolean offer(DeadLetter d) {
+        offered.increment();
+        Counter c = recorded.get(d.stage());
+        if (c == null) c = recorded.computeIfAbsent(d.stage(), this::recordedCounter);
+        c.inc();
+        if (running && queue.offer(d)) return true;
+        dropped.inc();
+        return false;
+    }
+
+    private Counter recordedCounter(String stage) {
+        return metrics.counter("dlq_records_total", "Records dead-lettered", "stage", stage);
+    }
+
+    /** @return how many dead letters were offered so far, queued or not */
+    public long offered() { return offered.sum(); }
+
+    /** @return how many dead letters were stored so far */
+    public long written() { return written.sum(); }
+
+    private void dispatchLoop() {
+        List<DeadLetter> batch = new ArrayList<>(store.maxBatch());
+        while (running || !queue.isEmpty()) {
+            DeadLetter first;
+            try {
+                first = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (first == null) continue;
+            batch.add(first);
+            queue.drainTo(batch, store.maxBatch() - 1);
+            try {
+                store.write(batch).join();
+                written.add(batch.size());
+            } catch (RuntimeException e) {
+                // the store already retried what made sense to retry
+                lost.add(batch.size());
+                System.err.printf("DLQ: lost %d dead letter(s), the %s store failed: %s%n", batch.size(), store.name(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops accepting dead letters and gives the dispatcher a few seconds to store whatever is queued.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            dispatcher.join(5_000L);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.maurooyhanart.portfolio.log_stream_processing.deadletter;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where {@link DeadLetterQueue} persists dead letters. Only ever called from the queue's dispatcher thread.
+ */
+public interface DeadLetterStore extends AutoCloseable {
+
+    /** @return the store's name, as used in {@code DLQ} */
+    String name();
+
+    /** @return how many dead letters {@link #write} takes at once */
+    int maxBatch();
+
+    /**
+     * @param batch at most {@link #maxBatch()} dead letters, in the order they were dead-lettered
+     * @return a future that completes when they're stored
+     */
+    CompletableFuture<Void> write(List<DeadLetter> batch);
+
+    @Override
+    default void close() { }
+}
@@ -0,0 +1,121 @@
+package com.maurooyhanart.portfolio.log_stream_processing.deadletter;
+
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * <p> Dead letters as items of a DynamoDB table ({@code DLQ_TABLE}), written through the {@link DynamoWriter}: same
+ * batching, retries and shared rate controller as the log items. </p>
+ * <ul>
+ *     <li>{@code pk} is the shard, {@code sk} is {@code eventKey#deadLetteredAtMillis}: a record that fails
+ *     again when it's replayed gets a new item instead of overwriting the one being replayed,</li>
+ *     <li>{@code data} is the raw record, as a binary attribute. Past {@value MAX_DATA_BYTES} bytes (DynamoDB items
+ *     are capped at 400KB) it's cut and the item is flagged {@code truncated}: those can be looked at, not replayed.</li>
+ * </ul>
+ */
+public class DynamoDeadLetterStore implements DeadLetterStore {
+    private static final int MAX_BATCH = 25;                 // BatchWriteItem hard cap
+    private static final int MAX_DATA_BYTES = 380 * 1024;   // leaves room for the other attributes under 400KB
+    private static final String SHARD_TAG = "dlq";
+
+    private final DynamoWriter writer;
+    private final String table;
+
+    public DynamoDeadLetterStore(DynamoWriter writer, String table) {
+        this.writer = writer;
+        this.table = table;
+    }
+
+    @Override
+    public String name() { return "dynamodb"; }
+
+    @Override
+    public int maxBatch() { return MAX_BATCH; }
+
+    @Override
+    public CompletableFuture<Void> write(List<DeadLetter> batch) {
+        List<WriteRequest> requests = new ArrayList<>(batch.size());
+        for (DeadLetter d : batch) {
+            requests.add(WriteRequest.builder().putRequest(PutRequest.builder().item(item(d)).build()).build());
+        }
+        return writer.putBatchAsync(table, requests, SHARD_TAG);
+    }
+
+    private static Map<String, AttributeValue> item(DeadLetter d) {
+        Map<String, AttributeValue> m = new HashMap<>(8);
+        m.put("pk", AttributeValue.builder().s(d.shardId()).build());
+        m.put("sk", AttributeValue.builder().s(sortKey(d)).build());
+        m.put("stage", AttributeValue.builder().s(d.stage()).build());
+        m.put("reason", AttributeValue.builder().s(d.reason()).build());
+        m.put("at", AttributeValue.builder().n(Long.toString(d.atMillis())).build());
+        byte[] data = d.data();
+        if (data.length > MAX_DATA_BYTES) {
+            data = Arrays.copyOf(data, MAX_DATA_BYTES);
+            m.put("truncated", AttributeValue.builder().bool(true).build());
+        }
+        m.put("data", AttributeValue.builder().b(SdkBytes.fromByteArray(data)).build());
+        return m;
+    }
+
+    private static String sortKey(DeadLetter d) {
+        return d.key() + "#" + d.atMillis();
+    }
+
+    /**
+     * @param d a dead letter read from the table
+     * @return the request that deletes its item
+     */
+    public static WriteRequest deleteRequest(DeadLetter d) {
+        return WriteRequest.builder().deleteRequest(DeleteRequest.builder().key(Map.of(
+                "pk", AttributeValue.builder().s(d.shardId()).build(),
+                "sk", AttributeValue.builder().s(sortKey(d)).build())).build()).build();
+    }
+
+    /**
+     * Scans the whole table, page by page. Truncated items are reported and skipped.
+     * @param ddb the DynamoDB client
+     * @param table the dead-letter table
+     * @param limit stop after this many dead letters, {@code 0} for no limit
+     * @param to gets every dead letter
+     * @return how many were read
+     */
+    public static long scan(DynamoDbAsyncClient ddb, String table, long limit, Consumer<DeadLetter> to) {
+        long n = 0;
+        Map<String, AttributeValue> start = null;
+        do {
+            ScanRequest.Builder req = ScanRequest.builder().tableName(table);
+            if (start != null) req.exclusiveStartKey(start);
+            ScanResponse page = ddb.scan(req.build()).join();
+            for (Map<String, AttributeValue> item : page.items()) {
+                if (limit > 0 && n >= limit) return n;
+                String pk = item.get("pk").s();
+                String sk = item.get("sk").s();
+                if (item.containsKey("truncated")) {
+                    System.err.printf("DLQ: skipping %s/%s, its data was truncated%n", pk, sk);
+                    continue;
+                }
+                String key = sk.substring(0, sk.lastIndexOf('#'));
+                to.accept(new DeadLetter(pk, DeadLetter.sequenceNumberOf(key), key, item.get("stage").s(),
+                        item.get("reason").s(), Long.parseLong(item.get("at").n()), item.get("data").b().asByteArray()));
+                n++;
+            }
+            start = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty() ? page.lastEvaluatedKey() : null;
+        } while (start != null);
+        return n;
+    }
+}
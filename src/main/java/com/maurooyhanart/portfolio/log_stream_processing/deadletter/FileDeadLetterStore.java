@@ -0,0 +1,156 @@
+package com.maurooyhanart.portfolio.log_stream_processing.deadletter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * <p> Dead letters as JSON lines in rolling files: {@code dead-letters-<millis>.jsonl} under {@code DLQ_DIR}, a new
+ * file once the current one is over {@code DLQ_FILE_MAX_MB}. </p>
+ * <p> One line per record: {@code {"shard", "seq", "key", "stage", "reason", "at", "data"}}, {@code data} being the
+ * raw record in base64. Lines are flushed to the OS after every batch, not forced to disk. </p>
+ */
+public class FileDeadLetterStore implements DeadLetterStore {
+    private static final int MAX_BATCH = 500;
+    private static final String PREFIX = "dead-letters-";
+    private static final String SUFFIX = ".jsonl";
+    private static final Pattern FILE_NAME = Pattern.compile("dead-letters-(\\d+)\\.jsonl");
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path dir;
+    private final long maxFileBytes;
+    private OutputStream out;
+    private long fileBytes;
+
+    public FileDeadLetterStore(Path dir, long maxFileBytes) throws IOException {
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        Files.createDirectories(dir);
+    }
+
+    @Override
+    public String name() { return "file"; }
+
+    @Override
+    public int maxBatch() { return MAX_BATCH; }
+
+    @Override
+    public CompletableFuture<Void> write(List<DeadLetter> batch) {
+        try {
+            for (DeadLetter d : batch) {
+                if (out == null || fileBytes >= maxFileBytes) roll();
+                byte[] line = line(d);
+                out.write(line);
+                fileBytes += line.length;
+            }
+            out.flush();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void roll() throws IOException {
+        if (out != null) out.close();
+        // the millis keep the files in the order they were written, the loop covers two rolls in the same millisecond
+        Path file;
+        long at = System.currentTimeMillis();
+        while (Files.exists(file = dir.resolve(PREFIX + at + SUFFIX))) at++;
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0L;
+    }
+
+    private static byte[] line(DeadLetter d) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(d.data().length * 4 / 3 + 256);
+        try (JsonGenerator g = FACTORY.createGenerator(buf)) {
+            g.writeStartObject();
+            g.writeStringField("shard", d.shardId());
+            g.writeStringField("seq", d.sequenceNumber());
+            g.writeStringField("key", d.key());
+            g.writeStringField("stage", d.stage());
+            g.writeStringField("reason", d.reason());
+            g.writeNumberField("at", d.atMillis());
+            g.writeBinaryField("data", d.data());
+            g.writeEndObject();
+        }
+        buf.write('\n');
+        return buf.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException e) {
+            System.err.printf("DLQ: couldn't close the current file: %s%n", e);
+        }
+    }
+
+    /**
+     * @param dir the dead-letter directory
+     * @return its dead-letter files, oldest first
+     */
+    public static List<Path> files(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (Stream<Path> s = Files.list(dir)) {
+            List<Path> files = new ArrayList<>();
+            for (Path p : (Iterable<Path>) s::iterator) {
+                if (FILE_NAME.matcher(p.getFileName().toString()).matches()) files.add(p);
+            }
+            files.sort((a, b) -> Long.compare(millis(a), millis(b)));
+            return files;
+        }
+    }
+
+    private static long millis(Path p) {
+        Matcher m = FILE_NAME.matcher(p.getFileName().toString());
+        return m.matches() ? Long.parseLong(m.group(1)) : 0L;
+    }
+
+    /**
+     * Reads a dead-letter file. A line that can't be parsed (e.g. cut short by a crash, or without a {@code key}) is
+     * reported and skipped.
+     * @param file the file
+     * @param to gets every dead letter, in order
+     */
+    public static void read(Path file, Consumer<DeadLetter> to) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int n = 0;
+            while ((line = in.readLine()) != null) {
+                n++;
+                if (line.isBlank()) continue;
+                DeadLetter d;
+                try {
+                    JsonNode j = MAPPER.readTree(line);
+                    String key = j.required("key").asText();
+                    d = new DeadLetter(j.path("shard").asText(), DeadLetter.sequenceNumberOf(key), key,
+                            j.path("stage").asText(), j.path("reason").asText(), j.path("at").asLong(),
+                            j.path("data").binaryValue());
+                } catch (IOException | RuntimeException e) {
+                    System.err.printf("DLQ: skipping line %d of %s: %s%n", n, file.getFileName(), e);
+                    continue;
+                }
+                to.accept(d);
+            }
+        }
+    }
+}
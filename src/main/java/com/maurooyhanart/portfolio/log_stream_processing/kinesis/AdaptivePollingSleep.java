@@ -0,0 +1,73 @@
+package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import software.amazon.kinesis.retrieval.polling.SleepTimeController;
+import software.amazon.kinesis.retrieval.polling.SleepTimeControllerConfig;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * <p> How long the KCL poller waits between two {@code GetRecords} calls of a shard. </p>
+ * <ul>
+ *     <li>while reads return records, or the shard is behind, it's {@code POLLING_IDLE_MS} (0 by default: read again
+ *     right away),</li>
+ *     <li>once reads come back empty at the tip of the shard, the wait doubles with every empty read, from
+ *     {@value BASE_MILLIS} ms up to {@code POLLING_EMPTY_BACKOFF_MS}. The first read that returns records resets it.
+ *     Idle shards then stop burning the 5 calls/s every consumer of the stream shares.</li>
+ * </ul>
+ * <p> KCL runs the poller of each shard on its own thread, so the empty streak is kept per thread. </p>
+ */
+public final class AdaptivePollingSleep implements SleepTimeController {
+    private static final long BASE_MILLIS = 50L;
+    private static final long CAUGHT_UP_MILLIS = 1_000L; // millisBehindLatest under this is "at the tip"
+    private static final int MAX_DOUBLINGS = 16;
+
+    private final long idleMillis;
+    private final long maxMillis;
+    private final ThreadLocal<Backoff> perShard = ThreadLocal.withInitial(this::backoff);
+
+    public AdaptivePollingSleep(long idleMillis, long maxMillis) {
+        this.idleMillis = Math.max(0L, idleMillis);
+        this.maxMillis = Math.max(this.idleMillis, maxMillis);
+    }
+
+    public static AdaptivePollingSleep fromConfig(AppConfig config) {
+        return new AdaptivePollingSleep(config.pollingIdleMs(), config.pollingEmptyBackoffMs());
+    }
+
+    @Override
+    public long getSleepTimeMillis(SleepTimeControllerConfig c) {
+        Integer records = c.lastRecordsCount();
+        Long behind = c.lastMillisBehindLatest();
+        // nothing known yet (first call): don't wait
+        if (records == null || behind == null) return 0L;
+        long wait = perShard.get().next(records, behind);
+        // the time spent since the last call (processing the records) counts towards the wait
+        Instant last = c.lastSuccessfulCall();
+        long since = last == null ? 0L : Duration.between(last, Instant.now()).toMillis();
+        return Math.max(0L, wait - since);
+    }
+
+    /** @return a fresh empty streak, for whoever drives their own poller (e.g. the local Kinesis stand-in) */
+    public Backoff backoff() { return new Backoff(); }
+
+    /** The empty-read streak of one shard. Not thread safe. */
+    public final class Backoff {
+        private int emptyStreak;
+
+        /**
+         * @param records how many records the last read returned
+         * @param millisBehindLatest how far behind the tip of the shard it was
+         * @return how long to wait before the next read, in milliseconds
+         */
+        public long next(int records, long millisBehindLatest) {
+            if (records > 0 || millisBehindLatest >= CAUGHT_UP_MILLIS || maxMillis == idleMillis) {
+                emptyStreak = 0;
+                return idleMillis;
+            }
+            emptyStreak = Math.min(emptyStreak + 1, MAX_DOUBLINGS);
+            return Math.min(maxMillis, Math.max(idleMillis, BASE_MILLIS << (emptyStreak - 1)));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEventDecoder;
+import com.maurooyhanart.portfolio.log_stream_processing.model.RecordPayloads;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> The threads shard processors hand their big KCL batches to, when {@code SHARD_PARALLELISM} is over 1: records
+ * are decoded and prepared for the sinks there, a slice at a time, while the record thread buffers, flushes and
+ * checkpoints the slices in sequence-number order (see {@link LogShardRecordProcessor}). </p>
+ * <p> One pool for the whole process, shared by every shard, so a worker that holds fewer shards than it has cores
+ * still uses them all. Decoders and decompression buffers aren't thread safe: each pool thread has its own. With
+ * {@code THREADS=virtual} the pool threads are virtual, a fixed number of them all the same. </p>
+ */
+public final class DecodePool implements AutoCloseable {
+    private final ExecutorService pool;
+    private final int parallelism;
+    // the processors decode ERROR events' context only if one of their sinks uses it (same as the record thread)
+    private final ThreadLocal<LogEventDecoder> contextDecoders = ThreadLocal.withInitial(() -> new LogEventDecoder(true));
+    private final ThreadLocal<LogEventDecoder> decoders = ThreadLocal.withInitial(() -> new LogEventDecoder(false));
+    private final ThreadLocal<RecordPayloads> payloads = ThreadLocal.withInitial(RecordPayloads::new);
+
+    /**
+     * @param parallelism how many threads decode
+     * @param virtual whether they're virtual threads
+     */
+    public DecodePool(int parallelism, boolean virtual) {
+        this.pool = Executors.newFixedThreadPool(parallelism, Threads.factory("decode", virtual));
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the pool, or {@code null} if {@link AppConfig#shardParallelism()} is 1 or less: then every shard
+     * decodes on its own record thread
+     */
+    public static DecodePool start(AppConfig config) {
+        if (config.shardParallelism() <= 1) return null;
+        System.out.printf("Decoding big batches on %d threads%n", config.shardParallelism());
+        return new DecodePool(config.shardParallelism(), Threads.virtual(config));
+    }
+
+    /** @return how many threads decode */
+    public int parallelism() { return parallelism; }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * @param errorContext whether the decoder materializes ERROR events' context
+     * @return the calling pool thread's decoder
+     */
+    LogEventDecoder decoder(boolean errorContext) { return (errorContext ? contextDecoders : decoders).get(); }
+
+    /** @return the calling pool thread's decompression buffers */
+    RecordPayloads payloads() { return payloads.get(); }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
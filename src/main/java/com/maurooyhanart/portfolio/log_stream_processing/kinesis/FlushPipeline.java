@@ -0,0 +1,154 @@
+package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
+
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * <p> Keeps several DynamoDB batch writes of one shard in flight at the same time, while still only letting the
+ * checkpoint move forward in order. </p>
+ * <ul>
+ *     <li>batches are submitted in sequence-number order, each one tagged with the last record it fully covers
+ *     (sequence and sub-sequence number, for KPL aggregated records),</li>
+ *     <li>at most {@code maxInFlight} of them run at once; {@link #submit} blocks the record thread when the limit is
+ *     reached (that's our backpressure),</li>
+ *     <li>{@link #drainCompleted()} returns the highest sequence number whose batch, and every batch before it, has
+ *     finished. A batch that failed is re-submitted and holds the checkpoint back until it goes through.</li>
+ * </ul>
+ * <p> Not thread safe: it's meant to be driven only from the KCL thread that owns the shard. </p>
+ */
+final class FlushPipeline {
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+    // written by the record thread only, read by the metrics endpoint
+    private volatile long retries;
+
+    FlushPipeline(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+    }
+
+    private static final class InFlight {
+        ExtendedSequenceNumber lastSequenceNumber;
+        final Supplier<CompletableFuture<Void>> write;
+        CompletableFuture<Void> future;
+
+        InFlight(ExtendedSequenceNumber lastSequenceNumber, Supplier<CompletableFuture<Void>> write) {
+            this.lastSequenceNumber = lastSequenceNumber;
+            this.write = write;
+        }
+    }
+
+    /**
+     * Starts a batch write, waiting first for a free slot if {@code maxInFlight} writes are already running.
+     * @param lastSequenceNumber the last record whose every event is in this batch or an earlier one, or {@code null}
+     * if there's none yet (the batch only has the first events of a record that carries many)
+     * @param write starts the write; it may be called again if the write fails
+     */
+    void submit(ExtendedSequenceNumber lastSequenceNumber, Supplier<CompletableFuture<Void>> write) {
+        InFlight batch = new InFlight(lastSequenceNumber, write);
+        start(batch);
+        inFlight.addLast(batch);
+    }
+
+    /**
+     * Moves the last batch's position up to a record that had nothing to write (the rules filtered it out, or it was
+     * dead-lettered): it's safe to checkpoint once that batch, and every one before it, is written.
+     * @param sequenceNumber the record's sequence (and sub-sequence) number
+     * @return whether a batch carries it; if not, nothing is in flight and it's safe to checkpoint right away
+     */
+    boolean extendLast(ExtendedSequenceNumber sequenceNumber) {
+        InFlight last = inFlight.peekLast();
+        if (last == null) return false;
+        last.lastSequenceNumber = sequenceNumber;
+        return true;
+    }
+
+    /**
+     * Pops every finished batch at the head of the pipeline, without waiting.
+     * @return the highest sequence number that is safe to checkpoint, or {@code null} if nothing new completed
+     */
+    ExtendedSequenceNumber drainCompleted() {
+        ExtendedSequenceNumber seq = null;
+        while (!inFlight.isEmpty()) {
+            InFlight head = inFlight.peekFirst();
+            if (!head.future.isDone()) break;
+            if (head.future.isCompletedExceptionally()) {
+                retry(head);
+                break;
+            }
+            inFlight.pollFirst();
+            if (head.lastSequenceNumber != null) seq = head.lastSequenceNumber;
+        }
+        return seq;
+    }
+
+    /**
+     * Waits until every submitted batch is written. Used when the shard ends or the worker shuts down.
+     * @return the highest sequence number that is safe to checkpoint, or {@code null} if nothing new completed
+     */
+    ExtendedSequenceNumber awaitAll() {
+        ExtendedSequenceNumber seq = null;
+        while (!inFlight.isEmpty()) {
+            try {
+                inFlight.peekFirst().future.get();
+            } catch (ExecutionException ignored) {
+                // drainCompleted re-submits it
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for in-flight DynamoDB batches", ie);
+            }
+            ExtendedSequenceNumber completed = drainCompleted();
+            if (completed != null) seq = completed;
+        }
+        return seq;
+    }
+
+    /**
+     * Forgets every in-flight batch (they keep running, but we won't checkpoint them). Used on lease loss.
+     */
+    void discard() {
+        inFlight.clear();
+    }
+
+    boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    /** @return how many writes are running right now; safe to call from any thread */
+    int running() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /** @return how many times a failed batch was re-submitted; safe to call from any thread */
+    long retries() {
+        return retries;
+    }
+
+    /** Starts a failed batch again: counted in {@link #retries()}, which is exported, instead of logged each time. */
+    private void retry(InFlight batch) {
+        retries++;
+        start(batch);
+    }
+
+    private void start(InFlight batch) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a DynamoDB write slot", ie);
+        }
+        CompletableFuture<Void> f;
+        try {
+            f = batch.write.get();
+        } catch (RuntimeException e) {
+            f = CompletableFuture.failedFuture(e);
+        }
+        batch.future = f.whenComplete((v, err) -> permits.release());
+    }
+}
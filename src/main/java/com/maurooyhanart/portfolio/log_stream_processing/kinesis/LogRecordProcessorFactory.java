@@ -1,15 +1,40 @@
 package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
 
 import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetterQueue;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import com.maurooyhanart.portfolio.log_stream_processing.rollup.Rollups;
+import com.maurooyhanart.portfolio.log_stream_processing.rules.Rules;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
 import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
 
+import java.util.List;
+
 public class LogRecordProcessorFactory implements ShardRecordProcessorFactory {
     private final AppConfig config;
-    public LogRecordProcessorFactory(AppConfig config) { this.config = config; }
+    private final List<LogSink<?>> sinks;
+    private final Metrics metrics;
+    private final DeadLetterQueue deadLetters;
+    private final Rollups rollups;
+    private final DecodePool decodePool;
+    private final Rules rules;
+    private final RecentKeys recentKeys;
+
+    public LogRecordProcessorFactory(AppConfig config, List<LogSink<?>> sinks, Metrics metrics,
+                                     DeadLetterQueue deadLetters, Rollups rollups,
+                                     DecodePool decodePool, Rules rules, RecentKeys recentKeys) {
+        this.config = config;
+        this.sinks = List.copyOf(sinks);
+        this.metrics = metrics;
+        this.deadLetters = deadLetters;
+        this.rollups = rollups;
+        this.decodePool = decodePool;
+        this.rules = rules;
+        this.recentKeys = recentKeys;
+    }
+
     @Override public ShardRecordProcessor shardRecordProcessor() {
-        return new LogShardRecordProcessor(config);
+        return new LogShardRecordProcessor(config, sinks, metrics, deadLetters, rollups, decodePool, rules, recentKeys);
     }
 }
-
-
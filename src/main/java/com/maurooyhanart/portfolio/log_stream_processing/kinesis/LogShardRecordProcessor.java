@@ -1,177 +1,862 @@
 package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Backoff;
 import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetter;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetterQueue;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Histogram;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.model.EventKeys;
 import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
-import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
-import com.maurooyhanart.portfolio.log_stream_processing.outputs.EventBridgePublisher;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEventDecoder;
+import com.maurooyhanart.portfolio.log_stream_processing.model.RecordPayloads;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.PoisonBatchException;
+import com.maurooyhanart.portfolio.log_stream_processing.rollup.Rollups;
+import com.maurooyhanart.portfolio.log_stream_processing.rollup.ShardRollups;
+import com.maurooyhanart.portfolio.log_stream_processing.rules.RuleSet;
+import com.maurooyhanart.portfolio.log_stream_processing.rules.Rules;
 import software.amazon.kinesis.lifecycle.events.*;
 import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class LogShardRecordProcessor implements ShardRecordProcessor {
     private static final int   BATCH_MAX_ITEMS   = 25;       // DynamoDB BatchWriteItem hard cap
     private static final long  FLUSH_MAX_AGE_MS  = 150;      // time-based flush bound
     private static final long  BATCH_MAX_BYTES   = 4_000_000L; // ~4MB safety size
+    private static final long  FLUSH_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(FLUSH_MAX_AGE_MS);
+    private static final int   DECODE_SAMPLE_MASK = 7;       // time the decode of 1 record in 8
+    private static final double[] FLUSH_SIZE_BOUNDS = {1, 2, 5, 10, 15, 20, 25};
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static final int   PARALLEL_MIN_RECORDS = 64;    // smaller batches aren't worth the hand-off
+    private static final int   SLICE_RECORDS     = 32;       // records per decode task
+    private static final long  ALL_SINKS         = -1L;      // every bit of a RuleSet sink mask
 
-    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
-    private final DynamoWriter dynamoWriter;
-    private final EventBridgePublisher eventPublisher;
+    // only decodes the context of ERROR events if a sink uses it (alerts)
+    private final boolean errorContext;
+    private final LogEventDecoder decoder;
+    // gzip/zstd records carry many events, one per line
+    private final RecordPayloads payloads = new RecordPayloads();
+    private final RecordPayloads.LineHandler onLine = this::line;
+    private final List<LogSink<?>> sinks;
+    private final FlushPipeline pipeline;
+    private final Metrics metrics;
+    // null when there's no dead-letter queue: records that can't be decoded are dropped and failed flushes retried forever
+    private final DeadLetterQueue deadLetters;
+    private final int maxFlushAttempts;
+    private final String retrieval;
+    // null when rollups are off
+    private final Rollups rollupStage;
+    private ShardRollups rollups;
+    // null when every record is decoded on this thread
+    private final DecodePool decodePool;
+    // null when there are no rules: every event goes to every sink
+    private final Rules rules;
+    // the rules in place for the current KCL batch, null if there are none
+    private RuleSet batchRules;
+    // set by the decoder's filter as soon as an event's service and level are read
+    private final LogEventDecoder.Filter ruleFilter = this::routeEarly;
+    private String routeKey;
+    private boolean routed;
+    private long route;
+    // null when there's no recent-key cache
+    private final RecentKeys recentKeyCache;
+    private RecentKeys.Shard recentKeys;
 
-    // ---- Batch buffer ----
-    private final List<Pending> buffer = new ArrayList<>(BATCH_MAX_ITEMS);
+    // reused for every record: sinks copy whatever they keep
+    private final LogEvent scratch = new LogEvent();
+    // the key of the batched record whose lines are being handed over
+    private String recordKey;
+    // when the record being processed reached Kinesis (epoch millis), 0 if unknown
+    private long recordArrivalMillis;
+    private Instant recordArrival;
+
+    // ---- Batch buffer: one list of prepared items per sink, bound to this shard on initialize ----
+    private List<SinkBuffer<?>> buffers = List.of();
+    private int bufferedRecords = 0;
+    // the last record whose every event is buffered (or flushed); KPL aggregated records have a sub-sequence number
+    private ExtendedSequenceNumber lastBufferedSeq = null;
     private long bufferedBytes = 0L;
-    private long firstEnqueueAtMs = 0L;
+    private long firstEnqueueAtNanos = 0L;
+    // the arrival of every buffered event, for the end-to-end latency
+    private long[] arrivals = new long[BATCH_MAX_ITEMS];
+    // the key hash of every buffered event, for the recent-key cache (only used when there's one)
+    private long[] keyHashes = new long[BATCH_MAX_ITEMS];
+    // the highest position every sink has written, and the last one checkpointed (the rollups can hold it back)
+    private ExtendedSequenceNumber flushedSeq = null;
+    private ExtendedSequenceNumber checkpointedSeq = null;
+
+    private final long createdAtNanos = System.nanoTime();
+
+    // ---- Metrics, tagged with the shard on initialize. gauges read the volatile fields from the scrape thread ----
+    private String shardId;
+    private Counter recordsMetric;
+    private Counter eventsMetric;
+    private Counter droppedMetric;
+    private Counter filteredMetric;
+    private Counter replayedMetric;
+    private Histogram decodeMetric;
+    private Histogram flushSizeMetric;
+    private Histogram enqueueToFlushMetric;
+    private Histogram readyMetric;
+    private Histogram endToEndMetric;
+    private final Map<String, Object> registered = new LinkedHashMap<>();
+    private int decodeSample;
+    private volatile int bufferDepth;
+    private volatile long millisBehindLatest;
+    // roughly when the oldest record that isn't checkpointed yet came in, 0 if there's none
+    private volatile long uncheckpointedSinceNanos;
 
-    public LogShardRecordProcessor(AppConfig config) {
-        this.dynamoWriter = new DynamoWriter(config);
-        this.eventPublisher = new EventBridgePublisher(config);
+    /**
+     * @param config the app config
+     * @param sinks the process-wide sinks every record goes to, shared by every shard (see {@link AppConfig#sinks()})
+     * @param metrics the process-wide metrics registry
+     * @param deadLetters the process-wide dead-letter queue, or {@code null} if there's none
+     * @param rollups the rollup stage, or {@code null} if it's off
+     * @param decodePool the process-wide decode pool, or {@code null} to decode every record on the record thread
+     * @param rules the filtering, sampling and routing rules, compiled against {@code sinks}' order, or {@code null}
+     * @param recentKeys the process-wide cache of the keys each shard wrote lately, or {@code null} to write replayed
+     * events again
+     */
+    public LogShardRecordProcessor(AppConfig config, List<LogSink<?>> sinks, Metrics metrics,
+                                   DeadLetterQueue deadLetters, Rollups rollups, DecodePool decodePool, Rules rules,
+                                   RecentKeys recentKeys) {
+        this.sinks = List.copyOf(sinks);
+        this.errorContext = sinks.stream().anyMatch(LogSink::usesErrorContext);
+        this.decoder = new LogEventDecoder(errorContext);
+        this.pipeline = new FlushPipeline(config.ddbMaxInFlight());
+        this.metrics = metrics;
+        this.deadLetters = deadLetters;
+        this.maxFlushAttempts = Math.max(1, config.dlqMaxFlushAttempts());
+        this.retrieval = config.retrieval();
+        this.rollupStage = rollups;
+        this.decodePool = decodePool;
+        this.rules = rules;
+        this.recentKeyCache = recentKeys;
     }
 
-    @Override public void initialize(InitializationInput input) { }
+    @Override public void initialize(InitializationInput input) {
+        shardId = input.shardId();
+        registerMetrics();
+        List<SinkBuffer<?>> bound = new ArrayList<>(sinks.size());
+        for (LogSink<?> sink : sinks) bound.add(bufferFor(sink, input.shardId()));
+        buffers = bound;
+        if (rollupStage != null) rollups = rollupStage.forShard(shardId, input.extendedSequenceNumber());
+        if (recentKeyCache != null) recentKeys = recentKeyCache.forShard(shardId);
+        // how long a newly leased shard takes to become ready, useful to keep an eye on rebalances
+        readyMetric.record(System.nanoTime() - createdAtNanos);
+    }
 
     @Override
     public void processRecords(ProcessRecordsInput input) {
-        for (KinesisClientRecord r : input.records()) {
-            final String raw = StandardCharsets.UTF_8.decode(r.data()).toString();
-            try {
-                LogEvent e = mapper.readValue(raw, LogEvent.class);
-                if (e.level != null && e.level.equalsIgnoreCase("ERROR")) {
-                    runWithBackoff(() -> eventPublisher.publish(e));
+        if (input.millisBehindLatest() != null) millisBehindLatest = input.millisBehindLatest();
+        recordsMetric.add(input.records().size());
+        // a reload in the middle of a batch waits for the next one
+        batchRules = rules == null ? null : rules.current();
+        if (decodePool != null && input.records().size() >= PARALLEL_MIN_RECORDS) {
+            processInParallel(input.records(), input.checkpointer());
+        } else {
+            for (KinesisClientRecord r : input.records()) {
+                String key = beginRecord(r);
+                RecordPayloads.Format format = RecordPayloads.formatOf(r.data());
+                if (format == RecordPayloads.Format.PLAIN) {
+                    process(r.data(), key, false);
+                } else {
+                    recordKey = key;
+                    try {
+                        payloads.forEachLine(r.data(), format, onLine);
+                    } catch (IOException | RuntimeException e) {
+                        // the lines before the damage went through, the whole record is kept for a replay
+                        droppedMetric.inc();
+                        deadLetter(key, r.data(), "decompress", e);
+                    }
                 }
-                enqueue(e, r.sequenceNumber());
-            } catch (Exception ignored) {
-                // we could send to DLQ (dead letter queue)
+                endRecord(r, input.checkpointer());
             }
-            maybeFlush(input.checkpointer(), false);
         }
 
         // make sure about the time-based flush
         maybeFlush(input.checkpointer(), false);
+        bufferDepth = bufferedRecords;
+        // closes the pane of an idle shard, retries the rollup writes that failed
+        if (rollups != null) rollups.tick(System.currentTimeMillis(), millisBehindLatest);
+
+        // one checkpoint per KCL batch, up to whatever the pipeline has fully written so far
+        checkpoint(input.checkpointer(), pipeline.drainCompleted());
     }
 
     @Override public void leaseLost(LeaseLostInput input) {
-        buffer.clear();
-        bufferedBytes = 0L;
-        firstEnqueueAtMs = 0L;
+        pipeline.discard();
+        if (rollups != null) rollups.discard();
+        resetBuffer();
+        unregisterMetrics();
     }
 
     @Override public void shardEnded(ShardEndedInput input) {
+        // nothing will replay this shard: every pane is written now, partial or not
+        if (rollups != null) rollups.closeAll();
         maybeFlush(input.checkpointer(), true);
-        runWithBackoff(() -> {
+        Backoff.CHECKPOINT.run(() -> {
             try { input.checkpointer().checkpoint(); } catch (Exception e) { throw new RuntimeException(e); }
         });
+        unregisterMetrics();
     }
 
     @Override public void shutdownRequested(ShutdownRequestedInput input) {
-        maybeFlush(input.checkpointer(), true);
-        runWithBackoff(() -> {
-            try { input.checkpointer().checkpoint(); } catch (Exception e) { throw new RuntimeException(e); }
-        });
+        if (rollups == null) {
+            maybeFlush(input.checkpointer(), true);
+            Backoff.CHECKPOINT.run(() -> {
+                try { input.checkpointer().checkpoint(); } catch (Exception e) { throw new RuntimeException(e); }
+            });
+        } else {
+            // the closed panes go out first: the final checkpoint then only stops before the open one, which the next
+            // owner replays
+            rollups.awaitWrites();
+            maybeFlush(input.checkpointer(), true);
+        }
+        unregisterMetrics();
     }
 
     // Internal helpers
 
-    private static final class Pending {
-        final LogEvent event;
-        final String sequenceNumber;
-        final byte[] serialized;
-
-        Pending(LogEvent event, String seq, byte[] serialized) {
-            this.event = event;
-            this.sequenceNumber = seq;
-            this.serialized = serialized;
+    /**
+     * Decodes one event and buffers it for the sinks the rules send it to; an event that can't be decoded or prepared
+     * is dead-lettered. With rules, the decoding stops as soon as the service and level show that it's filtered out.
+     * An event this shard already wrote (a replay) is only decoded if the rollups need to count it again.
+     * @param data the event's JSON
+     * @param key the event's key (see {@link #eventKey})
+     * @param pooled whether {@code data} is reused once this returns (a line of a batched record)
+     */
+    private void process(ByteBuffer data, String key, boolean pooled) {
+        eventsMetric.inc();
+        long keyHash = keyHash(key);
+        boolean replayed = replayed(keyHash);
+        if (replayed && rollups == null) {
+            replayedMetric.inc();
+            return;
         }
+        String stage = "decode";
+        try {
+            long t0 = (++decodeSample & DECODE_SAMPLE_MASK) == 0 ? System.nanoTime() : 0L;
+            long mask = ALL_SINKS;
+            if (batchRules == null) {
+                decoder.decode(data, scratch);
+            } else {
+                routeKey = key;
+                routed = false;
+                decoder.decode(data, scratch, ruleFilter);
+                // without a service or a level, the filter wasn't called
+                mask = routed ? route : batchRules.route(scratch.service, scratch.level, key);
+            }
+            if (t0 != 0L) decodeMetric.record(System.nanoTime() - t0);
+            if (mask == RuleSet.DROPPED) {
+                filtered(scratch);
+                return;
+            }
+            if (rollups != null) rollups.add(scratch);
+            if (replayed) {
+                replayedMetric.inc();
+                return;
+            }
+            // the sort key has to be the same on a replay: no timestamp means the record's
+            if (scratch.timestamp == null) scratch.timestamp = recordArrival;
+            stage = "prepare";
+            enqueue(scratch, key, data, pooled, mask, keyHash);
+        } catch (Exception e) {
+            droppedMetric.inc();
+            deadLetter(key, data, stage, e);
+        }
+    }
+
+    /** {@link #ruleFilter}: routes the event being decoded, and stops the decoding if it goes nowhere. */
+    private boolean routeEarly(String service, String level) {
+        route = batchRules.route(service, level, routeKey);
+        routed = true;
+        return route == RuleSet.DROPPED;
+    }
+
+    /** An event the rules send nowhere: only the rollups count it. */
+    private void filtered(LogEvent e) {
+        filteredMetric.inc();
+        if (rollups != null) rollups.count(e.service, e.level);
+    }
+
+    /** @return the event's {@link EventKeys#hash}, or 0 if there's no recent-key cache to check it against */
+    private long keyHash(String key) {
+        return recentKeys == null ? 0L : EventKeys.hash(shardId, key);
+    }
+
+    /** @return whether this shard already wrote the event (see {@link RecentKeys}) */
+    private boolean replayed(long keyHash) {
+        return recentKeys != null && recentKeys.contains(keyHash);
     }
 
-    private void enqueue(LogEvent e, String sequenceNumber) throws Exception {
-        byte[] bytes = mapper.writeValueAsBytes(e);
-        if (buffer.isEmpty()) firstEnqueueAtMs = nowMs();
-        buffer.add(new Pending(e, sequenceNumber, bytes));
-        bufferedBytes += bytes.length;
+    /** @return the record's key (see {@link #eventKey}), once the rollups know it's coming */
+    private String beginRecord(KinesisClientRecord r) {
+        recordArrival = r.approximateArrivalTimestamp();
+        recordArrivalMillis = recordArrival != null ? recordArrival.toEpochMilli() : 0L;
+        if (rollups != null) rollups.beginRecord(recordArrivalMillis);
+        return eventKey(r);
+    }
+
+    /** Every event of the record is buffered: it can be checkpointed once they're flushed. */
+    private void endRecord(KinesisClientRecord r, RecordProcessorCheckpointer checkpointer) {
+        // only now is the record fully buffered: a flush in the middle of its lines can't checkpoint it
+        ExtendedSequenceNumber position = new ExtendedSequenceNumber(r.sequenceNumber(), r.subSequenceNumber());
+        if (bufferedRecords > 0) lastBufferedSeq = position;
+        // nothing of it is buffered (filtered out by the rules, dead-lettered, or its first lines already flushed):
+        // it's done with the last batch in flight, or right away if there's none
+        else if (!pipeline.extendLast(position)) flushedSeq = position;
+        if (rollups != null) rollups.endRecord(position);
+        maybeFlush(checkpointer, false);
     }
 
     /**
-     * <p> Does the following things: </p>
+     * <p> The same as the sequential loop of {@link #processRecords}, with the decoding and the sinks' {@code prepare}
+     * done on the {@link DecodePool}: </p>
      * <ul>
-     * <li>decide whether to flush or not. for this, it checks if the size is exceeded, the byte size is exceded or the time of the first added record to the buffer is exceeded. </li>
-     * <li>snapshot and clear buffer </li>
-     * <li>write to dynamodb in slices of BATCH_MAX_ITEMS = 25, which is what DynamoDB allows. </li>
-     * <li>checkpoint to the last flushed record </li>
+     *     <li>the batch is cut into slices of {@value #SLICE_RECORDS} records, up to two per pool thread in flight,</li>
+     *     <li>this thread takes the slices back in order and buffers their prepared items exactly as if it had
+     *     prepared them itself: flushes, dead letters, rollups and checkpoints don't see a difference.</li>
      * </ul>
+     * @param records the KCL batch
      * @param checkpointer the KCL checkpointer
-     * @param force whether to force flush or not
      */
-    private void maybeFlush(RecordProcessorCheckpointer checkpointer, boolean force) {
-        List<Pending> toFlush = null;
-        String lastSeq = null;
+    private void processInParallel(List<KinesisClientRecord> records, RecordProcessorCheckpointer checkpointer) {
+        int maxInFlight = decodePool.parallelism() * 2;
+        ArrayDeque<Future<List<Decoded>>> inFlight = new ArrayDeque<>(maxInFlight);
+        RuleSet rules = batchRules;
+        int next = 0;
+        while (next < records.size() || !inFlight.isEmpty()) {
+            while (next < records.size() && inFlight.size() < maxInFlight) {
+                List<KinesisClientRecord> slice = records.subList(next, Math.min(records.size(), next + SLICE_RECORDS));
+                inFlight.add(decodePool.submit(() -> decodeSlice(slice, rules)));
+                next += slice.size();
+            }
+            for (Decoded d : await(inFlight.poll())) {
+                String key = beginRecord(d.record);
+                for (Prepared p : d.events) {
+                    eventsMetric.inc();
+                    if (p.event == null) {
+                        droppedMetric.inc();
+                        deadLetter(p.key, p.data, "decode", p.failure);
+                    } else if (p.items == null) {
+                        filtered(p.event);
+                    } else {
+                        if (rollups != null) rollups.add(p.event);
+                        long keyHash = keyHash(p.key);
+                        if (replayed(keyHash)) {
+                            replayedMetric.inc();
+                        } else {
+                            enqueuePrepared(p.items, p.key, p.data, keyHash);
+                            if (p.failure != null) {
+                                droppedMetric.inc();
+                                deadLetter(p.key, p.data, "prepare", p.failure);
+                            }
+                        }
+                    }
+                    flushIfDue(false);
+                }
+                if (d.decompressFailure != null) {
+                    droppedMetric.inc();
+                    deadLetter(key, d.record.data(), "decompress", d.decompressFailure);
+                }
+                endRecord(d.record, checkpointer);
+            }
+        }
+    }
 
-        boolean sizeHit  = buffer.size() >= BATCH_MAX_ITEMS;
-        boolean bytesHit = bufferedBytes >= BATCH_MAX_BYTES;
-        boolean timeHit  = (!buffer.isEmpty() && (nowMs() - firstEnqueueAtMs) >= FLUSH_MAX_AGE_MS);
+    private static <T> T await(Future<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a decode task", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Decode task failed", e.getCause());
+        }
+    }
+
+    /** A record decoded and prepared on the {@link DecodePool}, waiting to be buffered. */
+    private static final class Decoded {
+        final KinesisClientRecord record;
+        final List<Prepared> events = new ArrayList<>(1);
+        Exception decompressFailure;
+
+        Decoded(KinesisClientRecord record) { this.record = record; }
+    }
+
+    /**
+     * One event of a {@link Decoded} record.
+     * @param key the event's key
+     * @param data what it was decoded from, only kept (and copied if it was pooled) when there's a dead-letter queue
+     * @param event the event, {@code null} if it couldn't be decoded
+     * @param items what each sink prepared, by sink, {@code null} if it couldn't be decoded or the rules filtered it
+     * out
+     * @param failure why it couldn't be decoded, or the first sink that failed to prepare it
+     */
+    private record Prepared(String key, ByteBuffer data, LogEvent event, Object[] items, Exception failure) { }
+
+    /**
+     * Runs on a pool thread: touches nothing of this processor but the (thread safe) sinks and metrics.
+     * @param rules the batch's rules, or {@code null}
+     */
+    private List<Decoded> decodeSlice(List<KinesisClientRecord> slice, RuleSet rules) {
+        List<Decoded> out = new ArrayList<>(slice.size());
+        LogEventDecoder threadDecoder = decodePool.decoder(errorContext);
+        for (KinesisClientRecord r : slice) {
+            Decoded d = new Decoded(r);
+            String key = eventKey(r);
+            RecordPayloads.Format format = RecordPayloads.formatOf(r.data());
+            if (format == RecordPayloads.Format.PLAIN) {
+                d.events.add(prepare(threadDecoder, rules, r, r.data(), key, false));
+            } else {
+                try {
+                    decodePool.payloads().forEachLine(r.data(), format,
+                            (line, index) -> d.events.add(prepare(threadDecoder, rules, r, line, key + ":" + index, true)));
+                } catch (IOException | RuntimeException e) {
+                    d.decompressFailure = e;
+                }
+            }
+            out.add(d);
+        }
+        return out;
+    }
+
+    /**
+     * {@link #process} and {@link #enqueue} without the buffering, for a pool thread: the event is a fresh one. The
+     * rules are applied once it's fully decoded (the early stop needs per-event state, this thread has none).
+     */
+    private Prepared prepare(LogEventDecoder threadDecoder, RuleSet rules, KinesisClientRecord r, ByteBuffer data,
+                             String key, boolean pooled) {
+        ByteBuffer kept = deadLetters == null ? null : pooled ? copyOf(data) : data;
+        LogEvent e = new LogEvent();
+        try {
+            long t0 = (ThreadLocalRandom.current().nextInt() & DECODE_SAMPLE_MASK) == 0 ? System.nanoTime() : 0L;
+            threadDecoder.decode(data, e);
+            if (t0 != 0L) decodeMetric.record(System.nanoTime() - t0);
+        } catch (Exception ex) {
+            return new Prepared(key, kept, null, null, ex);
+        }
+        long mask = rules == null ? ALL_SINKS : rules.route(e.service, e.level, key);
+        if (mask == RuleSet.DROPPED) return new Prepared(key, null, e, null, null);
+        if (e.timestamp == null) e.timestamp = r.approximateArrivalTimestamp();
+        Object[] items = new Object[buffers.size()];
+        Exception failure = null;
+        for (int i = 0; i < items.length; i++) {
+            if ((mask & (1L << i)) == 0L) continue;
+            try {
+                items[i] = buffers.get(i).sink.prepare(e, key);
+            } catch (RuntimeException ex) {
+                if (failure == null) failure = ex;
+            }
+        }
+        return new Prepared(key, kept, e, items, failure);
+    }
+
+    /** One line of a batched record: flushes as soon as the buffer is full, a record can carry thousands of them. */
+    private void line(ByteBuffer line, int index) {
+        process(line, recordKey + ":" + index, true);
+        flushIfDue(false);
+    }
+
+    /**
+     * @return the record's sequence number, plus its sub-sequence number if it came out of a KPL aggregated record:
+     * each user record of an aggregated one shares the sequence number
+     */
+    private static String eventKey(KinesisClientRecord r) {
+        return r.aggregated() ? r.sequenceNumber() + ":" + r.subSequenceNumber() : r.sequenceNumber();
+    }
+
+    private void registerMetrics() {
+        recordsMetric = metrics.counter("log_records_total", "Records received from Kinesis", "shard", shardId);
+        eventsMetric = metrics.counter("log_events_total", "Log events received, more than records when they're batched", "shard", shardId);
+        droppedMetric = metrics.counter("log_records_dropped_total", "Events or batched records that couldn't be decompressed, decoded or prepared", "shard", shardId);
+        filteredMetric = metrics.counter("log_events_filtered_total", "Events the rules dropped or sampled out", "shard", shardId);
+        replayedMetric = metrics.counter("log_events_replayed_total", "Events skipped because this worker already wrote them (recent-key cache)", "shard", shardId);
+        decodeMetric = metrics.latency("log_decode_seconds", "Time to decode one event (1 in 8 sampled)", "shard", shardId);
+        flushSizeMetric = metrics.histogram("log_flush_records", "Records per flush", 1, FLUSH_SIZE_BOUNDS, "shard", shardId);
+        enqueueToFlushMetric = metrics.latency("log_enqueue_to_flush_seconds", "Age of the oldest record of a flush when it's flushed", "shard", shardId);
+        readyMetric = metrics.latency("log_shard_ready_seconds", "From the processor's creation (the lease) to its shard being ready", "shard", shardId);
+        endToEndMetric = metrics.latency("log_end_to_end_seconds",
+                "From a record's arrival in Kinesis to its flush being written (blocking sinks), per retrieval mode",
+                "shard", shardId, "retrieval", retrieval);
+
+
+        registered.put("log_buffer_records", metrics.gauge("log_buffer_records",
+                "Records buffered and not flushed yet, as of the last KCL batch", () -> bufferDepth, "shard", shardId));
+        registered.put("log_flushes_in_flight", metrics.gauge("log_flushes_in_flight",
+                "Flushes being written", pipeline::running, "shard", shardId));
+        registered.put("log_millis_behind_latest", metrics.gauge("log_millis_behind_latest",
+                "How far behind the tip of the shard the last KCL batch was", () -> millisBehindLatest, "shard", shardId));
+        registered.put("log_checkpoint_lag_seconds", metrics.gauge("log_checkpoint_lag_seconds",
+                "How long the oldest record that isn't checkpointed yet has been waiting", () -> {
+                    long since = uncheckpointedSinceNanos;
+                    return since == 0L ? 0.0 : (System.nanoTime() - since) / Metrics.NANOS;
+                }, "shard", shardId));
+        registered.put("log_flush_retries_total", metrics.counter("log_flush_retries_total",
+                "Flushes re-submitted after a failed write", pipeline::retries, "shard", shardId));
+    }
+
+    /** The gauges read this processor: drop them once it's done, so a lost lease doesn't keep it alive. */
+    private void unregisterMetrics() {
+        registered.forEach((name, value) -> metrics.remove(name, value, "shard", shardId));
+        registered.clear();
+    }
+
+    /**
+     * Hands an event (or a whole record) to the dead-letter queue, if there's one. Thread safe: sink callbacks call it too.
+     * @param key the event's key, kept as the dead letter's sequence number
+     * @param data its raw bytes, copied
+     * @param stage where it failed
+     * @param cause why
+     */
+    private void deadLetter(String key, ByteBuffer data, String stage, Throwable cause) {
+        if (deadLetters != null) deadLetters.offer(DeadLetter.of(shardId, key, stage, cause, data));
+    }
+
+    /** What an item was prepared from, kept only to dead-letter it. */
+    private record Source(String key, ByteBuffer data) { }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t;
+    }
 
-        if (force || sizeHit || bytesHit || timeHit) {
-            if (buffer.isEmpty()) return;
+    private <T> SinkBuffer<T> bufferFor(LogSink<T> sink, String shardId) {
+        Histogram latency = metrics.latency("log_sink_write_seconds", "Time for a sink to write one flush",
+                "shard", shardId, "sink", sink.name());
+        return new SinkBuffer<>(sink.forShard(shardId), latency);
+    }
 
-            toFlush = new ArrayList<>(buffer);
-            lastSeq = toFlush.get(toFlush.size() - 1).sequenceNumber;
+    /** The items prepared for one sink since the last flush. */
+    private final class SinkBuffer<T> {
+        final LogSink<T> sink;
+        final Histogram latency;
+        List<T> items = new ArrayList<>(BATCH_MAX_ITEMS);
+        // the source of each item, same order, kept only to dead-letter them (plain records are KCL's buffers, not copied)
+        List<Source> sources = deadLetters != null ? new ArrayList<>(BATCH_MAX_ITEMS) : null;
 
-            buffer.clear();
-            bufferedBytes = 0L;
-            firstEnqueueAtMs = 0L;
+        SinkBuffer(LogSink<T> sink, Histogram latency) {
+            this.sink = sink;
+            this.latency = latency;
         }
 
-        if (toFlush == null) return;
+        void add(LogEvent e, String key, Source source) {
+            addPrepared(sink.prepare(e, key), source);
+        }
 
-        // Here starts the part of the code that should be definitely handled asynchronously
-        List<LogEvent> slice = new ArrayList<>(BATCH_MAX_ITEMS);
-        int i = 0;
-        while (i < toFlush.size()) {
-            slice.clear();
-            int end = Math.min(i + BATCH_MAX_ITEMS, toFlush.size());
-            for (int j = i; j < end; j++) slice.add(toFlush.get(j).event);
+        /** @param prepared what {@link #sink} prepared, or {@code null} */
+        @SuppressWarnings("unchecked")
+        void addPrepared(Object prepared, Source source) {
+            if (prepared == null) return;
+            T item = (T) prepared;
+            items.add(item);
+            if (sources != null) sources.add(source);
+            bufferedBytes += sink.sizeOf(item);
+        }
 
-            final List<LogEvent> batchRef = new ArrayList<>(slice);
-            runWithBackoff(() -> dynamoWriter.putBatch(batchRef));
-            i = end;
+        void clear() {
+            items.clear();
+            if (sources != null) sources.clear();
         }
 
-        final String seq = lastSeq;
-        runWithBackoff(() -> {
-            try { checkpointer.checkpoint(seq); } catch (Exception e) { throw new RuntimeException(e); }
-        });
+        /** @return the buffered items as a write, or {@code null} if there are none */
+        SinkWrite<T> take() {
+            if (items.isEmpty()) return null;
+            SinkWrite<T> w = new SinkWrite<>(sink, items, sources, latency);
+            items = new ArrayList<>(BATCH_MAX_ITEMS);
+            if (sources != null) sources = new ArrayList<>(BATCH_MAX_ITEMS);
+            return w;
+        }
     }
 
     /**
-     * Runs an action with a basic implementation of an exponential backoff mechanism
-     * @param action the action to run
+     * <p> One sink's part of a flush. Without a dead-letter queue a failed write is simply started again. With one: </p>
+     * <ul>
+     *     <li>if the sink rejected the items as a {@link PoisonBatchException}, they're written again one by one, and
+     *     only the ones rejected on their own are dead-lettered,</li>
+     *     <li>after {@link AppConfig#dlqMaxFlushAttempts()} failed attempts, every item is dead-lettered, so that the
+     *     shard moves on.</li>
+     * </ul>
      */
-    private void runWithBackoff(Runnable action) {
-        int maxRetries = 5;
-        long baseMillis = 200L;
-        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+    private final class SinkWrite<T> {
+        final LogSink<T> sink;
+        final List<T> items;
+        final List<Source> sources;
+        final Histogram latency;
+        CompletableFuture<Void> write;
+        int attempts;
+
+        SinkWrite(LogSink<T> sink, List<T> items, List<Source> sources, Histogram latency) {
+            this.sink = sink;
+            this.items = items;
+            this.sources = sources;
+            this.latency = latency;
+        }
+
+        /**
+         * Starts the write, or starts it again if it failed.
+         * @return the write, or {@code null} if the checkpoint doesn't wait for this sink
+         */
+        CompletableFuture<Void> start() {
+            boolean blocks = sink.blocksCheckpoint();
+            if (write == null || (blocks && write.isCompletedExceptionally())) {
+                if (write != null && deadLetters != null) {
+                    Throwable failure = unwrap(write.handle((r, e) -> e).join());
+                    boolean poison = failure instanceof PoisonBatchException;
+                    if (attempts >= maxFlushAttempts || (poison && items.size() == 1)) {
+                        for (Source src : sources) deadLetter(src.key(), src.data(), "write:" + sink.name(), failure);
+                        write = DONE;
+                        return DONE;
+                    }
+                    if (poison) {
+                        attempts++;
+                        write = oneByOne();
+                        return write;
+                    }
+                }
+                attempts++;
+                long t0 = System.nanoTime();
+                try {
+                    write = sink.write(items);
+                    write.whenComplete((r, e) -> latency.record(System.nanoTime() - t0));
+                } catch (RuntimeException e) {
+                    write = CompletableFuture.failedFuture(e);
+                }
+            }
+            return blocks ? write : null;
+        }
+
+        /** Writes every item on its own, dead-letters the ones the sink still rejects as poison. */
+        private CompletableFuture<Void> oneByOne() {
+            CompletableFuture<?>[] each = new CompletableFuture<?>[items.size()];
+            for (int i = 0; i < each.length; i++) {
+                Source source = sources.get(i);
+                CompletableFuture<Void> f;
+                try {
+                    f = sink.write(List.of(items.get(i)));
+                } catch (RuntimeException e) {
+                    f = CompletableFuture.failedFuture(e);
+                }
+                each[i] = f.exceptionally(err -> {
+                    Throwable cause = unwrap(err);
+                    // anything else fails the write, which is then retried as a whole
+                    if (!(cause instanceof PoisonBatchException)) throw new CompletionException(cause);
+                    deadLetter(source.key(), source.data(), "write:" + sink.name(), cause);
+                    return null;
+                });
+            }
+            return CompletableFuture.allOf(each);
+        }
+    }
+
+    /**
+     * Prepares the event for every sink it's routed to right away (for DynamoDB, that's the only time its item is
+     * built) and buffers it. A sink that fails to prepare it doesn't keep the others from getting it.
+     * @param e the event; it can be reused as soon as this returns
+     * @param key the event's key
+     * @param data what it was decoded from
+     * @param pooled whether {@code data} is reused once this returns: then it's copied, if there's a dead-letter queue
+     * @param sinks the sinks to buffer it for, as a {@link RuleSet} bitmask over {@link #buffers}
+     * @param keyHash the key's {@link EventKeys#hash}, for the recent-key cache
+     * @throws RuntimeException the first failure of a sink to prepare the event, once every sink has been tried
+     */
+    private void enqueue(LogEvent e, String key, ByteBuffer data, boolean pooled, long sinks, long keyHash) {
+        Source source = startEnqueue(key, data, pooled);
+        RuntimeException failure = null;
+        for (int i = 0; i < buffers.size(); i++) {
+            if ((sinks & (1L << i)) == 0L) continue;
             try {
-                action.run();
-                return;
-            } catch (Exception ex) {
-                if (attempt == maxRetries) throw ex;
-                long jitter = ThreadLocalRandom.current().nextLong(0, baseMillis);
-                long sleep = Math.min(2500L, (long)(baseMillis * Math.pow(2, attempt))) + jitter;
-                try { Thread.sleep(sleep); } catch (InterruptedException ignored) {
-                    Thread.currentThread().interrupt();
-                    return;
+                buffers.get(i).add(e, key, source);
+            } catch (RuntimeException ex) {
+                if (failure == null) failure = ex;
+            }
+        }
+        endEnqueue(keyHash);
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * {@link #enqueue} for an event a pool thread already prepared.
+     * @param items what each sink prepared, by sink ({@code null} for the ones it isn't routed to)
+     * @param key the event's key
+     * @param data what it was decoded from, already copied if it has to be
+     * @param keyHash the key's {@link EventKeys#hash}, for the recent-key cache
+     */
+    private void enqueuePrepared(Object[] items, String key, ByteBuffer data, long keyHash) {
+        Source source = startEnqueue(key, data, false);
+        for (int i = 0; i < items.length; i++) buffers.get(i).addPrepared(items[i], source);
+        endEnqueue(keyHash);
+    }
+
+    /** @return the event's source, or {@code null} if there's no dead-letter queue */
+    private Source startEnqueue(String key, ByteBuffer data, boolean pooled) {
+        if (bufferedRecords == 0) {
+            firstEnqueueAtNanos = System.nanoTime();
+            if (uncheckpointedSinceNanos == 0L) uncheckpointedSinceNanos = firstEnqueueAtNanos;
+        }
+        return deadLetters == null ? null : new Source(key, pooled ? copyOf(data) : data);
+    }
+
+    private void endEnqueue(long keyHash) {
+        if (bufferedRecords == arrivals.length) {
+            arrivals = Arrays.copyOf(arrivals, arrivals.length * 2);
+            keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+        }
+        arrivals[bufferedRecords] = recordArrivalMillis;
+        keyHashes[bufferedRecords] = keyHash;
+        bufferedRecords++;
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        return copy;
+    }
+
+    private void resetBuffer() {
+        for (SinkBuffer<?> b : buffers) b.clear();
+        bufferedRecords = 0;
+        lastBufferedSeq = null;
+        bufferedBytes = 0L;
+        firstEnqueueAtNanos = 0L;
+    }
+
+    /**
+     * One flush handed to the {@link FlushPipeline}: the write of every sink that got items. It completes when the
+     * sinks that block the checkpoint are done; when the pipeline retries it, only their failed writes run again.
+     * Once it goes through, the end-to-end latency of each of its events is recorded, and their keys go into the
+     * recent-key cache.
+     */
+    private static final class FlushBatch implements Supplier<CompletableFuture<Void>> {
+        private final List<SinkWrite<?>> writes;
+        private final long[] arrivals;
+        private final Histogram endToEnd;
+        private final RecentKeys.Shard recentKeys;
+        private final long[] keyHashes;
+
+        /**
+         * @param recentKeys the shard's recent keys, or {@code null}
+         * @param keyHashes the events' key hashes, {@code null} without recent keys
+         */
+        FlushBatch(List<SinkWrite<?>> writes, long[] arrivals, Histogram endToEnd, RecentKeys.Shard recentKeys,
+                   long[] keyHashes) {
+            this.writes = writes;
+            this.arrivals = arrivals;
+            this.endToEnd = endToEnd;
+            this.recentKeys = recentKeys;
+            this.keyHashes = keyHashes;
+        }
+
+        @Override
+        public CompletableFuture<Void> get() {
+            CompletableFuture<Void> written = start();
+            // arrival timestamps are Kinesis' clock, at millisecond precision: close enough next to the polling delay
+            return written.whenComplete((v, err) -> {
+                if (err != null) return;
+                if (recentKeys != null) recentKeys.addAll(keyHashes);
+                long now = System.currentTimeMillis();
+                for (long at : arrivals) {
+                    if (at > 0L) endToEnd.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0L, now - at)));
                 }
+            });
+        }
+
+        private CompletableFuture<Void> start() {
+            CompletableFuture<?>[] waits = new CompletableFuture<?>[writes.size()];
+            CompletableFuture<Void> first = null;
+            int n = 0;
+            for (SinkWrite<?> w : writes) {
+                CompletableFuture<Void> f = w.start();
+                if (f == null) continue;
+                if (first == null) first = f;
+                waits[n++] = f;
+            }
+            if (n == 0) return DONE;
+            if (n == 1) return first;
+            return CompletableFuture.allOf(Arrays.copyOf(waits, n));
+        }
+    }
+
+    /**
+     * <p> Does the following things: </p>
+     * <ul>
+     * <li>decide whether to flush or not. for this, it checks if the size is exceeded, the byte size (measured on the prepared items) is exceded or the time of the first added record to the buffer is exceeded. </li>
+     * <li>hand each sink's buffer itself to the {@link FlushPipeline}: it never holds more than BATCH_MAX_ITEMS = 25 items, which is what DynamoDB allows, so it's exactly one slice and nothing gets copied. The writes run asynchronously, and the flush completes when every sink that blocks the checkpoint is done. </li>
+     * <li>start fresh buffers </li>
+     * <li>when forced, wait for every in-flight write and checkpoint to the last flushed record </li>
+     * </ul>
+     * <p> Non-forced flushes don't checkpoint: {@link #processRecords} checkpoints once per KCL batch, up to the highest
+     * sequence number the pipeline has completed. </p>
+     * @param checkpointer the KCL checkpointer
+     * @param force whether to force flush (and wait for the pipeline) or not
+     */
+    private void maybeFlush(RecordProcessorCheckpointer checkpointer, boolean force) {
+        flushIfDue(force);
+        if (force) checkpoint(checkpointer, pipeline.awaitAll());
+    }
+
+    /**
+     * The flush part of {@link #maybeFlush}, without the checkpoint: also called between the lines of a batched record.
+     * @param force whether to flush whatever is buffered
+     */
+    private void flushIfDue(boolean force) {
+        boolean sizeHit  = bufferedRecords >= BATCH_MAX_ITEMS;
+        boolean bytesHit = bufferedBytes >= BATCH_MAX_BYTES;
+        long now = System.nanoTime();
+        boolean timeHit  = (bufferedRecords > 0 && (now - firstEnqueueAtNanos) >= FLUSH_MAX_AGE_NANOS);
+
+        if ((force || sizeHit || bytesHit || timeHit) && bufferedRecords > 0) {
+            flushSizeMetric.record(bufferedRecords);
+            enqueueToFlushMetric.record(now - firstEnqueueAtNanos);
+            List<SinkWrite<?>> writes = new ArrayList<>(buffers.size());
+            for (SinkBuffer<?> b : buffers) {
+                SinkWrite<?> w = b.take();
+                if (w != null) writes.add(w);
             }
+            pipeline.submit(lastBufferedSeq, new FlushBatch(writes, Arrays.copyOf(arrivals, bufferedRecords), endToEndMetric,
+                    recentKeys, recentKeys == null ? null : Arrays.copyOf(keyHashes, bufferedRecords)));
+            resetBuffer();
         }
     }
 
-    private static long nowMs() { return Instant.now().toEpochMilli(); }
+    /**
+     * Checkpoints up to {@code seq}, or before the oldest rollup pane that isn't written yet if that's earlier, if
+     * there's anything new to checkpoint.
+     * @param checkpointer the KCL checkpointer
+     * @param seq the sequence (and sub-sequence) number the sinks have written up to, or {@code null} if nothing new
+     */
+    private void checkpoint(RecordProcessorCheckpointer checkpointer, ExtendedSequenceNumber seq) {
+        if (seq != null) flushedSeq = seq;
+        ExtendedSequenceNumber at = rollups == null ? flushedSeq : rollups.cap(flushedSeq);
+        if (at == null || (checkpointedSeq != null && at.compareTo(checkpointedSeq) <= 0)) return;
+        // throws if it never went through, or the thread was interrupted: then it's still to do
+        Backoff.CHECKPOINT.run(() -> {
+            try { checkpointer.checkpoint(at.sequenceNumber(), at.subSequenceNumber()); } catch (Exception e) { throw new RuntimeException(e); }
+        });
+        checkpointedSeq = at;
+        // what's left is younger than this checkpoint (we don't track each flush's age, that's close enough)
+        uncheckpointedSinceNanos = pipeline.isEmpty() && bufferedRecords == 0 && at == flushedSeq ? 0L : System.nanoTime();
+    }
 }
@@ -0,0 +1,103 @@
+package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p> The keys of the events each shard has written lately, when {@code DEDUP_CACHE_KEYS} is set: a shard processor
+ * skips an event whose key is in there, so a replay doesn't cost DynamoDB writes (they'd only overwrite the same items,
+ * see {@code EventKeys}). </p>
+ * <ul>
+ *     <li>a key goes in once its flush is written (or dead-lettered), never before: an event that was only buffered
+ *     when the lease was lost is written again by the next owner,</li>
+ *     <li>it's kept per shard for the whole process, not per processor: replays come from KCL building a new
+ *     processor for a shard this worker leased again (after a lost lease or a failed checkpoint). A shard another
+ *     worker had in between starts over with what this one wrote before, which is fine, the items are the same,</li>
+ *     <li>each shard remembers at least the last half and at most all of its {@code DEDUP_CACHE_KEYS} keys, as 64-bit
+ *     hashes in two generations of primitive hash sets: nothing is allocated per event.</li>
+ * </ul>
+ */
+public final class RecentKeys {
+    private final int capacity;
+    private final ConcurrentHashMap<String, Shard> shards = new ConcurrentHashMap<>();
+
+    public RecentKeys(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("DEDUP_CACHE_KEYS must be 2 or more: " + capacity);
+        this.capacity = capacity;
+    }
+
+    /** @return the cache, or {@code null} if {@link AppConfig#dedupCacheKeys()} is 0 */
+    public static RecentKeys start(AppConfig config) {
+        if (config.dedupCacheKeys() <= 0) return null;
+        System.out.printf("Skipping replayed events: up to %d recent keys per shard%n", config.dedupCacheKeys());
+        return new RecentKeys(config.dedupCacheKeys());
+    }
+
+    /** @return the shard's keys, the same ones for every processor of that shard */
+    Shard forShard(String shardId) {
+        return shards.computeIfAbsent(shardId, id -> new Shard(capacity / 2));
+    }
+
+    /**
+     * One shard's keys. Its processor checks them on the record thread while its flushes add to them from the sinks'
+     * callbacks, hence the lock (never contended for long: a flush adds at most a few dozen keys).
+     */
+    static final class Shard {
+        private final int generationSize;
+        private long[] current;
+        private long[] previous;
+        private int currentCount;
+
+        Shard(int generationSize) {
+            this.generationSize = generationSize;
+            // at most half full, so probes stay short
+            int slots = Integer.highestOneBit(Math.max(2, generationSize) * 2 - 1) << 1;
+            this.current = new long[slots];
+            this.previous = new long[slots];
+        }
+
+        /** @param hash an event's {@code EventKeys.hash} */
+        synchronized boolean contains(long hash) {
+            long h = nonZero(hash);
+            return find(current, h) || find(previous, h);
+        }
+
+        /** @param hashes the {@code EventKeys.hash} of every event of a written flush */
+        synchronized void addAll(long[] hashes) {
+            for (long hash : hashes) {
+                long h = nonZero(hash);
+                if (find(current, h)) continue;
+                if (currentCount == generationSize) {
+                    // the older half is forgotten
+                    long[] t = previous;
+                    previous = current;
+                    current = t;
+                    Arrays.fill(current, 0L);
+                    currentCount = 0;
+                }
+                insert(current, h);
+                currentCount++;
+            }
+        }
+
+        private static boolean find(long[] table, long h) {
+            int mask = table.length - 1;
+            for (int i = (int) (h ^ (h >>> 32)) & mask; ; i = (i + 1) & mask) {
+                if (table[i] == h) return true;
+                if (table[i] == 0L) return false;
+            }
+        }
+
+        private static void insert(long[] table, long h) {
+            int mask = table.length - 1;
+            int i = (int) (h ^ (h >>> 32)) & mask;
+            while (table[i] != 0L) i = (i + 1) & mask;
+            table[i] = h;
+        }
+
+        /** 0 marks an empty slot */
+        private static long nonZero(long h) { return h == 0L ? 1L : h; }
+    }
+}
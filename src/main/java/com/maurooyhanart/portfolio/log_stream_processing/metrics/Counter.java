@@ -0,0 +1,18 @@
+package com.maurooyhanart.portfolio.log_stream_processing.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count. Lock-free: {@link #inc()} is a {@link LongAdder} increment.
+ */
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    Counter() { }
+
+    public void inc() { value.increment(); }
+
+    public void add(long n) { value.add(n); }
+
+    public long sum() { return value.sum(); }
+}
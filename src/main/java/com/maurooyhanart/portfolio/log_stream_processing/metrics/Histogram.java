@@ -0,0 +1,112 @@
+package com.maurooyhanart.portfolio.log_stream_processing.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> HdrHistogram-style distribution of non-negative {@code long} values (usually nanoseconds). </p>
+ * <ul>
+ *     <li>values go into log-linear buckets: 16 per power of two, so every value is kept within ~6% of itself, from
+ *     1 to {@code Long.MAX_VALUE}, in a fixed 960 slots,</li>
+ *     <li>{@link #record} is one bucket increment plus two {@link LongAdder} adds, with no lock and no allocation,</li>
+ *     <li>the exporter folds the fine buckets into the coarse {@code le} bounds the histogram was registered with.</li>
+ * </ul>
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    static final int SLOTS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    final double scale;
+    final double[] bounds;
+
+    /**
+     * @param scale how many recorded units make one exported unit, e.g. {@code 1e9} for nanoseconds exported as seconds
+     * @param bounds the exported {@code le} bounds, ascending, in exported units
+     */
+    Histogram(double scale, double[] bounds) {
+        this.scale = scale;
+        this.bounds = bounds.clone();
+    }
+
+    public void record(long value) {
+        long v = Math.max(0L, value);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+    }
+
+    /**
+     * Adds every value {@code other} recorded so far, e.g. to look at the per-shard series of a metric as a whole.
+     * @param other a histogram with the same scale
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < SLOTS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        count.add(other.count());
+        sum.add(other.sum());
+    }
+
+    public long count() { return count.sum(); }
+
+    /** @return the sum of every recorded value, in recorded units */
+    public long sum() { return sum.sum(); }
+
+    /**
+     * @return how many values fall under each of {@link #bounds}, cumulative, followed by the total ({@code +Inf}).
+     * Not an atomic snapshot: recording keeps going while this reads.
+     */
+    long[] cumulative() {
+        long[] out = new long[bounds.length + 1];
+        int b = 0;
+        long seen = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            double upper = upperBound(i) / scale;
+            while (b < bounds.length && upper > bounds[b]) out[b++] = seen;
+            seen += c;
+        }
+        while (b < bounds.length) out[b++] = seen;
+        out[bounds.length] = seen;
+        return out;
+    }
+
+    /**
+     * @param p the percentile, in {@code [0, 100]}
+     * @return the value under which {@code p}% of the recorded values are, in recorded units
+     */
+    public long percentile(double p) {
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++) total += counts.get(i);
+        if (total == 0) return 0L;
+        long target = Math.max(1L, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return upperBound(i);
+        }
+        return upperBound(SLOTS - 1);
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    static long upperBound(int idx) {
+        if (idx < SUB) return idx;
+        int exp = idx / SUB + SUB_BITS - 1;
+        int sub = idx % SUB;
+        long lower = (long) (SUB + sub) << (exp - SUB_BITS);
+        long width = 1L << (exp - SUB_BITS);
+        return lower + (width - 1);
+    }
+}
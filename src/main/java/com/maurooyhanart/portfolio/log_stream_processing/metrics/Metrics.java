@@ -0,0 +1,121 @@
+package com.maurooyhanart.portfolio.log_stream_processing.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * <p> Process-wide registry of the consumer's metrics, created once by {@code Main} and exported by
+ * {@link PrometheusEndpoint}. </p>
+ * <ul>
+ *     <li>instruments are looked up (or created) once, when a shard processor or sink is set up, and then kept in
+ *     fields: the hot path only ever touches a {@link Counter} or a {@link Histogram}, never this registry,</li>
+ *     <li>asking again for the same name and labels returns the same instrument, so a shard that comes back to this
+ *     worker keeps counting where it left off,</li>
+ *     <li>gauges and function counters are read when scraped. Their suppliers must be cheap and thread safe.</li>
+ * </ul>
+ * <p> Labels are given as {@code key, value} pairs, e.g. {@code counter("ddb_items_total", "...", "shard", id)}. </p>
+ */
+public final class Metrics {
+    /** Latency bounds, in seconds: 100us to 10s. */
+    public static final double[] LATENCY_BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    /** Recorded nanoseconds, exported as seconds. */
+    public static final double NANOS = 1e9;
+
+    enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    /** All the series of one metric name. */
+    static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        // keyed by the rendered label set, sorted so the output is stable
+        final ConcurrentSkipListMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(labels(labels), k -> new Counter());
+    }
+
+    /**
+     * A counter whose value is read from somewhere else when scraped, e.g. a total some component already keeps.
+     * @return the supplier, to {@link #remove} it later
+     */
+    public LongSupplier counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).series.put(labels(labels), value);
+        return value;
+    }
+
+    /**
+     * @param scale how many recorded units make one exported unit ({@link #NANOS} for latencies)
+     * @param bounds the exported bucket bounds, ascending, in exported units ({@link #LATENCY_BOUNDS} for latencies)
+     */
+    public Histogram histogram(String name, String help, double scale, double[] bounds, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).series
+                .computeIfAbsent(labels(labels), k -> new Histogram(scale, bounds));
+    }
+
+    /** A nanosecond latency histogram, exported in seconds. */
+    public Histogram latency(String name, String help, String... labels) {
+        return histogram(name, help, NANOS, LATENCY_BOUNDS, labels);
+    }
+
+    /**
+     * Registers (or replaces) a gauge.
+     * @return the supplier, to {@link #remove} it later
+     */
+    public DoubleSupplier gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series.put(labels(labels), value);
+        return value;
+    }
+
+    /**
+     * Removes a gauge or function counter, but only if it's still the one given (a newer owner of the same series may
+     * have replaced it).
+     */
+    public void remove(String name, Object value, String... labels) {
+        Family f = families.get(name);
+        if (f != null) f.series.remove(labels(labels), value);
+    }
+
+    Map<String, Family> families() { return families; }
+
+    private Family family(String name, String help, Type type) {
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (f.type != type) throw new IllegalArgumentException("Metric " + name + " is a " + f.type + ", not a " + type);
+        return f;
+    }
+
+    /** Renders {@code k1, v1, k2, v2} as {@code k1="v1",k2="v2"}. */
+    private static String labels(String... kv) {
+        if (kv.length % 2 != 0) throw new IllegalArgumentException("Labels must be key, value pairs");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < kv.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(kv[i]).append("=\"");
+            String v = kv[i + 1];
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+}
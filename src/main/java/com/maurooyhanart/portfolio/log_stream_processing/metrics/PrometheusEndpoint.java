@@ -0,0 +1,125 @@
+package com.maurooyhanart.portfolio.log_stream_processing.metrics;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * <p> Serves {@link Metrics} at {@code http://host:port/metrics} in the Prometheus text format, with the JDK's own
+ * HTTP server (one daemon thread, nothing added to the classpath). </p>
+ * <p> All the work happens when scraped: reading counters, folding histograms into their {@code le} buckets, calling
+ * gauges. The record threads don't pay for it. </p>
+ */
+public final class PrometheusEndpoint implements AutoCloseable {
+    private final Metrics metrics;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private PrometheusEndpoint(Metrics metrics, HttpServer server, ExecutorService executor) {
+        this.metrics = metrics;
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts serving on every interface.
+     * @param metrics the registry to export
+     * @param port the port
+     * @return the running endpoint
+     * @throws IOException if the port can't be bound
+     */
+    public static PrometheusEndpoint start(Metrics metrics, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(Threads.factory("metrics-http", false));
+        PrometheusEndpoint endpoint = new PrometheusEndpoint(metrics, server, executor);
+        server.createContext("/metrics", endpoint::handle);
+        server.setExecutor(executor);
+        server.start();
+        System.out.printf("Metrics on http://0.0.0.0:%d/metrics%n", port);
+        return endpoint;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param metrics the registry
+     * @return every metric in the Prometheus text exposition format
+     */
+    public static String scrape(Metrics metrics) {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        for (Metrics.Family f : metrics.families().values()) {
+            if (f.series.isEmpty()) continue;
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type.name().toLowerCase()).append('\n');
+            for (Map.Entry<String, Object> s : f.series.entrySet()) {
+                String labels = s.getKey();
+                Object m = s.getValue();
+                if (m instanceof Histogram h) {
+                    histogram(sb, f.name, labels, h);
+                } else {
+                    double v;
+                    try {
+                        v = m instanceof Counter c ? c.sum()
+                                : m instanceof LongSupplier ls ? ls.getAsLong()
+                                : ((DoubleSupplier) m).getAsDouble();
+                    } catch (RuntimeException e) {
+                        continue; // a gauge that can't be read right now is just left out
+                    }
+                    sample(sb, f.name, labels, v);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, Histogram h) {
+        long[] cumulative = h.cumulative();
+        String sep = labels.isEmpty() ? "" : ",";
+        for (int i = 0; i < h.bounds.length; i++) {
+            sample(sb, name + "_bucket", labels + sep + "le=\"" + h.bounds[i] + "\"", cumulative[i]);
+        }
+        sample(sb, name + "_bucket", labels + sep + "le=\"+Inf\"", cumulative[h.bounds.length]);
+        sample(sb, name + "_sum", labels, h.sum() / h.scale);
+        sample(sb, name + "_count", labels, cumulative[h.bounds.length]);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double v) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ');
+        if (v == Math.rint(v) && !Double.isInfinite(v) && Math.abs(v) < 1e15) sb.append((long) v);
+        else sb.append(v);
+        sb.append('\n');
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
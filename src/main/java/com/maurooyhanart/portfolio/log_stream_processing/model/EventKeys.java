@@ -0,0 +1,48 @@
+package com.maurooyhanart.portfolio.log_stream_processing.model;
+
+/**
+ * <p> Deterministic ids for events, from where they are in the stream: the shard and the event's key
+ * ({@code seq[:subSeq][:line]}, see {@code LogShardRecordProcessor}). A record replayed after a lease loss or a
+ * failed checkpoint gets the same id again, so its DynamoDB item is overwritten instead of duplicated. </p>
+ * <p> The hash is FNV-1a over the characters with murmur3's 64-bit finalizer on top: cheap, no allocation, no
+ * {@code SecureRandom}. It isn't meant to resist anyone, only to not collide by chance, and ids are only compared
+ * within one partition key and millisecond. </p>
+ */
+public final class EventKeys {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private EventKeys() { }
+
+    /**
+     * @param shardId the shard the event came from, or {@code null}
+     * @param key the event's key
+     * @return a 64-bit hash of both
+     */
+    public static long hash(String shardId, String key) {
+        long h = FNV_OFFSET;
+        if (shardId != null) {
+            for (int i = 0, n = shardId.length(); i < n; i++) h = (h ^ shardId.charAt(i)) * FNV_PRIME;
+            h = (h ^ '/') * FNV_PRIME;
+        }
+        for (int i = 0, n = key.length(); i < n; i++) h = (h ^ key.charAt(i)) * FNV_PRIME;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @param tsMillis the event's timestamp
+     * @param hash the event's {@link #hash}
+     * @return {@code tsMillis#<16 hex digits>}: time-ordered, and the same for the same event every time
+     */
+    public static String sortKey(long tsMillis, long hash) {
+        StringBuilder sb = new StringBuilder(32).append(tsMillis).append('#');
+        for (int shift = 60; shift >= 0; shift -= 4) sb.append(HEX[(int) (hash >>> shift) & 0xf]);
+        return sb.toString();
+    }
+}
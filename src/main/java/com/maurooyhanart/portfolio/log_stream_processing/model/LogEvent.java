@@ -11,6 +11,19 @@ public class LogEvent {
     public String service;
     public String message;
     public Map<String, Object> context;
+
+    /**
+     * @return a shallow copy, for sinks that keep the event past the record it was decoded from
+     */
+    public LogEvent copy() {
+        LogEvent c = new LogEvent();
+        c.timestamp = timestamp;
+        c.level = level;
+        c.service = service;
+        c.message = message;
+        c.context = context;
+        return c;
+    }
 }
 
 
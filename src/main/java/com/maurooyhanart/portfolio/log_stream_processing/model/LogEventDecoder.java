@@ -0,0 +1,250 @@
+package com.maurooyhanart.portfolio.log_stream_processing.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+/**
+ * <p> Streaming decoder for the JSON log lines we get from Kinesis. It reads the record bytes with Jackson's byte
+ * parser and fills a {@link LogEvent} field by field, instead of going through a {@code String} and the generic
+ * {@code ObjectMapper}. </p>
+ * <ul>
+ *     <li>the record's {@link ByteBuffer} is copied into a reusable scratch array (KCL hands us read-only buffers, so
+ *     there's no backing array to parse in place), and its position is left untouched. Heap buffers, like the lines
+ *     of a decompressed record, are parsed in place,</li>
+ *     <li>{@code level} and {@code service} are interned straight from the parser's buffer, so repeated values don't
+ *     allocate,</li>
+ *     <li>ISO-8601 UTC timestamps ({@code 2024-08-07T12:00:00.123Z}) are parsed without allocating; anything else
+ *     falls back to the same rules as the JSR-310 module (numbers are epoch seconds),</li>
+ *     <li>{@code context} is skipped. Only if {@code errorContext} is on and the event is an ERROR, it's
+ *     materialized from its byte range: the processors turn it on only when a sink uses it (alerts),</li>
+ *     <li>with a {@link Filter}, the decoding stops as soon as {@code service} and {@code level} are read if the
+ *     filter says so: an event the rules drop doesn't get its message or timestamp parsed.</li>
+ * </ul>
+ * <p> One decoder per shard processor: it's not thread safe. </p>
+ */
+public final class LogEventDecoder {
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final TypeReference<Map<String, Object>> CONTEXT_TYPE = new TypeReference<>() { };
+
+    private final boolean errorContext;
+    private final ObjectMapper contextMapper = new ObjectMapper();
+    private final StringInterner levels = new StringInterner(16);
+    private final StringInterner services = new StringInterner(1024);
+    private byte[] scratch = new byte[8 * 1024];
+
+    /**
+     * @param errorContext whether to materialize {@code context} for ERROR events
+     */
+    public LogEventDecoder(boolean errorContext) {
+        this.errorContext = errorContext;
+    }
+
+    /** Looks at an event's service and level as soon as both are read. */
+    @FunctionalInterface
+    public interface Filter {
+        /**
+         * @param service the event's (interned) service
+         * @param level the event's (interned) level
+         * @return whether to stop decoding it: the rest of the event isn't needed
+         */
+        boolean stop(String service, String level);
+    }
+
+    /**
+     * Decodes one JSON document into {@code into}, overwriting every field.
+     * @param data the record payload; its position and limit are not modified
+     * @param into the event to fill
+     * @return {@code into}
+     * @throws IOException if the payload is not a JSON object or a field can't be read
+     */
+    public LogEvent decode(ByteBuffer data, LogEvent into) throws IOException {
+        return decode(data, into, null);
+    }
+
+    /**
+     * Same as {@link #decode(ByteBuffer, LogEvent)}, stopping early if the filter says so. The filter isn't called for
+     * an event without a service or a level.
+     * @param data the record payload; its position and limit are not modified
+     * @param into the event to fill; if the decoding stopped, only what came before is set
+     * @param filter the filter, or {@code null}
+     * @return {@code into}
+     * @throws IOException if the payload is not a JSON object or a field (before the stop) can't be read
+     */
+    public LogEvent decode(ByteBuffer data, LogEvent into, Filter filter) throws IOException {
+        int len = data.remaining();
+        byte[] bytes;
+        int offset;
+        if (data.hasArray()) {
+            // lines of a decompressed record: already in a heap array, parse them in place
+            bytes = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            data.get(data.position(), scratch, 0, len);
+            bytes = scratch;
+            offset = 0;
+        }
+
+        into.timestamp = null;
+        into.level = null;
+        into.service = null;
+        into.message = null;
+        into.context = null;
+
+        long contextStart = -1L;
+        long contextEnd = -1L;
+
+        try (JsonParser p = FACTORY.createParser(bytes, offset, len)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(p, "Expected a JSON object");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                JsonToken t = p.nextToken();
+                switch (field) {
+                    case "timestamp" -> into.timestamp = readInstant(p, t);
+                    case "level" -> {
+                        into.level = readInterned(p, t, levels);
+                        if (filter != null && into.service != null && into.level != null
+                                && filter.stop(into.service, into.level)) return into;
+                    }
+                    case "service" -> {
+                        into.service = readInterned(p, t, services);
+                        if (filter != null && into.level != null && into.service != null
+                                && filter.stop(into.service, into.level)) return into;
+                    }
+                    case "message" -> into.message = t.isScalarValue() && t != JsonToken.VALUE_NULL ? p.getText() : skip(p);
+                    case "context" -> {
+                        if (t == JsonToken.START_OBJECT) {
+                            contextStart = p.currentTokenLocation().getByteOffset();
+                            p.skipChildren();
+                            contextEnd = p.currentLocation().getByteOffset();
+                        } else {
+                            p.skipChildren();
+                        }
+                    }
+                    default -> p.skipChildren();
+                }
+            }
+        }
+
+        if (errorContext && contextStart >= 0 && "ERROR".equalsIgnoreCase(into.level)) {
+            // the parser's byte offsets are relative to where it started
+            into.context = contextMapper.readValue(bytes, offset + (int) contextStart, (int) (contextEnd - contextStart), CONTEXT_TYPE);
+        }
+        return into;
+    }
+
+    private static String skip(JsonParser p) throws IOException {
+        p.skipChildren();
+        return null;
+    }
+
+    private static String readInterned(JsonParser p, JsonToken t, StringInterner interner) throws IOException {
+        if (t == JsonToken.VALUE_NULL || !t.isScalarValue()) return skip(p);
+        return interner.intern(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+    }
+
+    private static Instant readInstant(JsonParser p, JsonToken t) throws IOException {
+        switch (t) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NUMBER_INT:
+                return Instant.ofEpochSecond(p.getLongValue());
+            case VALUE_NUMBER_FLOAT: {
+                BigDecimal secs = p.getDecimalValue();
+                long whole = secs.longValue();
+                int nanos = secs.subtract(BigDecimal.valueOf(whole)).movePointRight(9).intValue();
+                return Instant.ofEpochSecond(whole, nanos);
+            }
+            case VALUE_STRING: {
+                Instant fast = parseIsoUtc(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+                if (fast != null) return fast;
+                String text = p.getText().trim();
+                if (text.isEmpty()) return null;
+                if (text.chars().allMatch(Character::isDigit)) return Instant.ofEpochSecond(Long.parseLong(text));
+                try {
+                    return Instant.parse(text);
+                } catch (DateTimeParseException e) {
+                    return OffsetDateTime.parse(text).toInstant();
+                }
+            }
+            default:
+                throw new JsonParseException(p, "Unexpected token for timestamp: " + t);
+        }
+    }
+
+    /**
+     * Parses {@code yyyy-MM-ddTHH:mm:ss[.fraction]Z} without allocating anything but the result.
+     * @return the instant, or {@code null} if the text isn't exactly in that form
+     */
+    static Instant parseIsoUtc(char[] c, int off, int len) {
+        if (len < 20 || c[off + len - 1] != 'Z') return null;
+        if (c[off + 4] != '-' || c[off + 7] != '-' || c[off + 10] != 'T' || c[off + 13] != ':' || c[off + 16] != ':') return null;
+
+        int year = digits(c, off, 4), month = digits(c, off + 5, 2), day = digits(c, off + 8, 2);
+        int hour = digits(c, off + 11, 2), minute = digits(c, off + 14, 2), second = digits(c, off + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59) return null;
+
+        int nanos = 0;
+        int end = off + len - 1; // the 'Z'
+        int pos = off + 19;
+        if (pos < end) {
+            if (c[pos] != '.' || end - pos - 1 > 9 || end - pos - 1 < 1) return null;
+            int scale = 100_000_000;
+            for (int i = pos + 1; i < end; i++) {
+                int d = c[i] - '0';
+                if (d < 0 || d > 9) return null;
+                nanos += d * scale;
+                scale /= 10;
+            }
+        } else if (pos != end) {
+            return null;
+        }
+        if (day > daysInMonth(year, month)) return null;
+
+        long epochDay = epochDay(year, month, day);
+        return Instant.ofEpochSecond(epochDay * 86_400L + hour * 3_600L + minute * 60L + second, nanos);
+    }
+
+    private static int digits(char[] c, int off, int n) {
+        int v = 0;
+        for (int i = 0; i < n; i++) {
+            int d = c[off + i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        return switch (month) {
+            case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+
+    /** Days since 1970-01-01 for a proleptic Gregorian date (H. Hinnant's days_from_civil). */
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146_097L + doe - 719_468L;
+    }
+}
@@ -0,0 +1,210 @@
+package com.maurooyhanart.portfolio.log_stream_processing.model;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * <p> Unpacks Kinesis records that carry many log lines: gzip or zstd compressed, newline-delimited JSON. Plain
+ * records are still one JSON document each, and KPL aggregated records are split by KCL before they get here. </p>
+ * <ul>
+ *     <li>the format is told from the first bytes (the gzip and zstd magic numbers), so producers can mix them on a
+ *     stream,</li>
+ *     <li>the payload is decompressed as a stream into a buffer that's reused for every record, and each line is
+ *     handed over as soon as it's complete: a record is never fully inflated in memory, nor copied per line,</li>
+ *     <li>gzip goes through one {@link Inflater} reused for every member of every record (so no native inflater
+ *     allocated per record), with the CRC checked. zstd uses zstd-jni, with its pooled buffers.</li>
+ * </ul>
+ * <p> One per shard processor: it's not thread safe. </p>
+ */
+public final class RecordPayloads {
+    private static final int INITIAL_BUFFER = 64 * 1024;
+    private static final int MAX_LINE_BYTES = 4 * 1024 * 1024;
+    private static final int ZSTD_MAGIC = 0xFD2FB528;        // little endian on the wire: 28 B5 2F FD
+
+    public enum Format { PLAIN, GZIP, ZSTD }
+
+    /** Gets the lines of a batched record. */
+    @FunctionalInterface
+    public interface LineHandler {
+        /**
+         * @param line the line, without its line break; only valid until this returns
+         * @param index the line's index within the record, blank lines not counted
+         */
+        void line(ByteBuffer line, int index);
+    }
+
+    private final Inflater inflater = new Inflater(true);   // raw deflate: the gzip framing is parsed here
+    private final CRC32 crc = new CRC32();
+    private byte[] buf = new byte[INITIAL_BUFFER];
+    private int filled;     // bytes in buf
+    private int lineStart;  // start of the line being read
+    private int scanned;    // up to where buf was searched for a line break
+    private int lines;
+
+    /**
+     * @param data a record payload; its position is not modified
+     * @return how it's encoded
+     */
+    public static Format formatOf(ByteBuffer data) {
+        int p = data.position();
+        if (data.remaining() >= 2 && (data.get(p) & 0xFF) == 0x1F && (data.get(p + 1) & 0xFF) == 0x8B) return Format.GZIP;
+        if (data.remaining() >= 4 && Integer.reverseBytes(data.getInt(p)) == ZSTD_MAGIC) return Format.ZSTD;
+        return Format.PLAIN;
+    }
+
+    /**
+     * Decompresses a batched record and hands over its non-blank lines, in order.
+     * @param data the record payload; its position is not modified
+     * @param format {@link Format#GZIP} or {@link Format#ZSTD}
+     * @param handler gets every line
+     * @return how many lines there were
+     * @throws IOException if the payload is corrupt or truncated. Lines before the damage were already handed over.
+     */
+    public int forEachLine(ByteBuffer data, Format format, LineHandler handler) throws IOException {
+        filled = 0;
+        lineStart = 0;
+        scanned = 0;
+        lines = 0;
+        try {
+            switch (format) {
+                case GZIP -> gunzip(data.duplicate(), handler);
+                case ZSTD -> unzstd(data.duplicate(), handler);
+                default -> throw new IllegalArgumentException("Not a batched payload: " + format);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated " + format + " payload");
+        }
+        // the last line doesn't need a line break
+        if (filled > lineStart) emit(lineStart, filled, handler);
+        return lines;
+    }
+
+    private void gunzip(ByteBuffer src, LineHandler handler) throws IOException {
+        // a gzip payload can be several members back to back (e.g. appended by the producer)
+        do {
+            skipHeader(src);
+            inflater.reset();
+            crc.reset();
+            inflater.setInput(src); // src's position follows what the inflater consumes
+            long size = 0;
+            try {
+                while (!inflater.finished()) {
+                    makeRoom();
+                    int n = inflater.inflate(buf, filled, buf.length - filled);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new EOFException("Truncated gzip payload");
+                    }
+                    crc.update(buf, filled, n);
+                    size += n;
+                    filled += n;
+                    splitLines(handler);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupt gzip payload: " + e.getMessage());
+            }
+            // trailer: CRC32 and size mod 2^32, little endian
+            long expectedCrc = Integer.toUnsignedLong(Integer.reverseBytes(src.getInt()));
+            long expectedSize = Integer.toUnsignedLong(Integer.reverseBytes(src.getInt()));
+            if (expectedCrc != crc.getValue() || expectedSize != (size & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt gzip payload: CRC or size mismatch");
+            }
+        } while (formatOf(src) == Format.GZIP);
+    }
+
+    /** Skips a gzip member header (RFC 1952), leaving {@code src} at the start of the deflate stream. */
+    private static void skipHeader(ByteBuffer src) throws IOException {
+        if ((src.get() & 0xFF) != 0x1F || (src.get() & 0xFF) != 0x8B) throw new ZipException("Not a gzip member");
+        if (src.get() != 8) throw new ZipException("Unsupported gzip compression method");
+        int flags = src.get() & 0xFF;
+        src.position(src.position() + 6); // mtime, extra flags, OS
+        if ((flags & 4) != 0) {          // FEXTRA
+            int len = (src.get() & 0xFF) | (src.get() & 0xFF) << 8;
+            src.position(src.position() + len);
+        }
+        if ((flags & 8) != 0) while (src.get() != 0) { }   // FNAME
+        if ((flags & 16) != 0) while (src.get() != 0) { }  // FCOMMENT
+        if ((flags & 2) != 0) src.position(src.position() + 2); // FHCRC
+    }
+
+    private void unzstd(ByteBuffer src, LineHandler handler) throws IOException {
+        try (InputStream in = new ZstdInputStreamNoFinalizer(new ByteBufferInputStream(src), RecyclingBufferPool.INSTANCE)) {
+            int n;
+            while (true) {
+                makeRoom();
+                n = in.read(buf, filled, buf.length - filled);
+                if (n < 0) break;
+                filled += n;
+                splitLines(handler);
+            }
+        }
+    }
+
+    /** Hands over every complete line in the buffer. */
+    private void splitLines(LineHandler handler) {
+        for (int i = scanned; i < filled; i++) {
+            if (buf[i] == '\n') {
+                emit(lineStart, i, handler);
+                lineStart = i + 1;
+            }
+        }
+        scanned = filled;
+    }
+
+    private void emit(int from, int to, LineHandler handler) {
+        if (to > from && buf[to - 1] == '\r') to--;
+        int start = from;
+        while (start < to && (buf[start] == ' ' || buf[start] == '\t')) start++;
+        if (start == to) return;
+        handler.line(ByteBuffer.wrap(buf, from, to - from), lines++);
+    }
+
+    /** Makes sure there's free space at the end of the buffer, dropping the lines already handed over first. */
+    private void makeRoom() throws IOException {
+        if (filled < buf.length) return;
+        if (lineStart > 0) {
+            System.arraycopy(buf, lineStart, buf, 0, filled - lineStart);
+            filled -= lineStart;
+            scanned -= lineStart;
+            lineStart = 0;
+            if (filled < buf.length) return;
+        }
+        if (buf.length >= MAX_LINE_BYTES) throw new IOException("Line over " + MAX_LINE_BYTES + " bytes");
+        byte[] bigger = new byte[Math.min(MAX_LINE_BYTES, buf.length * 2)];
+        System.arraycopy(buf, 0, bigger, 0, filled);
+        buf = bigger;
+    }
+
+    /** Reads a (read-only, KCL owned) buffer without copying it first. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer src;
+
+        ByteBufferInputStream(ByteBuffer src) { this.src = src; }
+
+        @Override
+        public int read() {
+            return src.hasRemaining() ? src.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!src.hasRemaining()) return -1;
+            int n = Math.min(len, src.remaining());
+            src.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() { return src.remaining(); }
+    }
+}
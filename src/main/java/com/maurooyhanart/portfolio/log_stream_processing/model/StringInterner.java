@@ -0,0 +1,49 @@
+package com.maurooyhanart.portfolio.log_stream_processing.model;
+
+/**
+ * <p> A small, bounded intern table for values that repeat a lot, like {@code level} and {@code service}. </p>
+ * <p> Lookups go straight from the parser's char buffer, so a hit doesn't allocate a {@link String}. Once
+ * {@code maxEntries} distinct values are stored, new values are returned as fresh strings without being cached, so a
+ * high-cardinality field can't grow the table. Not thread safe. </p>
+ */
+final class StringInterner {
+    private final String[] table;
+    private final int mask;
+    private final int maxEntries;
+    private int size;
+
+    StringInterner(int maxEntries) {
+        this.maxEntries = maxEntries;
+        int cap = Integer.highestOneBit(Math.max(4, maxEntries * 2 - 1)) << 1;
+        this.table = new String[cap];
+        this.mask = cap - 1;
+    }
+
+    String intern(char[] buf, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + buf[off + i]; // same as String.hashCode()
+
+        int idx = (h ^ (h >>> 16)) & mask;
+        while (true) {
+            String s = table[idx];
+            if (s == null) {
+                String created = new String(buf, off, len);
+                if (size < maxEntries) {
+                    table[idx] = created;
+                    size++;
+                }
+                return created;
+            }
+            if (s.hashCode() == h && sameChars(s, buf, off, len)) return s;
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    private static boolean sameChars(String s, char[] buf, int off, int len) {
+        if (s.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != buf[off + i]) return false;
+        }
+        return true;
+    }
+}
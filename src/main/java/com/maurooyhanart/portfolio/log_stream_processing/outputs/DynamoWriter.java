@@ -1,101 +1,339 @@
 package com.maurooyhanart.portfolio.log_stream_processing.outputs;
 
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Backoff;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
 import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Histogram;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.model.EventKeys;
 import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 
-public class DynamoWriter {
+/**
+ * <p> The DynamoDB sink: every event becomes one item ({@link #encode}), written with BatchWriteItem
+ * ({@link #putBatchAsync}). </p>
+ * <p> Each shard processor gets a view of it ({@link #forShard}) so that the BatchWriteItem metrics (latency, items,
+ * unprocessed items, retries) are tagged with the shard. The same items can go to another table as a sink of their
+ * own ({@link #forTable}, {@code dynamodb:<table>} in {@code SINKS}), sharing the rate controller and the retries. </p>
+ */
+public class DynamoWriter implements LogSink<EncodedItem> {
     private static final int MAX_BATCH = 25;
+    private static final int MAX_ITEM_BYTES = 400 * 1024; // DynamoDB item size limit
     private static final int MAX_RETRIES = 8;
-    private static final long BASE_BACKOFF_MS = 200L;
-
-    private static final int PK_BUCKETS = 16;
+    private static final Backoff BACKOFF = new Backoff(MAX_RETRIES, 200L, 2500L);
 
     private static final DateTimeFormatter HOUR_FMT =
             DateTimeFormatter.ofPattern("yyyyMMddHH").withZone(ZoneOffset.UTC);
 
     private final AppConfig config;
-    private final DynamoDbClient ddb;
+    private final DynamoDbAsyncClient ddb;
+    private final WriteRateController rateController;
+    private final PartitionSharding sharding;
+    private final ScheduledExecutorService retryScheduler;
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, Instruments> instruments = new ConcurrentHashMap<>();
 
-    public DynamoWriter(AppConfig config) {
+    /**
+     * @param config the app config
+     * @param ddb the shared DynamoDB client
+     * @param rateController the process-wide rate controller every BatchWriteItem call (retries included) goes through
+     * @param sharding the process-wide partition-key bucketing
+     * @param metrics the process-wide metrics registry
+     */
+    public DynamoWriter(AppConfig config, DynamoDbAsyncClient ddb, WriteRateController rateController,
+                        PartitionSharding sharding, Metrics metrics) {
         this.config = config;
-        this.ddb = DynamoDbClient.builder()
-                .region(Region.of(config.awsRegion()))
-                .credentialsProvider(DefaultCredentialsProvider.create())
-                .build();
+        this.ddb = ddb;
+        this.rateController = rateController;
+        this.sharding = sharding;
+        this.metrics = metrics;
+        this.retryScheduler = Threads.timer("ddb-retry", Threads.virtual(config));
+    }
+
+    @Override
+    public String name() { return "dynamodb"; }
+
+    @Override
+    public EncodedItem prepare(LogEvent e, String sequenceNumber) {
+        return encode(e, sequenceNumber);
+    }
+
+    @Override
+    public int sizeOf(EncodedItem item) { return item.sizeBytes(); }
+
+    @Override
+    public CompletableFuture<Void> write(List<EncodedItem> items) {
+        return putBatchAsync(requests(items));
+    }
+
+    @Override
+    public LogSink<EncodedItem> forShard(String shardId) {
+        return new ShardView(config.dynamoTable(), shardId);
     }
 
     /**
-     * Writes the given log events to DynamoDB using BatchWriteItem with retry/backoff.
+     * @param table another table, that the rules can route events to
+     * @return a sink named {@code dynamodb:<table>} writing the same items as this one to that table
+     */
+    public LogSink<EncodedItem> forTable(String table) {
+        return new ShardView(table, "none");
+    }
+
+    /** This writer, with the shard's metrics, writing to its own table or another one. */
+    private final class ShardView implements LogSink<EncodedItem> {
+        private final String table;
+        private final String shardId;
+
+        ShardView(String table, String shardId) {
+            this.table = table;
+            this.shardId = shardId;
+        }
+
+        @Override
+        public String name() {
+            return table.equals(config.dynamoTable()) ? DynamoWriter.this.name() : DynamoWriter.this.name() + ":" + table;
+        }
+
+        @Override
+        public EncodedItem prepare(LogEvent e, String sequenceNumber) { return encode(e, shardId, sequenceNumber); }
+
+        @Override
+        public int sizeOf(EncodedItem item) { return item.sizeBytes(); }
+
+        @Override
+        public CompletableFuture<Void> write(List<EncodedItem> items) {
+            return putBatchAsync(table, requests(items), shardId);
+        }
+
+        @Override
+        public LogSink<EncodedItem> forShard(String other) { return new ShardView(table, other); }
+    }
+
+    /** BatchWriteItem metrics of one shard. */
+    private static final class Instruments {
+        final Histogram callLatency;
+        final Counter items;
+        final Counter unprocessed;
+        final Counter retries;
+        final Counter failures;
+
+        Instruments(Metrics m, String shardId) {
+            callLatency = m.latency("ddb_batch_write_seconds", "BatchWriteItem call latency, retries counted as calls", "shard", shardId);
+            items = m.counter("ddb_items_total", "Items sent in BatchWriteItem calls, retries included", "shard", shardId);
+            unprocessed = m.counter("ddb_unprocessed_items_total", "Items DynamoDB returned as UnprocessedItems", "shard", shardId);
+            retries = m.counter("ddb_retries_total", "BatchWriteItem calls retried after UnprocessedItems or an error", "shard", shardId);
+            failures = m.counter("ddb_batch_failures_total", "Batches that failed after exhausting their retries", "shard", shardId);
+        }
+    }
+
+    private Instruments instruments(String shardId) {
+        return instruments.computeIfAbsent(shardId, id -> new Instruments(metrics, id));
+    }
+
+    /**
+     * @param items encoded items
+     * @return their put requests
+     */
+    public static List<WriteRequest> requests(List<EncodedItem> items) {
+        List<WriteRequest> requests = new ArrayList<>(items.size());
+        for (EncodedItem item : items) requests.add(item.request());
+        return requests;
+    }
+
+    /**
+     * Stops the retry timer. Retries that were scheduled and not run yet are dropped.
+     */
+    @Override
+    public void close() {
+        retryScheduler.shutdown();
+    }
+
+    /**
+     * Writes already encoded items to DynamoDB using BatchWriteItem with retry/backoff, without blocking the caller.
      *
      * <p><strong>Behavior</strong>
      * <ul>
-     *   <li>No-op if {@code events} is {@code null} or empty, or if the configured table name is blank.</li>
-     *   <li>Each {@link LogEvent} is transformed into a PutRequest via {@link #buildItem(LogEvent)}.</li>
-     *   <li>Requests are sliced into batches of at most {@value MAX_BATCH} items (DynamoDB hard limit).</li>
-     *   <li>For each batch, if DynamoDB returns {@code UnprocessedItems}, the method retries
-     *   the remaining items with exponential backoff and jitter until either all succeed
-     *   or {@value MAX_RETRIES} attempts are exhausted.</li>
+     *   <li>Completes immediately if {@code items} is {@code null} or empty, or if the configured table name is blank.</li>
+     *   <li>The items are sent as they are: build them once with {@link #encode(LogEvent, String)}.</li>
+     *   <li>Requests are sliced into batches of at most {@value MAX_BATCH} items (DynamoDB hard limit), all sent
+     *   concurrently. With items capped at {@value MAX_ITEM_BYTES} bytes, a slice always fits the 16MB request limit.</li>
+     *   <li>Every call, retries included, first waits for a permit from the shared {@link WriteRateController}, and
+     *   reports back whether it was throttled.</li>
+     *   <li>For each batch, if DynamoDB returns {@code UnprocessedItems} or the call fails, the remaining items are
+     *   re-sent after an exponential backoff with jitter, scheduled on a timer instead of sleeping on the caller's
+     *   thread, until either all succeed or {@value MAX_RETRIES} attempts are exhausted.</li>
+     *   <li>A {@code ValidationException} isn't retried: the future fails right away with a
+     *   {@link PoisonBatchException}.</li>
      * </ul>
      *
-     * @param events List of {@link LogEvent} to write; each becomes a single PutRequest item.
-     * @throws RuntimeException if retry budget is exhausted or the thread is interrupted during backoff.
+     * @param items the put requests to write; the list is not modified or kept after the call
+     * @return a future that completes when every item is written, or completes exceptionally once the retry budget
+     * is exhausted.
      */
-    public void putBatch(List<LogEvent> events) {
-        if (events == null || events.isEmpty()) return;
-        final String table = config.dynamoTable();
-        if (table == null || table.isBlank()) return;
-
-        final List<WriteRequest> all = new ArrayList<>(events.size());
-        for (LogEvent e : events) {
-            all.add(WriteRequest.builder()
-                    .putRequest(PutRequest.builder().item(buildItem(e)).build())
-                    .build());
-        }
+    public CompletableFuture<Void> putBatchAsync(List<WriteRequest> items) {
+        return putBatchAsync(items, "none");
+    }
 
-        for (int i = 0; i < all.size(); i += MAX_BATCH) {
-            final List<WriteRequest> slice = new ArrayList<>(all.subList(i, Math.min(i + MAX_BATCH, all.size())));
-            Map<String, List<WriteRequest>> req = new HashMap<>();
-            req.put(table, slice);
+    /**
+     * Same as {@link #putBatchAsync(List)}, with the metrics tagged with the given shard.
+     * @param items the put requests to write
+     * @param shardId the shard the items come from
+     * @return a future that completes when every item is written
+     */
+    public CompletableFuture<Void> putBatchAsync(List<WriteRequest> items, String shardId) {
+        return putBatchAsync(config.dynamoTable(), items, shardId);
+    }
 
-            int attempt = 0;
-            while (!req.isEmpty()) {
-                BatchWriteItemResponse resp = ddb.batchWriteItem(
-                        BatchWriteItemRequest.builder().requestItems(req).build());
+    /**
+     * Same as {@link #putBatchAsync(List, String)}, to another table. Used by the DynamoDB dead-letter queue and the
+     * {@link #forTable} sinks, so that their writes share the rate controller and the retries.
+     * @param table the target table
+     * @param items the write requests
+     * @param shardId the shard the items come from, for the metrics
+     * @return a future that completes when every item is written
+     */
+    public CompletableFuture<Void> putBatchAsync(String table, List<WriteRequest> items, String shardId) {
+        if (items == null || items.isEmpty()) return CompletableFuture.completedFuture(null);
+        if (table == null || table.isBlank()) return CompletableFuture.completedFuture(null);
+        final Instruments m = instruments(shardId);
 
-                Map<String, List<WriteRequest>> unprocessed = resp.unprocessedItems();
-                int requested = req.getOrDefault(table, List.of()).size();
-                int remaining = unprocessed.getOrDefault(table, List.of()).size();
-                // we want to see throttling
-                System.out.printf("DDB batch: requested=%d unprocessed=%d attempt=%d%n",
-                        requested, remaining, attempt);
+        if (items.size() <= MAX_BATCH) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            send(table, Map.of(table, items), 0, result, m);
+            return result;
+        }
 
-                if (unprocessed.isEmpty()) break;
+        final List<CompletableFuture<Void>> slices = new ArrayList<>((items.size() + MAX_BATCH - 1) / MAX_BATCH);
+        for (int i = 0; i < items.size(); i += MAX_BATCH) {
+            // the request builder copies the list, so a view is enough here
+            final List<WriteRequest> slice = items.subList(i, Math.min(i + MAX_BATCH, items.size()));
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            send(table, Map.of(table, slice), 0, result, m);
+            slices.add(result);
+        }
+        return CompletableFuture.allOf(slices.toArray(new CompletableFuture[0]));
+    }
 
-                req = unprocessed;
+    /**
+     * Waits for a permit from the rate controller, then sends one BatchWriteItem call and, on {@code UnprocessedItems}
+     * or failure, schedules the retry of what is left.
+     * @param table the target table
+     * @param req the request items for this attempt
+     * @param attempt the attempt number, starting at 0
+     * @param result completed once the batch is fully written or the retries are exhausted
+     * @param m the metrics of the shard the batch comes from
+     */
+    private void send(String table, Map<String, List<WriteRequest>> req, int attempt, CompletableFuture<Void> result,
+                      Instruments m) {
+        rateController.acquire().thenRun(() -> call(table, req, attempt, result, m));
+    }
+
+    private void call(String table, Map<String, List<WriteRequest>> req, int attempt, CompletableFuture<Void> result,
+                      Instruments m) {
+        m.items.add(req.getOrDefault(table, List.of()).size());
+        final long startNanos = System.nanoTime();
+        CompletableFuture<BatchWriteItemResponse> response;
+        try {
+            response = ddb.batchWriteItem(BatchWriteItemRequest.builder().requestItems(req).build());
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((resp, err) -> {
+            m.callLatency.record(System.nanoTime() - startNanos);
+            rateController.release(err != null ? isThrottling(unwrap(err)) : !resp.unprocessedItems().isEmpty());
 
-                if (attempt++ >= MAX_RETRIES) {
-                    int still = unprocessed.values().stream().mapToInt(List::size).sum();
-                    throw new RuntimeException("DynamoDB BatchWrite exhausted retries; " +
-                            still + " items still unprocessed");
+            if (err != null) {
+                if (isPoison(unwrap(err))) {
+                    // the same items would fail the same way: no point in retrying them
+                    m.failures.inc();
+                    result.completeExceptionally(new PoisonBatchException(
+                            "DynamoDB rejected the batch: " + unwrap(err).getMessage(), unwrap(err)));
+                    return;
                 }
-                long jitter = ThreadLocalRandom.current().nextLong(0, BASE_BACKOFF_MS);
-                long sleep = Math.min(2500L, (long) (BASE_BACKOFF_MS * Math.pow(2, attempt))) + jitter;
-                try { Thread.sleep(sleep); } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException("Interrupted while retrying UnprocessedItems", ie);
+                if (attempt >= MAX_RETRIES) {
+                    m.failures.inc();
+                    result.completeExceptionally(new RuntimeException(
+                            "DynamoDB BatchWrite failed after " + (attempt + 1) + " attempts", unwrap(err)));
+                    return;
                 }
+                m.retries.inc();
+                BACKOFF.schedule(retryScheduler, attempt + 1, () -> send(table, req, attempt + 1, result, m));
+                return;
             }
+
+            Map<String, List<WriteRequest>> unprocessed = resp.unprocessedItems();
+            if (unprocessed.isEmpty()) {
+                result.complete(null);
+                return;
+            }
+            int still = unprocessed.values().stream().mapToInt(List::size).sum();
+            m.unprocessed.add(still);
+
+            if (attempt >= MAX_RETRIES) {
+                m.failures.inc();
+                result.completeExceptionally(new RuntimeException("DynamoDB BatchWrite exhausted retries; " +
+                        still + " items still unprocessed"));
+                return;
+            }
+            m.retries.inc();
+            BACKOFF.schedule(retryScheduler, attempt + 1, () -> send(table, unprocessed, attempt + 1, result, m));
+        });
+    }
+
+    private static boolean isThrottling(Throwable t) {
+        return t instanceof ProvisionedThroughputExceededException
+                || t instanceof RequestLimitExceededException
+                || (t instanceof SdkServiceException se && se.isThrottlingException());
+    }
+
+    /** @return whether the request itself is invalid (e.g. an empty key attribute), as opposed to throttling or an outage */
+    private static boolean isPoison(Throwable t) {
+        return t instanceof DynamoDbException de && de.awsErrorDetails() != null
+                && "ValidationException".equals(de.awsErrorDetails().errorCode());
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+    }
+
+    /**
+     * Same as {@link #encode(LogEvent, String, String)}, for an event that isn't tied to a shard.
+     */
+    public EncodedItem encode(LogEvent e, String sequenceNumber) {
+        return encode(e, null, sequenceNumber);
+    }
+
+    /**
+     * Builds the DynamoDB put request for an event, once, and measures it.
+     * @param e the event to write
+     * @param shardId the shard the event came from, part of its sort key; may be {@code null}
+     * @param sequenceNumber the event's key (see {@link LogSink#prepare}), used to pick the partition-key bucket and
+     * in the sort key
+     * @return the request plus its size as DynamoDB counts it
+     * @throws IllegalArgumentException if the item is over DynamoDB's {@value MAX_ITEM_BYTES} bytes item limit
+     */
+    public EncodedItem encode(LogEvent e, String shardId, String sequenceNumber) {
+        Map<String, AttributeValue> item = buildItem(e, shardId, sequenceNumber);
+        int size = itemSize(item);
+        if (size > MAX_ITEM_BYTES) {
+            throw new IllegalArgumentException("DynamoDB item is " + size + " bytes, over the " + MAX_ITEM_BYTES + " bytes limit");
         }
+        WriteRequest request = WriteRequest.builder()
+                .putRequest(PutRequest.builder().item(item).build())
+                .build();
+        return new EncodedItem(request, size, sequenceNumber);
     }
 
     /**
@@ -103,28 +341,31 @@ public class DynamoWriter {
      * <p> This method generates a timestamp for the item, so that we can then group hourly when doing queries in DynamoDB.</p>
      * <p> It also ensures: </p>
      * <ul>
-     *      <li>uniqueness of objects stored in the table (since all fields like service, timestamp and text, etc can be repeated and that would be marked as a duplicate, when in fact it's not),</li>
-     *      <li>no hot-partitioning (there's bucketing of events (#b0–#b15) based on a hash), and </li>
+     *      <li>uniqueness of objects stored in the table (since all fields like service, timestamp and text, etc can be repeated and that would be marked as a duplicate, when in fact it's not): the sort key comes from the shard and the event's key ({@link EventKeys}), so two events never share it but a replayed event gets the same one and overwrites its item,</li>
+     *      <li>no hot-partitioning (each event goes to one of the service's buckets (#b0, #b1, ...) based on a hash of its sequence number, see {@link PartitionSharding}), and </li>
      *      <li>that we can do range queries using the timestamp </li>
      * </ul>
+     * <p> The bucket only depends on the event's key, so a replay lands in the same bucket as the first write and
+     * overwrites it. </p>
      * @param e the item to write to DynamoDB
+     * @param shardId the shard the event came from, or {@code null}
+     * @param sequenceNumber the event's key
      * @return an object that is writeable into DynamoDB
      */
-    private Map<String, AttributeValue> buildItem(LogEvent e) {
-        Map<String, AttributeValue> m = new HashMap<>();
+    private Map<String, AttributeValue> buildItem(LogEvent e, String shardId, String sequenceNumber) {
+        Map<String, AttributeValue> m = new HashMap<>(8);
 
         long ts = (e.timestamp != null ? e.timestamp : Instant.now()).toEpochMilli();
-        String hourBucket = HOUR_FMT.format(Instant.ofEpochMilli(ts));
 
         String svc = safe(e.service);
-        String base = svc.isBlank() ? "unknown" : svc;
+        String base = serviceKey(svc);
 
-        // n-sharded partition key. the idea is to avoid hot partitions for busy services or hours
-        int shard = positiveHash(base + "#" + hourBucket) % PK_BUCKETS;
-        String pk = base + "#" + hourBucket + "#b" + shard;
+        // n-sharded partition key, spread per event. the idea is to avoid hot partitions for busy services or hours
+        int bucket = sharding.bucketFor(base, sequenceNumber);
+        String pk = partitionPrefix(base, ts) + bucket;
 
-        // Time-ordered + # + unique sort key
-        String sk = ts + "#" + UUID.randomUUID();
+        // Time-ordered + # + unique sort key, the same on a replay
+        String sk = EventKeys.sortKey(ts, EventKeys.hash(shardId, sequenceNumber));
 
         m.put("pk", AttributeValue.builder().s(pk).build());
         m.put("sk", AttributeValue.builder().s(sk).build());
@@ -136,20 +377,51 @@ public class DynamoWriter {
         return m;
     }
 
-    private static String safe(String s) { return s == null ? "" : s; }
-
     /**
-     * @param s input for the hash function
-     * @return a positive hash from the string {@code s}
+     * Item size the way DynamoDB counts it: UTF-8 length of every attribute name plus its value. Strings count their
+     * UTF-8 length, numbers roughly one byte per two significant digits plus one.
+     * @param item the item
+     * @return its size in bytes
      */
-    private static int positiveHash(String s) {
-        if (s == null) {
-            return 0;
+    static int itemSize(Map<String, AttributeValue> item) {
+        int size = 0;
+        for (Map.Entry<String, AttributeValue> en : item.entrySet()) {
+            size += utf8Length(en.getKey());
+            AttributeValue v = en.getValue();
+            if (v.s() != null) size += utf8Length(v.s());
+            else if (v.n() != null) size += (v.n().length() + 1) / 2 + 1;
         }
-        int h = s.hashCode();
-        if (h < 0) {
-            h = -h;
+        return size;
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) { n += 4; i++; }
+            else n += 3;
         }
-        return h;
+        return n;
+    }
+
+    private static String safe(String s) { return s == null ? "" : s; }
+
+    /**
+     * @param service the event's service
+     * @return the service part of the partition key
+     */
+    static String serviceKey(String service) {
+        return service == null || service.isBlank() ? "unknown" : service;
+    }
+
+    /**
+     * @param service the event's service
+     * @param tsMillis the event's timestamp
+     * @return the partition key without its bucket number: {@code service#yyyyMMddHH#b}
+     */
+    static String partitionPrefix(String service, long tsMillis) {
+        return serviceKey(service) + "#" + HOUR_FMT.format(Instant.ofEpochMilli(tsMillis)) + "#b";
     }
 }
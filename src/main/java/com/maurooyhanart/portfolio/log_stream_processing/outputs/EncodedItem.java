@@ -0,0 +1,11 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/**
+ * A DynamoDB item built once, ready to go into a BatchWriteItem request as is.
+ * @param request the put request wrapping the item
+ * @param sizeBytes the item size as DynamoDB counts it (UTF-8 attribute names plus values)
+ * @param key the key of the event it was built from, {@code seq[:subSeq][:line]}
+ */
+public record EncodedItem(WriteRequest request, int sizeBytes, String key) { }
@@ -1,54 +1,297 @@
 package com.maurooyhanart.portfolio.log_stream_processing.outputs;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Backoff;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
 import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Histogram;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
 import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.eventbridge.EventBridgeAsyncClient;
 import software.amazon.awssdk.services.eventbridge.model.PutEventsRequest;
 import software.amazon.awssdk.services.eventbridge.model.PutEventsRequestEntry;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsResponse;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsResultEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Publishes error alerts to EventBridge off the record thread. </p>
+ * <ul>
+ *     <li>{@link #publish(LogEvent)} only queues the event; a dispatcher thread does the rest,</li>
+ *     <li>identical errors (same service and message) arriving within {@link AppConfig#alertCoalesceMs()} are
+ *     coalesced into a single event carrying a {@code count},</li>
+ *     <li>entries are packed up to {@value MAX_ENTRIES} per PutEvents call (the EventBridge hard cap),</li>
+ *     <li>only the entries EventBridge reports as failed are retried, with exponential backoff and jitter.</li>
+ * </ul>
+ * <p> As a {@link LogSink} it takes ERROR events only, and the checkpoint waits for it only if
+ * {@link AppConfig#alertsBlockCheckpoint()}. </p>
+ */
+public class EventBridgePublisher implements LogSink<LogEvent> {
+    private static final int MAX_ENTRIES = 10;              // PutEvents hard cap
+    private static final int MAX_REQUEST_BYTES = 250_000;   // PutEvents caps the request at 256KB
+    private static final Backoff BACKOFF = new Backoff(5, 200L, 5000L);
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final String SOURCE = "log.stream.processor";
+    private static final String DETAIL_TYPE = "LogError";
 
-public class EventBridgePublisher {
     private final AppConfig config;
-    private final EventBridgeClient client;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final EventBridgeAsyncClient client;
+    private final Histogram putLatency;
+    private final Counter alerts;
+    private final Counter entriesSent;
+    private final Counter failedEntries;
+    private final Counter retries;
+    private final Counter dropped;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
 
-    public EventBridgePublisher(AppConfig config) {
+    private final BlockingQueue<Alert> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ScheduledExecutorService retryScheduler;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    public EventBridgePublisher(AppConfig config, EventBridgeAsyncClient client, Metrics metrics) {
         this.config = config;
-        this.client = EventBridgeClient.builder()
-                .region(Region.of(config.awsRegion()))
-                .credentialsProvider(DefaultCredentialsProvider.create())
-                .build();
+        this.client = client;
+        this.putLatency = metrics.latency("eventbridge_put_events_seconds", "PutEvents call latency");
+        this.alerts = metrics.counter("eventbridge_alerts_total", "Alerts queued, before coalescing");
+        this.entriesSent = metrics.counter("eventbridge_entries_total", "Entries sent in PutEvents calls, retries included");
+        this.failedEntries = metrics.counter("eventbridge_failed_entries_total", "Entries PutEvents reported as failed, or whose call failed");
+        this.retries = metrics.counter("eventbridge_retries_total", "PutEvents calls retried");
+        this.dropped = metrics.counter("eventbridge_dropped_total", "Alerts dropped: queue full or retries exhausted");
+        metrics.gauge("eventbridge_queue_depth", "Alerts waiting for the dispatcher", queue::size);
+        this.retryScheduler = Threads.timer("eventbridge-retry", Threads.virtual(config));
+        this.dispatcher = Threads.factory("eventbridge-alerts", Threads.virtual(config)).newThread(this::dispatchLoop);
+        this.dispatcher.start();
     }
 
-    public void publish(LogEvent event) {
-        runWithBackoff(() -> {
+    private record Alert(LogEvent event, CompletableFuture<Void> done) { }
+
+    private record Key(String service, String message) { }
+
+    /** A group of identical alerts, sent as one entry. */
+    private static final class Coalesced {
+        final LogEvent first;
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>(1);
+        int count;
+        PutEventsRequestEntry entry;
+        int entryBytes;
+
+        Coalesced(LogEvent first) { this.first = first; }
+
+        void complete() { for (CompletableFuture<Void> w : waiters) w.complete(null); }
+
+        void fail(Throwable t) { for (CompletableFuture<Void> w : waiters) w.completeExceptionally(t); }
+    }
+
+    @Override
+    public String name() { return "eventbridge"; }
+
+    @Override
+    public LogEvent prepare(LogEvent e, String sequenceNumber) {
+        return "ERROR".equalsIgnoreCase(e.level) ? e.copy() : null;
+    }
+
+    @Override
+    public CompletableFuture<Void> write(List<LogEvent> events) {
+        if (events.size() == 1) return publish(events.get(0));
+        CompletableFuture<?>[] all = new CompletableFuture<?>[events.size()];
+        for (int i = 0; i < all.length; i++) all[i] = publish(events.get(i));
+        return CompletableFuture.allOf(all);
+    }
+
+    @Override
+    public boolean blocksCheckpoint() { return config.alertsBlockCheckpoint(); }
+
+    @Override
+    public boolean usesErrorContext() { return true; }
+
+    /**
+     * Queues an alert for the given event. Never blocks.
+     * @param event the error event; it must not be modified afterwards
+     * @return a future that completes once the (possibly coalesced) alert is accepted by EventBridge, or completes
+     * exceptionally if it can't be queued or its retries are exhausted
+     */
+    public CompletableFuture<Void> publish(LogEvent event) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        alerts.inc();
+        if (!running || !queue.offer(new Alert(event, done))) {
+            dropped.inc();
+            done.completeExceptionally(new IllegalStateException("EventBridge alert queue is full or closed"));
+        }
+        return done;
+    }
+
+    private void dispatchLoop() {
+        while (running || !queue.isEmpty()) {
+            Alert first;
             try {
-                String detail = mapper.writeValueAsString(event);
-                PutEventsRequestEntry entry = PutEventsRequestEntry.builder()
-                        .eventBusName(config.eventBus())
-                        .source("log.stream.processor")
-                        .detailType("LogError")
-                        .detail(detail)
-                        .build();
-                client.putEvents(PutEventsRequest.builder().entries(entry).build());
-            } catch (Exception e) { throw new RuntimeException(e); }
-        });
+                first = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (first == null) continue;
+
+            // collect everything that arrives within the coalescing window
+            Map<Key, Coalesced> window = new LinkedHashMap<>();
+            add(window, first);
+            long deadline = System.currentTimeMillis() + config.alertCoalesceMs();
+            long remaining;
+            while (running && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                Alert next;
+                try {
+                    next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (next == null) break;
+                add(window, next);
+            }
+            List<Alert> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            for (Alert a : rest) add(window, a);
+
+            sendAll(new ArrayList<>(window.values()));
+        }
+    }
+
+    private static void add(Map<Key, Coalesced> window, Alert alert) {
+        Coalesced c = window.computeIfAbsent(new Key(alert.event().service, alert.event().message), k -> new Coalesced(alert.event()));
+        c.count++;
+        c.waiters.add(alert.done());
     }
 
-    private void runWithBackoff(Runnable action) {
-        int maxRetries = 5; long baseMillis = 200L;
-        for (int attempt = 0; attempt <= maxRetries; attempt++) {
-            try { action.run(); return; }
-            catch (Exception ex) {
-                if (attempt == maxRetries) throw ex;
-                long jitter = (long)(Math.random()*baseMillis);
-                long sleep = Math.min(5000, baseMillis * (1L << attempt)) + jitter;
-                try { Thread.sleep(sleep); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); return; }
+    /**
+     * Builds one entry per coalesced group and packs them into PutEvents calls of at most {@value MAX_ENTRIES}
+     * entries and ~{@value MAX_REQUEST_BYTES} bytes.
+     */
+    private void sendAll(List<Coalesced> groups) {
+        List<Coalesced> chunk = new ArrayList<>(MAX_ENTRIES);
+        int chunkBytes = 0;
+        for (Coalesced c : groups) {
+            try {
+                buildEntry(c);
+            } catch (Exception e) {
+                c.fail(e);
+                continue;
+            }
+            if (!chunk.isEmpty() && (chunk.size() == MAX_ENTRIES || chunkBytes + c.entryBytes > MAX_REQUEST_BYTES)) {
+                send(chunk, 0);
+                chunk = new ArrayList<>(MAX_ENTRIES);
+                chunkBytes = 0;
             }
+            chunk.add(c);
+            chunkBytes += c.entryBytes;
         }
+        if (!chunk.isEmpty()) send(chunk, 0);
+    }
+
+    private void buildEntry(Coalesced c) throws Exception {
+        ObjectNode detail = mapper.valueToTree(c.first);
+        detail.put("count", c.count);
+        byte[] json = mapper.writeValueAsBytes(detail);
+        c.entry = PutEventsRequestEntry.builder()
+                .eventBusName(config.eventBus())
+                .source(SOURCE)
+                .detailType(DETAIL_TYPE)
+                .detail(new String(json, StandardCharsets.UTF_8))
+                .build();
+        // what PutEvents counts against the request size is UTF-8 bytes, not chars
+        c.entryBytes = json.length + utf8Length(SOURCE) + utf8Length(DETAIL_TYPE) + utf8Length(config.eventBus());
+    }
+
+    private static int utf8Length(String s) {
+        return s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length;
     }
-}
 
+    /**
+     * Sends one PutEvents call and retries only the entries that came back with an error code. A call that throws
+     * right away (a client error, or the client is closed) fails like any other, so that the dispatcher thread keeps
+     * going and the entries' futures always complete.
+     * @param chunk the groups to send, in the same order as their entries
+     * @param attempt the attempt number, starting at 0
+     */
+    private void send(List<Coalesced> chunk, int attempt) {
+        List<PutEventsRequestEntry> entries = new ArrayList<>(chunk.size());
+        for (Coalesced c : chunk) entries.add(c.entry);
 
+        entriesSent.add(entries.size());
+        final long startNanos = System.nanoTime();
+        CompletableFuture<PutEventsResponse> response;
+        try {
+            response = client.putEvents(PutEventsRequest.builder().entries(entries).build());
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((resp, err) -> {
+            putLatency.record(System.nanoTime() - startNanos);
+            List<Coalesced> failed;
+            Throwable cause = err;
+            if (err != null) {
+                failed = chunk;
+            } else if (resp.failedEntryCount() == null || resp.failedEntryCount() == 0) {
+                for (Coalesced c : chunk) c.complete();
+                return;
+            } else {
+                failed = new ArrayList<>(resp.failedEntryCount());
+                List<PutEventsResultEntry> results = resp.entries();
+                for (int i = 0; i < chunk.size(); i++) {
+                    PutEventsResultEntry r = i < results.size() ? results.get(i) : null;
+                    if (r == null || r.errorCode() != null) {
+                        failed.add(chunk.get(i));
+                        if (r != null) cause = new RuntimeException("PutEvents entry failed: " + r.errorCode() + " " + r.errorMessage());
+                    } else {
+                        chunk.get(i).complete();
+                    }
+                }
+            }
+            failedEntries.add(failed.size());
+
+            if (attempt >= BACKOFF.maxRetries()) {
+                dropped.add(failed.size());
+                System.err.printf("EventBridge: dropping %d alert(s) after %d attempts: %s%n", failed.size(), attempt + 1, cause);
+                for (Coalesced c : failed) c.fail(cause);
+                return;
+            }
+            retries.inc();
+            try {
+                BACKOFF.schedule(retryScheduler, attempt + 1, () -> send(failed, attempt + 1));
+            } catch (RejectedExecutionException closing) {
+                dropped.add(failed.size());
+                for (Coalesced c : failed) c.fail(cause);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting alerts and gives the dispatcher a few seconds to send whatever is queued.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            dispatcher.join(5_000L);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        retryScheduler.shutdown();
+    }
+}
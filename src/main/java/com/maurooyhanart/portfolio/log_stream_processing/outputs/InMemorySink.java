@@ -0,0 +1,125 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Backoff;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> A sink that keeps nothing and talks to nobody, for load tests on a laptop or in CI ({@code SINKS=memory}). It
+ * behaves like a remote batch API, though: </p>
+ * <ul>
+ *     <li>every call takes about {@link AppConfig#memorySinkLatencyMs()} (±50%), on a timer, never on the caller's
+ *     thread,</li>
+ *     <li>each item of a call is left unprocessed with probability {@link AppConfig#memorySinkThrottleRate()}, like
+ *     DynamoDB's {@code UnprocessedItems}, and retried with the same backoff as {@link DynamoWriter},</li>
+ *     <li>a whole call fails with probability {@link AppConfig#memorySinkFailureRate()}, which the processor sees as
+ *     a failed write.</li>
+ * </ul>
+ * <p> Items are the records' sequence numbers, so preparing them doesn't allocate. </p>
+ */
+public class InMemorySink implements LogSink<String> {
+    // the same as DynamoWriter's
+    private static final Backoff BACKOFF = new Backoff(8, 200L, 2500L);
+
+    private final String name;
+    private final long latencyMs;
+    private final double throttleRate;
+    private final double failureRate;
+    private final ScheduledExecutorService timer;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param name the sink's name
+     * @param latencyMs average latency of a call
+     * @param throttleRate probability of each item being left unprocessed, per call
+     * @param failureRate probability of a call failing
+     * @param virtual whether the timer the calls complete on is a virtual thread
+     */
+    public InMemorySink(String name, long latencyMs, double throttleRate, double failureRate, boolean virtual) {
+        this.name = name;
+        this.latencyMs = Math.max(0L, latencyMs);
+        this.throttleRate = throttleRate;
+        this.failureRate = failureRate;
+        this.timer = Threads.timer(name + "-sink", virtual);
+    }
+
+    public static InMemorySink fromConfig(AppConfig config) {
+        return new InMemorySink("memory", config.memorySinkLatencyMs(), config.memorySinkThrottleRate(),
+                config.memorySinkFailureRate(), Threads.virtual(config));
+    }
+
+    @Override
+    public String name() { return name; }
+
+    @Override
+    public String prepare(LogEvent e, String sequenceNumber) { return sequenceNumber; }
+
+    @Override
+    public CompletableFuture<Void> write(List<String> items) {
+        if (items.isEmpty()) return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        call(items.size(), 0, result);
+        return result;
+    }
+
+    private void call(int items, int attempt, CompletableFuture<Void> result) {
+        calls.increment();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long latency = latencyMs == 0 ? 0 : latencyMs / 2 + rnd.nextLong(latencyMs + 1);
+        timer.schedule(() -> respond(items, attempt, result), latency, TimeUnit.MILLISECONDS);
+    }
+
+    private void respond(int items, int attempt, CompletableFuture<Void> result) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        if (failureRate > 0 && rnd.nextDouble() < failureRate) {
+            failed.increment();
+            result.completeExceptionally(new RuntimeException(name + " sink: simulated failure"));
+            return;
+        }
+        int unprocessed = 0;
+        if (throttleRate > 0) {
+            for (int i = 0; i < items; i++) if (rnd.nextDouble() < throttleRate) unprocessed++;
+        }
+        written.add(items - unprocessed);
+        if (unprocessed == 0) {
+            result.complete(null);
+            return;
+        }
+        throttled.add(unprocessed);
+        if (attempt >= BACKOFF.maxRetries()) {
+            result.completeExceptionally(new RuntimeException(name + " sink: exhausted retries; " + unprocessed + " items still unprocessed"));
+            return;
+        }
+        int left = unprocessed;
+        BACKOFF.schedule(timer, attempt + 1, () -> call(left, attempt + 1, result));
+    }
+
+    /** @return calls made, retries included */
+    public long calls() { return calls.sum(); }
+
+    /** @return items written */
+    public long written() { return written.sum(); }
+
+    /** @return items left unprocessed (and retried) */
+    public long throttled() { return throttled.sum(); }
+
+    /** @return calls that failed */
+    public long failed() { return failed.sum(); }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
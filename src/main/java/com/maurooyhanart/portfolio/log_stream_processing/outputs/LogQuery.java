@@ -0,0 +1,109 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p> Read-side companion of {@link PartitionSharding}: queries every bucket of a service/hour in parallel and merges
+ * the results by {@code sk} (which starts with the timestamp, so this is a time-ordered merge). </p>
+ */
+public class LogQuery {
+    private final AppConfig config;
+    private final DynamoDbAsyncClient ddb;
+    private final PartitionSharding sharding;
+
+    public LogQuery(AppConfig config, DynamoDbAsyncClient ddb, PartitionSharding sharding) {
+        this.config = config;
+        this.ddb = ddb;
+        this.sharding = sharding;
+    }
+
+    /**
+     * Queries the logs of a service within one hour bucket, across all of its partition-key buckets.
+     * @param service the service name
+     * @param hour any instant within the hour to query
+     * @param fromMs inclusive lower bound on the event timestamp, or {@code null}
+     * @param toMs inclusive upper bound on the event timestamp, or {@code null}
+     * @param limit maximum number of items to return
+     * @param ascending oldest first if {@code true}, newest first otherwise
+     * @return up to {@code limit} items, ordered by {@code sk}
+     */
+    public CompletableFuture<List<Map<String, AttributeValue>>> queryHour(String service, Instant hour,
+                                                                         Long fromMs, Long toMs,
+                                                                         int limit, boolean ascending) {
+        String prefix = DynamoWriter.partitionPrefix(service, hour.toEpochMilli());
+        int buckets = sharding.maxBucketsFor(DynamoWriter.serviceKey(service));
+
+        List<CompletableFuture<List<Map<String, AttributeValue>>>> parts = new ArrayList<>(buckets);
+        for (int b = 0; b < buckets; b++) {
+            QueryRequest.Builder req = QueryRequest.builder()
+                    .tableName(config.dynamoTable())
+                    .scanIndexForward(ascending)
+                    .limit(limit);
+            Map<String, AttributeValue> values = new HashMap<>();
+            values.put(":pk", AttributeValue.builder().s(prefix + b).build());
+            if (fromMs != null || toMs != null) {
+                // sk is "tsMillis#..." so these bounds cover every suffix
+                values.put(":from", AttributeValue.builder().s((fromMs != null ? fromMs : 0L) + "#").build());
+                values.put(":to", AttributeValue.builder().s((toMs != null ? toMs : Long.MAX_VALUE) + "#~").build());
+                req.keyConditionExpression("pk = :pk AND sk BETWEEN :from AND :to");
+            } else {
+                req.keyConditionExpression("pk = :pk");
+            }
+            parts.add(queryBucket(req.expressionAttributeValues(values).build(), limit, new ArrayList<>()));
+        }
+
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .thenApply(v -> merge(parts, limit, ascending));
+    }
+
+    /**
+     * Pages through one bucket until it has {@code limit} items or runs out.
+     */
+    private CompletableFuture<List<Map<String, AttributeValue>>> queryBucket(QueryRequest req, int limit,
+                                                                           List<Map<String, AttributeValue>> acc) {
+        return ddb.query(req).thenCompose(resp -> {
+            acc.addAll(resp.items());
+            if (acc.size() >= limit || resp.lastEvaluatedKey() == null || resp.lastEvaluatedKey().isEmpty()) {
+                return CompletableFuture.completedFuture(acc);
+            }
+            return queryBucket(req.toBuilder().exclusiveStartKey(resp.lastEvaluatedKey()).build(), limit, acc);
+        });
+    }
+
+    /**
+     * K-way merge of the per-bucket results, which DynamoDB already returns sorted by {@code sk}.
+     */
+    private static List<Map<String, AttributeValue>> merge(List<CompletableFuture<List<Map<String, AttributeValue>>>> parts,
+                                                           int limit, boolean ascending) {
+        Comparator<Cursor> bySk = Comparator.comparing(Cursor::sk);
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, parts.size()), ascending ? bySk : bySk.reversed());
+        for (CompletableFuture<List<Map<String, AttributeValue>>> part : parts) {
+            List<Map<String, AttributeValue>> items = part.join();
+            if (!items.isEmpty()) heap.add(new Cursor(items, 0));
+        }
+
+        List<Map<String, AttributeValue>> out = new ArrayList<>(limit);
+        while (!heap.isEmpty() && out.size() < limit) {
+            Cursor c = heap.poll();
+            out.add(c.items().get(c.index()));
+            if (c.index() + 1 < c.items().size()) heap.add(new Cursor(c.items(), c.index() + 1));
+        }
+        return out;
+    }
+
+    private record Cursor(List<Map<String, AttributeValue>> items, int index) {
+        String sk() { return items.get(index).get("sk").s(); }
+    }
+}
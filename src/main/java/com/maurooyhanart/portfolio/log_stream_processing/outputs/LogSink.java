@@ -0,0 +1,67 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p> Somewhere decoded log events go. The shard processor drives every configured sink the same way: </p>
+ * <ul>
+ *     <li>{@link #prepare} is called on the record thread, right after the event is decoded. The sink turns it into
+ *     whatever it writes (or skips it by returning {@code null}). The event is reused for the next record as soon as
+ *     this returns, so a sink that needs the event itself must copy it. With {@code SHARD_PARALLELISM}, big batches
+ *     are prepared on the decode pool instead, several events of the same shard at once,</li>
+ *     <li>prepared items are buffered per sink and handed to {@link #write} on every flush, at most 25 at a time (the
+ *     processor's batch size), in sequence-number order,</li>
+ *     <li>if {@link #blocksCheckpoint()}, the checkpoint waits for the write, and a failed write is called again with
+ *     the same items (delivery is at-least-once). Otherwise the write is fired once and not waited for.</li>
+ * </ul>
+ * <p> Sinks are process-wide and shared by every shard, so {@link #prepare} and {@link #write} must be thread safe.
+ * A sink that needs per-shard state (like the spill log) returns it from {@link #forShard}. </p>
+ * @param <T> what the sink writes
+ */
+public interface LogSink<T> extends AutoCloseable {
+
+    /** @return the sink's name, as used in {@code SINKS} */
+    String name();
+
+    /**
+     * @param e the decoded event; it's reused once this returns
+     * @param sequenceNumber the event's key: the record's Kinesis sequence number, followed by the sub-sequence
+     * number and/or the line index when the record carries many events ({@code seq:sub:line})
+     * @return the item to buffer, or {@code null} if this sink doesn't take the event
+     */
+    T prepare(LogEvent e, String sequenceNumber);
+
+    /**
+     * @param item a prepared item
+     * @return how much the item counts towards the processor's flush byte budget
+     */
+    default int sizeOf(T item) { return 0; }
+
+    /**
+     * @param items the prepared items of one flush, in order; the list is not modified or kept after the call
+     * @return a future that completes when the items are written, or completes exceptionally if they couldn't be
+     */
+    CompletableFuture<Void> write(List<T> items);
+
+    /** @return whether the checkpoint waits for this sink's writes */
+    default boolean blocksCheckpoint() { return true; }
+
+    /**
+     * @return whether {@link #prepare} reads the {@code context} of ERROR events. It's only decoded when one of the
+     * sinks does
+     */
+    default boolean usesErrorContext() { return false; }
+
+    /**
+     * Called once per shard processor, when it's initialized.
+     * @param shardId the shard
+     * @return the sink the processor of that shard should use; by default this same (shared) sink
+     */
+    default LogSink<T> forShard(String shardId) { return this; }
+
+    @Override
+    default void close() { }
+}
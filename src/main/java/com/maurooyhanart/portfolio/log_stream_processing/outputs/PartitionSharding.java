@@ -0,0 +1,77 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p> Decides which partition-key bucket ({@code service#hour#bN}) each event goes to. </p>
+ * <ul>
+ *     <li>the bucket comes from a per-event key (the event's key, see {@code LogSink#prepare}) and nothing else, so
+ *     the events of one service in one hour spread over all its buckets, and a replayed event (after a restart, a
+ *     lease move, or from the spill log or the DLQ) lands in the same bucket and overwrites its item,</li>
+ *     <li>the bucket count is {@link AppConfig#ddbPkBuckets()} by default, and can be set per service with
+ *     {@link AppConfig#ddbPkBucketOverrides()},</li>
+ *     <li>with {@link AppConfig#ddbPkSpreadMax()} on (off by default), every service is spread over
+ *     {@link AppConfig#ddbPkMaxBuckets()} (or its override, if bigger). That's the switch for a table where hot
+ *     services can't be told apart in advance: the count is fixed by the config alone, so a replay and
+ *     {@link LogQuery} always agree with the first write, but every service/hour costs that many Query calls.</li>
+ * </ul>
+ * <p> Stateless, so shared by every shard processor through the {@link DynamoWriter}. </p>
+ */
+public class PartitionSharding {
+    private final int defaultBuckets;
+    private final Map<String, Integer> overrides;
+    private final int maxBuckets;
+    private final boolean spreadMax;
+
+    public PartitionSharding(int defaultBuckets, Map<String, Integer> overrides, int maxBuckets, boolean spreadMax) {
+        this.defaultBuckets = Math.max(1, defaultBuckets);
+        this.overrides = Map.copyOf(overrides);
+        this.maxBuckets = Math.max(1, maxBuckets);
+        this.spreadMax = spreadMax;
+    }
+
+    public static PartitionSharding fromConfig(AppConfig config) {
+        return new PartitionSharding(config.ddbPkBuckets(), config.ddbPkBucketOverrides(),
+                config.ddbPkMaxBuckets(), config.ddbPkSpreadMax());
+    }
+
+    /**
+     * Picks the bucket for one event, from its key only.
+     * @param service the (non-blank) service name
+     * @param eventKey a per-event key, like the sequence number; if {@code null} a random bucket is used
+     * @return a bucket in {@code [0, maxBucketsFor(service))}
+     */
+    public int bucketFor(String service, String eventKey) {
+        int buckets = maxBucketsFor(service);
+        if (buckets == 1) return 0;
+        int h = eventKey == null ? ThreadLocalRandom.current().nextInt() : mix(eventKey.hashCode());
+        return Math.floorMod(h, buckets);
+    }
+
+    /**
+     * @param service the service name
+     * @return how many buckets the service's events are spread over; readers should fan out over all of them
+     */
+    public int maxBucketsFor(String service) {
+        int configured = configuredBuckets(service);
+        return spreadMax ? Math.max(configured, maxBuckets) : configured;
+    }
+
+    private int configuredBuckets(String service) {
+        Integer n = overrides.get(service);
+        return n != null ? Math.max(1, n) : defaultBuckets;
+    }
+
+    /** murmur3's fmix32, so that close keys (like consecutive sequence numbers) land far apart. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
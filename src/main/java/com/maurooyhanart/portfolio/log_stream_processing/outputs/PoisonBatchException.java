@@ -0,0 +1,13 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+/**
+ * <p> A sink write that would fail the same way however many times it's retried, because of what's in it (e.g. a
+ * DynamoDB {@code ValidationException}), as opposed to throttling or an outage. </p>
+ * <p> With a dead-letter queue configured, the processor then writes the items one by one and dead-letters only the
+ * ones that fail, instead of retrying the flush forever. </p>
+ */
+public class PoisonBatchException extends RuntimeException {
+    public PoisonBatchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
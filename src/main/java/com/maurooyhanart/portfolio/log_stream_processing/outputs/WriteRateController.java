@@ -0,0 +1,162 @@
+package com.maurooyhanart.portfolio.log_stream_processing.outputs;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> AIMD rate controller for BatchWriteItem calls, shared by every shard processor in the JVM (through the shared
+ * {@link DynamoWriter}). It bounds two things: </p>
+ * <ul>
+ *     <li>how many calls are in flight at once (the concurrency limit), and</li>
+ *     <li>how many calls start per second (a token bucket).</li>
+ * </ul>
+ * <p> When a call reports throttling ({@code UnprocessedItems}, ProvisionedThroughputExceeded and friends), both are
+ * cut multiplicatively, at most once per {@value DECREASE_COOLDOWN_MS} ms so that one wave of throttled responses
+ * counts as one signal. While calls succeed, both are probed back up additively once per
+ * {@value PROBE_INTERVAL_MS} ms. </p>
+ * <p> {@link #acquire()} never blocks: it returns a future that completes once the call may start. Every acquire
+ * must be paired with exactly one {@link #release(boolean)}. </p>
+ */
+public class WriteRateController {
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final long DECREASE_COOLDOWN_MS = 200L;
+    private static final long PROBE_INTERVAL_MS = 1000L;
+    private static final double MIN_RATE = 1.0;           // batches per second
+    private static final double MIN_CONCURRENCY = 1.0;
+    private static final double BURST_SECONDS = 0.1;      // token bucket depth, in seconds of the current rate
+
+    private final double maxRate;
+    private final double maxConcurrency;
+    private final double rateStep;
+
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private final ScheduledExecutorService timer;
+
+    // guarded by this
+    private double rate;
+    private double concurrencyLimit;
+    private double tokens;
+    private long lastRefillNanos;
+    private int inFlight;
+    private long lastDecreaseNanos;
+    private long lastProbeNanos;
+    private boolean wakeScheduled;
+    private long throttleEvents;
+
+    /**
+     * @param maxBatchesPerSecond upper bound for the call rate; it's also where the rate starts
+     * @param maxConcurrency upper bound for calls in flight; it's also where the limit starts
+     */
+    public WriteRateController(double maxBatchesPerSecond, int maxConcurrency) {
+        this.maxRate = Math.max(MIN_RATE, maxBatchesPerSecond);
+        this.maxConcurrency = Math.max(MIN_CONCURRENCY, maxConcurrency);
+        this.rateStep = Math.max(1.0, this.maxRate / 100.0);
+        this.rate = this.maxRate;
+        this.concurrencyLimit = this.maxConcurrency;
+        this.tokens = Math.max(1.0, rate * BURST_SECONDS);
+        this.lastRefillNanos = System.nanoTime();
+        this.lastProbeNanos = lastRefillNanos;
+        this.timer = Threads.timer("ddb-rate-control", false);
+    }
+
+    /**
+     * @return a future that completes when a BatchWriteItem call may start
+     */
+    public CompletableFuture<Void> acquire() {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        synchronized (this) {
+            waiters.addLast(permit);
+        }
+        dispatch();
+        return permit;
+    }
+
+    /**
+     * Gives back a permit and feeds the outcome of the call into the controller.
+     * @param throttled whether DynamoDB throttled the call, fully or partially
+     */
+    public void release(boolean throttled) {
+        synchronized (this) {
+            inFlight--;
+            long now = System.nanoTime();
+            if (throttled) onThrottle(now);
+            else onSuccess(now);
+        }
+        dispatch();
+    }
+
+    /** @return the current allowed BatchWriteItem calls per second */
+    public synchronized double currentRate() { return rate; }
+
+    /** @return the current allowed BatchWriteItem calls in flight */
+    public synchronized int currentConcurrencyLimit() { return (int) concurrencyLimit; }
+
+    /** @return BatchWriteItem calls currently in flight */
+    public synchronized int inFlight() { return inFlight; }
+
+    /** @return how many times the limits were cut since startup */
+    public synchronized long throttleEvents() { return throttleEvents; }
+
+    private void onThrottle(long now) {
+        lastProbeNanos = now;
+        if (now - lastDecreaseNanos < TimeUnit.MILLISECONDS.toNanos(DECREASE_COOLDOWN_MS)) return;
+        lastDecreaseNanos = now;
+        throttleEvents++;
+        rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+        concurrencyLimit = Math.max(MIN_CONCURRENCY, concurrencyLimit * DECREASE_FACTOR);
+        tokens = Math.min(tokens, Math.max(1.0, rate * BURST_SECONDS));
+    }
+
+    private void onSuccess(long now) {
+        if (now - lastProbeNanos < TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL_MS)) return;
+        lastProbeNanos = now;
+        rate = Math.min(maxRate, rate + rateStep);
+        concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1.0);
+    }
+
+    private void refill(long now) {
+        double capacity = Math.max(1.0, rate * BURST_SECONDS);
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * rate);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Hands out permits to waiters in FIFO order while both limits allow it. If only the token bucket is in the way,
+     * a timer wakes this up again when the next token is due.
+     */
+    private void dispatch() {
+        List<CompletableFuture<Void>> ready = null;
+        synchronized (this) {
+            refill(System.nanoTime());
+            while (!waiters.isEmpty() && inFlight < (int) concurrencyLimit) {
+                if (tokens < 1.0) {
+                    if (!wakeScheduled) {
+                        wakeScheduled = true;
+                        long waitNanos = (long) Math.ceil((1.0 - tokens) / rate * 1e9);
+                        timer.schedule(this::wake, waitNanos, TimeUnit.NANOSECONDS);
+                    }
+                    break;
+                }
+                tokens -= 1.0;
+                inFlight++;
+                if (ready == null) ready = new ArrayList<>();
+                ready.add(waiters.pollFirst());
+            }
+        }
+        // complete outside the lock: completing starts the call on this thread
+        if (ready != null) for (CompletableFuture<Void> permit : ready) permit.complete(null);
+    }
+
+    private void wake() {
+        synchronized (this) {
+            wakeScheduled = false;
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,52 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rollup;
+
+/**
+ * <p> Message fingerprints: a 64-bit hash of the message with its variable parts taken out, so that
+ * {@code "order 1234 timed out after 30s"} and {@code "order 98 timed out after 5s"} count as the same message. </p>
+ * <p> Every run of digits, hex digits and dashes that has at least one digit in it (ids, UUIDs, durations, hex
+ * addresses) hashes as a single placeholder. FNV-1a over the chars, no allocation. </p>
+ */
+public final class Fingerprints {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char PLACEHOLDER = '#';
+
+    private Fingerprints() { }
+
+    /**
+     * @param message the log message, may be {@code null}
+     * @return its fingerprint
+     */
+    public static long of(String message) {
+        long h = FNV_OFFSET;
+        if (message == null) return h;
+        int n = message.length();
+        int i = 0;
+        while (i < n) {
+            char c = message.charAt(i);
+            if (isVariable(c)) {
+                // the whole run is a placeholder if it has a digit, otherwise it's a plain word (e.g. "cafe", "-")
+                int end = i;
+                boolean digit = false;
+                while (end < n && isVariable(message.charAt(end))) {
+                    digit |= Character.isDigit(message.charAt(end));
+                    end++;
+                }
+                if (digit) {
+                    h = (h ^ PLACEHOLDER) * FNV_PRIME;
+                } else {
+                    for (int j = i; j < end; j++) h = (h ^ message.charAt(j)) * FNV_PRIME;
+                }
+                i = end;
+            } else {
+                h = (h ^ c) * FNV_PRIME;
+                i++;
+            }
+        }
+        return h;
+    }
+
+    private static boolean isVariable(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-';
+    }
+}
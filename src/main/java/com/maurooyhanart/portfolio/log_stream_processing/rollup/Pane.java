@@ -0,0 +1,122 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rollup;
+
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p> One tumbling window of a shard: an event count per key (service and level), and the top messages of each key
+ * by fingerprint. </p>
+ * <p> The top messages are a Space-Saving summary (Metwally et al.) of {@code topN} counters per key: a fingerprint
+ * that isn't tracked takes over the smallest counter, and inherits its count as its error. Any message seen more than
+ * {@code count / topN} times is guaranteed to be there, and each count is over by at most its error. </p>
+ * <p> Everything is in flat arrays sized once, from the max number of keys: adding an event allocates nothing, and a
+ * pane is cleared and reused once it's emitted. </p>
+ */
+final class Pane {
+    final int topN;
+    final long[] counts;
+    final long[] fingerprints;  // [slot * topN + i]
+    final long[] hits;
+    final long[] errors;
+    final String[] samples;     // the message that took over the counter
+    final int[] tracked;        // counters in use, per slot
+    final int[] touched;        // slots with at least one event, in order
+    int touchedCount;
+
+    long index;                 // start / window length
+    ExtendedSequenceNumber before; // the last record before this pane's first one, null if there was none
+    List<WriteRequest> items;   // the rollup items, kept until they're written
+    CompletableFuture<Void> write;
+    int writeRounds;
+
+    Pane(int maxKeys, int topN) {
+        this.topN = topN;
+        this.counts = new long[maxKeys];
+        this.fingerprints = new long[maxKeys * topN];
+        this.hits = new long[maxKeys * topN];
+        this.errors = new long[maxKeys * topN];
+        this.samples = new String[maxKeys * topN];
+        this.tracked = new int[maxKeys];
+        this.touched = new int[maxKeys];
+    }
+
+    void add(int slot, long fingerprint, String message) {
+        count(slot);
+        if (topN == 0) return;
+        int base = slot * topN;
+        int n = tracked[slot];
+        int min = base;
+        for (int i = base; i < base + n; i++) {
+            if (fingerprints[i] == fingerprint) {
+                hits[i]++;
+                return;
+            }
+            if (hits[i] < hits[min]) min = i;
+        }
+        if (n < topN) {
+            int i = base + n;
+            fingerprints[i] = fingerprint;
+            hits[i] = 1;
+            errors[i] = 0;
+            samples[i] = message;
+            tracked[slot] = n + 1;
+            return;
+        }
+        errors[min] = hits[min];
+        hits[min]++;
+        fingerprints[min] = fingerprint;
+        samples[min] = message;
+    }
+
+    /** Counts an event without its message, which stays out of the top messages. */
+    void count(int slot) {
+        count(slot, 1L);
+    }
+
+    /** Counts {@code n} events without their messages, e.g. a pane read back from its summary. */
+    void count(int slot, long n) {
+        if (counts[slot] == 0) touched[touchedCount++] = slot;
+        counts[slot] += n;
+    }
+
+    /**
+     * @param slot a key
+     * @return the indexes of its counters, most hits first
+     */
+    int[] top(int slot) {
+        int base = slot * topN;
+        int n = tracked[slot];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = base + i;
+        // insertion sort: topN is a handful
+        for (int i = 1; i < n; i++) {
+            int v = order[i];
+            int j = i - 1;
+            while (j >= 0 && hits[order[j]] < hits[v]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = v;
+        }
+        return order;
+    }
+
+    /** Resets the pane for reuse, only touching the slots that were used. */
+    void clear() {
+        for (int t = 0; t < touchedCount; t++) {
+            int slot = touched[t];
+            counts[slot] = 0;
+            int base = slot * topN;
+            for (int i = base; i < base + tracked[slot]; i++) samples[i] = null;
+            tracked[slot] = 0;
+        }
+        touchedCount = 0;
+        before = null;
+        items = null;
+        write = null;
+        writeRounds = 0;
+    }
+}
@@ -0,0 +1,98 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rollup;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongFunction;
+
+/**
+ * <p> Read-side companion of {@link ShardRollups}: the event counts of a service over time, added up across shards
+ * (and levels, unless one is asked for). </p>
+ */
+public class RollupQuery {
+    private final DynamoDbAsyncClient ddb;
+    private final String table;
+
+    public RollupQuery(DynamoDbAsyncClient ddb, String table) {
+        this.ddb = ddb;
+        this.table = table;
+    }
+
+    /**
+     * @param service the service
+     * @param windowMs the window length: {@code ROLLUP_WINDOW_SEC}, or times {@code ROLLUP_SLIDING_PANES} for the
+     *                 sliding windows
+     * @param fromMs inclusive lower bound on the window start
+     * @param toMs inclusive upper bound on the window start
+     * @param level a level, or {@code null} for all of them
+     * @return the event count per window start, in order
+     */
+    public CompletableFuture<TreeMap<Long, Long>> counts(String service, long windowMs, long fromMs, long toMs,
+                                                        String level) {
+        return between(start -> ShardRollups.partitionKey(service, windowMs, start), fromMs, toMs).thenApply(items -> {
+            TreeMap<Long, Long> counts = new TreeMap<>();
+            for (Map<String, AttributeValue> item : items) {
+                if (level != null && !level.equals(item.get("level").s())) continue;
+                counts.merge(Long.parseLong(item.get("start").n()), Long.parseLong(item.get("count").n()), Long::sum);
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * @param shardId the shard
+     * @param windowMs the pane length, {@code ROLLUP_WINDOW_SEC}
+     * @param fromMs inclusive lower bound on the pane start
+     * @param toMs inclusive upper bound on the pane start
+     * @return the shard's pane summaries in that range (see {@link ShardRollups#panesKey}), in no particular order
+     */
+    CompletableFuture<List<Map<String, AttributeValue>>> panes(String shardId, long windowMs, long fromMs, long toMs) {
+        return between(start -> ShardRollups.panesKey(shardId, windowMs, start), fromMs, toMs);
+    }
+
+    /**
+     * @param partitionKey the partition key of the day a window start falls in
+     * @return every item whose window starts between the bounds, one query per day
+     */
+    private CompletableFuture<List<Map<String, AttributeValue>>> between(LongFunction<String> partitionKey, long fromMs,
+                                                                       long toMs) {
+        List<CompletableFuture<List<Map<String, AttributeValue>>>> days = new ArrayList<>();
+        Instant day = Instant.ofEpochMilli(fromMs).truncatedTo(ChronoUnit.DAYS);
+        for (; !day.isAfter(Instant.ofEpochMilli(toMs)); day = day.plus(1, ChronoUnit.DAYS)) {
+            QueryRequest req = QueryRequest.builder()
+                    .tableName(table)
+                    .keyConditionExpression("pk = :pk AND sk BETWEEN :from AND :to")
+                    .expressionAttributeValues(Map.of(
+                            ":pk", AttributeValue.builder().s(partitionKey.apply(day.toEpochMilli())).build(),
+                            // sk starts with "startMillis#"
+                            ":from", AttributeValue.builder().s(fromMs + "#").build(),
+                            ":to", AttributeValue.builder().s(toMs + "#~").build()))
+                    .build();
+            days.add(query(req, new ArrayList<>()));
+        }
+        return CompletableFuture.allOf(days.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (CompletableFuture<List<Map<String, AttributeValue>>> d : days) items.addAll(d.join());
+            return items;
+        });
+    }
+
+    private CompletableFuture<List<Map<String, AttributeValue>>> query(QueryRequest req,
+                                                                     List<Map<String, AttributeValue>> acc) {
+        return ddb.query(req).thenCompose(resp -> {
+            acc.addAll(resp.items());
+            if (resp.lastEvaluatedKey() == null || resp.lastEvaluatedKey().isEmpty()) {
+                return CompletableFuture.completedFuture(acc);
+            }
+            return query(req.toBuilder().exclusiveStartKey(resp.lastEvaluatedKey()).build(), acc);
+        });
+    }
+}
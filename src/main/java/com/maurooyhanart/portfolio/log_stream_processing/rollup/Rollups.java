@@ -0,0 +1,79 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rollup;
+
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+/**
+ * <p> The rollup stage: per service and level event counts over tumbling and sliding windows, with the top messages
+ * of each window, written as compact items to {@code ROLLUP_TABLE} as the windows close. Dashboards and alerts read
+ * those instead of scanning the raw events. </p>
+ * <p> The state is per shard ({@link ShardRollups}), fixed-size and driven by the shard's record thread; this only
+ * holds the settings and what the shards share. </p>
+ */
+public class Rollups {
+    private final DynamoWriter writer;
+    private final RollupQuery query;
+    private final Metrics metrics;
+    private final String table;
+    private final long windowMs;
+    private final int slidingPanes;
+    private final int topN;
+    private final int maxKeys;
+
+    public Rollups(DynamoWriter writer, RollupQuery query, Metrics metrics, String table, long windowMs, int slidingPanes, int topN,
+                   int maxKeys) {
+        if (windowMs < 1000L) throw new IllegalArgumentException("Rollup windows must be at least a second: " + windowMs);
+        if (slidingPanes < 1) throw new IllegalArgumentException("Rollup sliding panes must be at least 1: " + slidingPanes);
+        if (topN < 0) throw new IllegalArgumentException("Rollup top N must not be negative: " + topN);
+        if (maxKeys < 2) throw new IllegalArgumentException("Rollup max keys must be at least 2: " + maxKeys);
+        this.writer = writer;
+        this.query = query;
+        this.metrics = metrics;
+        this.table = table;
+        this.windowMs = windowMs;
+        this.slidingPanes = slidingPanes;
+        this.topN = topN;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @param ddb the shared DynamoDB client, to read the panes a shard's previous owner wrote
+     * @return the rollup stage, or {@code null} if {@link AppConfig#rollups()} is off
+     */
+    public static Rollups start(AppConfig config, DynamoWriter writer, DynamoDbAsyncClient ddb, Metrics metrics) {
+        if (!config.rollups()) return null;
+        System.out.printf("Rollups go to: %s (%ds windows, sliding over %d, top %d, max %d keys per shard)%n",
+                config.rollupTable(), config.rollupWindowMs() / 1000L, config.rollupSlidingPanes(),
+                config.rollupTopN(), config.rollupMaxKeys());
+        return new Rollups(writer, new RollupQuery(ddb, config.rollupTable()), metrics, config.rollupTable(), config.rollupWindowMs(), config.rollupSlidingPanes(),
+                config.rollupTopN(), config.rollupMaxKeys());
+    }
+
+    /**
+     * @param shardId the shard
+     * @param checkpoint the checkpoint the lease starts from, a sentinel one (e.g. {@code LATEST}) if there's none
+     * @return a fresh aggregation state for it
+     */
+    public ShardRollups forShard(String shardId, ExtendedSequenceNumber checkpoint) {
+        return new ShardRollups(this, shardId, checkpoint);
+    }
+
+    public String table() { return table; }
+
+    public long windowMs() { return windowMs; }
+
+    public int slidingPanes() { return slidingPanes; }
+
+    public int topN() { return topN; }
+
+    public int maxKeys() { return maxKeys; }
+
+    DynamoWriter writer() { return writer; }
+
+    RollupQuery query() { return query; }
+
+    Metrics metrics() { return metrics; }
+}
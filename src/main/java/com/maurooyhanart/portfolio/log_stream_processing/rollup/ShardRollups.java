@@ -0,0 +1,429 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rollup;
+
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * <p> The windowed aggregation of one shard: per service and level event counts, in tumbling windows ("panes") and
+ * sliding windows made of the last few panes, plus the top messages of each pane by fingerprint. </p>
+ * <ul>
+ *     <li>panes are cut on the records' Kinesis arrival time, not the producer's timestamp: a pane is then a
+ *     contiguous run of the shard, so replaying from a checkpoint rebuilds exactly the same panes,</li>
+ *     <li>a pane closes when a record of a later pane comes in, or when the shard is idle and caught up a few seconds
+ *     past its end. Its rollups (one item per key, plus one per key for the sliding window ending with it) are then
+ *     written to {@code ROLLUP_TABLE},</li>
+ *     <li>{@link #cap} keeps the checkpoint before the first record of the oldest pane that is still open, or whose
+ *     rollups aren't written yet. After a crash or a rebalance, the new owner replays those panes and writes the same
+ *     items again (they're overwritten, not added up),</li>
+ *     <li>with sliding windows, each pane also writes its counts as one summary item ({@link #panesKey}). Written panes
+ *     stay in memory for the next sliding windows without holding the checkpoint; a new owner reads the summaries of
+ *     the panes before the first one it closes back from the table instead.</li>
+ * </ul>
+ * <p> Rollup items are per shard: readers add up the shards (see {@link RollupQuery}). Driven by the shard's record
+ * thread only; the write callbacks don't touch the state. </p>
+ */
+public final class ShardRollups {
+    private static final long IDLE_CLOSE_GRACE_MS = 5_000L;
+    private static final int MAX_WRITE_ROUNDS = 5;
+    private static final int MAX_SAMPLE_CHARS = 256;
+    private static final String OTHER_SERVICE = "_other";
+    private static final String UNKNOWN = "unknown";
+    private static final DateTimeFormatter DAY_FMT = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final Rollups rollups;
+    private final String shardId;
+    private final long windowMs;
+    private final int slidingPanes;
+    private final int topN;
+    private final Counter itemsMetric;
+    private final Counter failuresMetric;
+    private final Counter overflowMetric;
+
+    // ---- (service, level) -> slot, open addressing. keys are never removed while the shard is leased ----
+    private final String[] keyServices;
+    private final String[] keyLevels;
+    private final int[] keySlots;
+    private final String[] slotServices;
+    private final String[] slotLevels;
+    private int slots;
+
+    private final ArrayDeque<Pane> free = new ArrayDeque<>();
+    // closed panes, oldest first: their items are being written, or the next sliding windows still need them
+    private final ArrayDeque<Pane> closed = new ArrayDeque<>();
+    private Pane open;
+    private long nextIndex = Long.MIN_VALUE;    // panes before this one are closed for good
+    private long maxArrival = Long.MIN_VALUE;
+    private ExtendedSequenceNumber lastPosition;
+    // whether the panes the previous owner wrote were read back, for the first sliding window of the lease
+    private boolean restored;
+    private final long[] slidingSums;
+
+    ShardRollups(Rollups rollups, String shardId, ExtendedSequenceNumber checkpoint) {
+        this.rollups = rollups;
+        this.shardId = shardId;
+        // the lease's first pane starts right after its checkpoint
+        this.lastPosition = checkpoint == null || checkpoint.isSentinelCheckpoint() ? null : checkpoint;
+        this.windowMs = rollups.windowMs();
+        this.slidingPanes = rollups.slidingPanes();
+        this.topN = rollups.topN();
+        int maxKeys = rollups.maxKeys();
+        this.itemsMetric = rollups.metrics().counter("rollup_items_total", "Rollup items written", "shard", shardId);
+        this.failuresMetric = rollups.metrics().counter("rollup_write_failures_total",
+                "Panes whose rollups couldn't be written, given up on", "shard", shardId);
+        this.overflowMetric = rollups.metrics().counter("rollup_overflow_events_total",
+                "Events counted under " + OTHER_SERVICE + " because the key table was full", "shard", shardId);
+        int capacity = Integer.highestOneBit(Math.max(2, maxKeys) * 2 - 1) << 1;
+        this.keyServices = new String[capacity];
+        this.keyLevels = new String[capacity];
+        this.keySlots = new int[capacity];
+        this.slotServices = new String[maxKeys];
+        this.slotLevels = new String[maxKeys];
+        this.slidingSums = new long[maxKeys];
+        slotServices[maxKeys - 1] = OTHER_SERVICE;
+        slotLevels[maxKeys - 1] = "ANY";
+    }
+
+    /**
+     * Starts a record: closes the open pane if the record belongs to a later one.
+     * @param arrivalMillis the record's Kinesis arrival time, or {@code 0} if it's unknown (then it goes to the open pane)
+     */
+    public void beginRecord(long arrivalMillis) {
+        // arrival times are per shard and only approximately ordered: never go back
+        if (arrivalMillis > 0L && arrivalMillis > maxArrival) maxArrival = arrivalMillis;
+        if (maxArrival == Long.MIN_VALUE && open == null) maxArrival = System.currentTimeMillis();
+        long index = Math.max(Math.floorDiv(maxArrival, windowMs), nextIndex);
+        if (open != null) {
+            if (open.index == index) return;
+            close(open);
+        }
+        open = free.isEmpty() ? new Pane(slotServices.length, topN) : free.poll();
+        open.index = index;
+        open.before = lastPosition;
+    }
+
+    /**
+     * Counts one decoded event in the open pane.
+     * @param e the event; nothing is kept but its (immutable) message, as a sample
+     */
+    public void add(LogEvent e) {
+        open.add(slot(e.service, e.level), Fingerprints.of(e.message), e.message);
+    }
+
+    /**
+     * Counts one event the rules filtered out: it's in the counts, not in the top messages (its message may not even
+     * be decoded).
+     * @param service the event's service
+     * @param level the event's level
+     */
+    public void count(String service, String level) {
+        open.count(slot(service, level));
+    }
+
+    /**
+     * Ends a record: every event it carries is counted.
+     * @param position the record's sequence and sub-sequence number
+     */
+    public void endRecord(ExtendedSequenceNumber position) {
+        lastPosition = position;
+    }
+
+    /**
+     * Retries failed rollup writes, closes the open pane if the shard has been idle past its end, and lets go of the
+     * panes that aren't needed anymore. Called once per KCL batch, even an empty one.
+     * @param nowMillis the wall clock
+     * @param millisBehindLatest how far behind the tip of the shard the last batch was
+     */
+    public void tick(long nowMillis, long millisBehindLatest) {
+        for (Pane p : closed) {
+            if (p.write.isCompletedExceptionally()) retry(p);
+        }
+        if (open != null && millisBehindLatest == 0L && nowMillis >= (open.index + 1) * windowMs + IDLE_CLOSE_GRACE_MS) {
+            close(open);
+            open = null;
+        }
+        release();
+    }
+
+    /**
+     * @param seq the highest position the sinks have fully written, or {@code null}
+     * @return the highest position that's safe to checkpoint with the rollups: {@code seq}, or the last record before
+     * the oldest pane that isn't written yet, or {@code null} for nothing (that pane is the first of a lease that
+     * started without a checkpoint)
+     */
+    public ExtendedSequenceNumber cap(ExtendedSequenceNumber seq) {
+        Pane oldest = open;
+        for (Pane p : closed) {
+            if (!written(p)) {
+                oldest = p;
+                break;
+            }
+        }
+        if (oldest == null || seq == null) return seq;
+        if (oldest.before == null) return null;
+        return seq.compareTo(oldest.before) <= 0 ? seq : oldest.before;
+    }
+
+    /**
+     * Closes the open pane and waits until every pane's rollups are written (or given up on). For the end of the
+     * shard, after which nothing will replay it.
+     */
+    public void closeAll() {
+        if (open != null) {
+            close(open);
+            open = null;
+        }
+        awaitWrites();
+        closed.clear();
+    }
+
+    /**
+     * Waits until the rollups of every closed pane are written (or given up on): only the open pane holds the
+     * checkpoint back then. For a shutdown, whose final checkpoint goes right up to it.
+     */
+    public void awaitWrites() {
+        for (Pane p : closed) {
+            while (true) {
+                try {
+                    p.write.join();
+                    break;
+                } catch (CompletionException e) {
+                    if (!retry(p)) break;
+                }
+            }
+        }
+    }
+
+    /** Forgets everything, e.g. when the lease is lost: the new owner replays the panes that weren't written. */
+    public void discard() {
+        open = null;
+        restored = false;
+        closed.clear();
+        free.clear();
+    }
+
+    private void close(Pane p) {
+        List<WriteRequest> items = new ArrayList<>(p.touchedCount * (slidingPanes > 1 ? 2 : 1));
+        long start = p.index * windowMs;
+        for (int t = 0; t < p.touchedCount; t++) {
+            int slot = p.touched[t];
+            Map<String, AttributeValue> item = item(slot, start, windowMs, p.counts[slot]);
+            item.put("top", top(p, slot));
+            items.add(put(item));
+        }
+        if (slidingPanes > 1) {
+            if (!restored) restore(p.index);
+            slidingItems(p, items);
+            items.add(put(summary(p, start)));
+        }
+        p.items = items;
+        p.write = write(items);
+        closed.addLast(p);
+        nextIndex = p.index + 1;
+    }
+
+    /** The sliding window that ends with {@code p}: the sum of the last {@code slidingPanes} panes, per key. */
+    private void slidingItems(Pane p, List<WriteRequest> items) {
+        long from = p.index - slidingPanes + 1;
+        Arrays.fill(slidingSums, 0L);
+        for (Pane c : closed) {
+            if (c.index < from) continue;
+            for (int t = 0; t < c.touchedCount; t++) slidingSums[c.touched[t]] += c.counts[c.touched[t]];
+        }
+        for (int t = 0; t < p.touchedCount; t++) slidingSums[p.touched[t]] += p.counts[p.touched[t]];
+        for (int slot = 0; slot < slidingSums.length; slot++) {
+            if (slidingSums[slot] > 0) items.add(put(item(slot, from * windowMs, slidingPanes * windowMs, slidingSums[slot])));
+        }
+    }
+
+    /**
+     * The pane's counts as one item, for a later owner's sliding windows: {@code counts = [{service, level, n}]}.
+     * @param start the pane start
+     */
+    private Map<String, AttributeValue> summary(Pane p, long start) {
+        List<AttributeValue> counts = new ArrayList<>(p.touchedCount);
+        for (int t = 0; t < p.touchedCount; t++) {
+            int slot = p.touched[t];
+            counts.add(AttributeValue.builder().m(Map.of(
+                    "service", AttributeValue.builder().s(slotServices[slot]).build(),
+                    "level", AttributeValue.builder().s(slotLevels[slot]).build(),
+                    "n", AttributeValue.builder().n(Long.toString(p.counts[slot])).build())).build());
+        }
+        Map<String, AttributeValue> m = new HashMap<>(6);
+        m.put("pk", AttributeValue.builder().s(panesKey(shardId, windowMs, start)).build());
+        m.put("sk", AttributeValue.builder().s(start + "#panes").build());
+        m.put("shard", AttributeValue.builder().s(shardId).build());
+        m.put("start", AttributeValue.builder().n(Long.toString(start)).build());
+        m.put("counts", AttributeValue.builder().l(counts).build());
+        return m;
+    }
+
+    /**
+     * Reads back the summaries of the panes the first sliding window of the lease needs from before it: the previous
+     * owner wrote them, and they aren't replayed. They go in as written panes. If they can't be read, those sliding
+     * windows only count what this owner saw.
+     * @param first the index of the first pane this owner closes
+     */
+    private void restore(long first) {
+        restored = true;
+        List<Map<String, AttributeValue>> found;
+        try {
+            found = rollups.query().panes(shardId, windowMs, (first - slidingPanes + 1) * windowMs,
+                    (first - 1) * windowMs).join();
+        } catch (CompletionException e) {
+            System.err.printf("Couldn't read back the rollup panes of shard %s before %s: %s%n", shardId,
+                    Instant.ofEpochMilli(first * windowMs), e.getCause());
+            return;
+        }
+        found.sort(Comparator.comparingLong(m -> Long.parseLong(m.get("start").n())));
+        for (Map<String, AttributeValue> m : found) {
+            Pane p = free.isEmpty() ? new Pane(slotServices.length, topN) : free.poll();
+            p.index = Math.floorDiv(Long.parseLong(m.get("start").n()), windowMs);
+            for (AttributeValue c : m.get("counts").l()) {
+                Map<String, AttributeValue> count = c.m();
+                String service = count.get("service").s();
+                // the overflow key keeps its own slot: a fresh one would write the same items twice
+                int slot = OTHER_SERVICE.equals(service) ? slotServices.length - 1 : slot(service, count.get("level").s());
+                p.count(slot, Long.parseLong(count.get("n").n()));
+            }
+            p.write = CompletableFuture.completedFuture(null);
+            closed.addLast(p);
+        }
+    }
+
+    /** Lets go of the oldest panes once they're written and no coming sliding window needs them. */
+    private void release() {
+        long needed = (open != null ? open.index : nextIndex) - slidingPanes + 1;
+        while (!closed.isEmpty()) {
+            Pane p = closed.peekFirst();
+            if (p.index >= needed || !written(p)) break;
+            closed.pollFirst();
+            p.clear();
+            free.add(p);
+        }
+    }
+
+    /** @return whether the pane's rollups are written, or given up on */
+    private static boolean written(Pane p) {
+        return p.write.isDone() && !p.write.isCompletedExceptionally();
+    }
+
+    private CompletableFuture<Void> write(List<WriteRequest> items) {
+        return rollups.writer().putBatchAsync(rollups.table(), items, shardId)
+                .whenComplete((v, err) -> { if (err == null) itemsMetric.add(items.size()); });
+    }
+
+    /** @return whether the pane's write was started again, as opposed to given up on */
+    private boolean retry(Pane p) {
+        if (++p.writeRounds >= MAX_WRITE_ROUNDS) {
+            Throwable cause = p.write.handle((v, err) -> err).join();
+            System.err.printf("Rollups of shard %s for %s lost after %d rounds of retries: %s%n", shardId,
+                    Instant.ofEpochMilli(p.index * windowMs), p.writeRounds, cause);
+            failuresMetric.inc();
+            p.write = CompletableFuture.completedFuture(null);
+            return false;
+        }
+        p.write = write(p.items);
+        return true;
+    }
+
+    private Map<String, AttributeValue> item(int slot, long start, long length, long count) {
+        String service = slotServices[slot];
+        String level = slotLevels[slot];
+        Map<String, AttributeValue> m = new HashMap<>(12);
+        m.put("pk", AttributeValue.builder().s(partitionKey(service, length, start)).build());
+        m.put("sk", AttributeValue.builder().s(start + "#" + level + "#" + shardId).build());
+        m.put("service", AttributeValue.builder().s(service).build());
+        m.put("level", AttributeValue.builder().s(level).build());
+        m.put("shard", AttributeValue.builder().s(shardId).build());
+        m.put("start", AttributeValue.builder().n(Long.toString(start)).build());
+        m.put("window", AttributeValue.builder().n(Long.toString(length)).build());
+        m.put("count", AttributeValue.builder().n(Long.toString(count)).build());
+        return m;
+    }
+
+    /** The pane's top messages for a key: {@code [{fp, n, err, msg}]}, most frequent first. */
+    private static AttributeValue top(Pane p, int slot) {
+        int[] order = p.top(slot);
+        List<AttributeValue> l = new ArrayList<>(order.length);
+        for (int i : order) {
+            String sample = p.samples[i] == null ? "" : p.samples[i];
+            if (sample.length() > MAX_SAMPLE_CHARS) sample = sample.substring(0, MAX_SAMPLE_CHARS);
+            l.add(AttributeValue.builder().m(Map.of(
+                    "fp", AttributeValue.builder().s(Long.toHexString(p.fingerprints[i])).build(),
+                    "n", AttributeValue.builder().n(Long.toString(p.hits[i])).build(),
+                    "err", AttributeValue.builder().n(Long.toString(p.errors[i])).build(),
+                    "msg", AttributeValue.builder().s(sample).build())).build());
+        }
+        return AttributeValue.builder().l(l).build();
+    }
+
+    private static WriteRequest put(Map<String, AttributeValue> item) {
+        return WriteRequest.builder().putRequest(PutRequest.builder().item(item).build()).build();
+    }
+
+    /**
+     * @param service the service
+     * @param windowMillis the window length: tumbling and sliding rollups are kept apart
+     * @param startMillis the window start
+     * @return {@code service#<seconds>s#yyyyMMdd}, one partition per service, window length and day
+     */
+    static String partitionKey(String service, long windowMillis, long startMillis) {
+        return service + "#" + (windowMillis / 1000L) + "s#" + DAY_FMT.format(Instant.ofEpochMilli(startMillis));
+    }
+
+    /**
+     * @param shardId the shard
+     * @param windowMillis the pane length
+     * @param startMillis the pane start
+     * @return {@code _panes#<shard>#<seconds>s#yyyyMMdd}, the partition of a shard's pane summaries for the day
+     */
+    static String panesKey(String shardId, long windowMillis, long startMillis) {
+        return partitionKey("_panes#" + shardId, windowMillis, startMillis);
+    }
+
+    /** @return the slot of (service, level), or the overflow one of the level once the table is full */
+    private int slot(String service, String level) {
+        if (service == null || service.isBlank()) service = UNKNOWN;
+        if (level == null || level.isBlank()) level = UNKNOWN;
+        int mask = keyServices.length - 1;
+        int h = (service.hashCode() * 31 + level.hashCode()) * 0x9E3779B9;
+        for (int i = (h ^ (h >>> 16)) & mask; ; i = (i + 1) & mask) {
+            String s = keyServices[i];
+            if (s == null) {
+                // the last slot is kept for the overflow key
+                if (slots == slotServices.length - 1) {
+                    overflowMetric.inc();
+                    return slots;
+                }
+                return insert(i, service, level);
+            }
+            if (s.equals(service) && keyLevels[i].equals(level)) return keySlots[i];
+        }
+    }
+
+    private int insert(int i, String service, String level) {
+        keyServices[i] = service;
+        keyLevels[i] = level;
+        keySlots[i] = slots;
+        slotServices[slots] = service;
+        slotLevels[slots] = level;
+        return slots++;
+    }
+}
@@ -0,0 +1,162 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p> A compiled rules file: which sinks each event goes to, decided from its service, its level and its key. One rule
+ * per line, the first one that matches wins, an event no rule matches goes to every sink: </p>
+ * <pre>
+ * # service          level        action
+ * checkout,cart      DEBUG        drop
+ * *                  DEBUG        sample 0.05
+ * search             INFO         sample 0.2 dynamodb
+ * payments           *            keep dynamodb,dynamodb:payments-audit,eventbridge
+ * </pre>
+ * <ul>
+ *     <li>a service or level is a comma separated list, or {@code *}. Services match exactly, levels ignoring case.
+ *     An event without a service or a level only matches {@code *},</li>
+ *     <li>{@code drop} drops the event, {@code keep} keeps it, {@code sample <rate>} keeps that fraction of the
+ *     events. {@code keep} and {@code sample} take an optional list of sinks (names as in {@code SINKS}), every sink
+ *     if there's none,</li>
+ *     <li>sampling hashes the event's key (its sequence number, see {@code LogShardRecordProcessor}), so a replayed
+ *     event is kept or dropped the same way as the first time.</li>
+ * </ul>
+ * <p> Everything is compiled into arrays and sink bitmasks: {@link #route} doesn't allocate. Immutable, so it's
+ * shared by every shard. </p>
+ */
+public final class RuleSet {
+    /** What {@link #route} returns for an event that goes nowhere. */
+    public static final long DROPPED = 0L;
+    private static final long ALWAYS = 1L << 32;
+    private static final int MAX_SINKS = 64;
+
+    private final String[][] services;  // null: any
+    private final String[][] levels;    // null: any
+    private final long[] thresholds;    // kept if the key's 32-bit hash is below it
+    private final long[] masks;
+    private final long allSinks;
+
+    private RuleSet(List<String[]> services, List<String[]> levels, List<Long> thresholds, List<Long> masks, long allSinks) {
+        this.services = services.toArray(new String[0][]);
+        this.levels = levels.toArray(new String[0][]);
+        this.thresholds = thresholds.stream().mapToLong(Long::longValue).toArray();
+        this.masks = masks.stream().mapToLong(Long::longValue).toArray();
+        this.allSinks = allSinks;
+    }
+
+    /**
+     * Compiles a rules file.
+     * @param text the file's content
+     * @param sinkNames the sinks, in order: bit {@code i} of a mask is {@code sinkNames.get(i)}
+     * @return the rules
+     * @throws IllegalArgumentException if a line can't be parsed, with its number
+     */
+    public static RuleSet parse(String text, List<String> sinkNames) {
+        if (sinkNames.size() > MAX_SINKS) throw new IllegalArgumentException("More than " + MAX_SINKS + " sinks");
+        long all = sinkNames.size() == MAX_SINKS ? -1L : (1L << sinkNames.size()) - 1;
+        List<String[]> services = new ArrayList<>();
+        List<String[]> levels = new ArrayList<>();
+        List<Long> thresholds = new ArrayList<>();
+        List<Long> masks = new ArrayList<>();
+        String[] lines = text.split("\\R");
+        for (int n = 0; n < lines.length; n++) {
+            String line = lines[n];
+            int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            if (line.isBlank()) continue;
+            String[] f = line.trim().split("\\s+");
+            try {
+                if (f.length < 3) throw new IllegalArgumentException("expected <service> <level> <action>");
+                long threshold;
+                int sinksAt;
+                switch (f[2].toLowerCase()) {
+                    case "drop" -> { threshold = 0L; sinksAt = -1; }
+                    case "keep" -> { threshold = ALWAYS; sinksAt = 3; }
+                    case "sample" -> {
+                        if (f.length < 4) throw new IllegalArgumentException("sample needs a rate");
+                        double rate = Double.parseDouble(f[3]);
+                        if (!(rate >= 0.0 && rate <= 1.0)) throw new IllegalArgumentException("rate not in [0, 1]: " + f[3]);
+                        threshold = (long) (rate * ALWAYS);
+                        sinksAt = 4;
+                    }
+                    default -> throw new IllegalArgumentException("unknown action: " + f[2]);
+                }
+                if (f.length > (sinksAt < 0 ? 3 : sinksAt + 1)) {
+                    throw new IllegalArgumentException("unexpected: " + f[f.length - 1]);
+                }
+                long mask = sinksAt < 0 ? DROPPED : f.length > sinksAt ? mask(f[sinksAt], sinkNames) : all;
+                services.add(values(f[0]));
+                levels.add(values(f[1]));
+                thresholds.add(mask == DROPPED ? 0L : threshold);
+                masks.add(mask);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Rules line " + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return new RuleSet(services, levels, thresholds, masks, all);
+    }
+
+    /** @return {@code null} for {@code *} */
+    private static String[] values(String field) {
+        if (field.equals("*")) return null;
+        List<String> l = new ArrayList<>();
+        for (String v : field.split(",")) {
+            if (!v.isBlank()) l.add(v.trim());
+        }
+        if (l.isEmpty()) throw new IllegalArgumentException("empty list: " + field);
+        return l.toArray(new String[0]);
+    }
+
+    private static long mask(String field, List<String> sinkNames) {
+        long mask = 0L;
+        for (String name : field.split(",")) {
+            if (name.isBlank()) continue;
+            int i = sinkNames.indexOf(name.trim());
+            if (i < 0) throw new IllegalArgumentException("not in SINKS: " + name.trim());
+            mask |= 1L << i;
+        }
+        if (mask == 0L) throw new IllegalArgumentException("empty sink list: " + field);
+        return mask;
+    }
+
+    /** @return how many rules there are */
+    public int size() { return masks.length; }
+
+    /**
+     * @param service the event's service, or {@code null}
+     * @param level the event's level, or {@code null}
+     * @param key the event's key, for the sampling
+     * @return the sinks the event goes to, as a bitmask over the sinks' order; {@link #DROPPED} if none
+     */
+    public long route(String service, String level, String key) {
+        for (int i = 0; i < masks.length; i++) {
+            if (!matches(services[i], service, false) || !matches(levels[i], level, true)) continue;
+            long threshold = thresholds[i];
+            if (threshold == ALWAYS) return masks[i];
+            if (threshold == 0L) return DROPPED;
+            return sample(key) < threshold ? masks[i] : DROPPED;
+        }
+        return allSinks;
+    }
+
+    private static boolean matches(String[] values, String value, boolean ignoreCase) {
+        if (values == null) return true;
+        if (value == null) return false;
+        for (String v : values) {
+            if (ignoreCase ? v.equalsIgnoreCase(value) : v.equals(value)) return true;
+        }
+        return false;
+    }
+
+    /** @return the key's hash (murmur3's finalizer over {@link String#hashCode}), in {@code [0, 2^32)} */
+    static long sample(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0xffffffffL;
+    }
+}
@@ -0,0 +1,94 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rules;
+
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Counter;
+import com.maurooyhanart.portfolio.log_stream_processing.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> The filtering, sampling and routing rules of {@code RULES_FILE} (see {@link RuleSet} for the format), applied
+ * by every shard processor before an event is buffered. </p>
+ * <ul>
+ *     <li>the file is compiled once at startup, and a broken one fails the startup,</li>
+ *     <li>every {@code RULES_RELOAD_MS} the file's modification time is checked, and a changed file is compiled again
+ *     and swapped in: shard processors pick it up at their next KCL batch. A broken change is logged and the rules
+ *     in place are kept.</li>
+ * </ul>
+ */
+public final class Rules implements AutoCloseable {
+    private final Path file;
+    private final List<String> sinkNames;
+    private final Counter reloads;
+    private final Counter reloadFailures;
+    private final ScheduledExecutorService timer;
+    private volatile RuleSet current;
+    private long lastModified;
+
+    private Rules(Path file, List<String> sinkNames, Metrics metrics, long reloadMs) throws IOException {
+        this.file = file;
+        this.sinkNames = List.copyOf(sinkNames);
+        this.reloads = metrics.counter("rules_reloads_total", "Times the rules file was compiled again after a change");
+        this.reloadFailures = metrics.counter("rules_reload_failures_total", "Changes of the rules file that didn't compile");
+        this.lastModified = Files.getLastModifiedTime(file).toMillis();
+        this.current = RuleSet.parse(Files.readString(file), this.sinkNames);
+        metrics.gauge("rules_loaded", "Rules in place", () -> current.size());
+        if (reloadMs > 0) {
+            timer = Threads.timer("rules-reload", false);
+            timer.scheduleWithFixedDelay(this::reloadIfChanged, reloadMs, reloadMs, TimeUnit.MILLISECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * @param config the app config
+     * @param sinkNames the sinks' names, in the order the shard processors buffer them
+     * @param metrics the process-wide metrics registry
+     * @return the rules, or {@code null} if {@link AppConfig#rulesFile()} isn't set: then every event goes to every sink
+     * @throws IllegalArgumentException if the file doesn't compile
+     * @throws UncheckedIOException if it can't be read
+     */
+    public static Rules start(AppConfig config, List<String> sinkNames, Metrics metrics) {
+        if (config.rulesFile().isBlank()) return null;
+        try {
+            Rules rules = new Rules(Path.of(config.rulesFile()), sinkNames, metrics, config.rulesReloadMs());
+            System.out.printf("Rules: %d from %s, checked for changes every %d ms%n",
+                    rules.current.size(), config.rulesFile(), config.rulesReloadMs());
+            return rules;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read RULES_FILE " + config.rulesFile(), e);
+        }
+    }
+
+    /** @return the rules in place; read it once per batch, a reload swaps it */
+    public RuleSet current() { return current; }
+
+    private void reloadIfChanged() {
+        try {
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if (modified == lastModified) return;
+            // tried once per change: a broken file isn't reported again until it's saved again
+            lastModified = modified;
+            RuleSet next = RuleSet.parse(Files.readString(file), sinkNames);
+            current = next;
+            reloads.inc();
+            System.out.printf("Rules: reloaded %d from %s%n", next.size(), file);
+        } catch (IOException | RuntimeException e) {
+            reloadFailures.inc();
+            System.err.printf("Rules: keeping the current ones, can't reload %s: %s%n", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (timer != null) timer.shutdownNow();
+    }
+}
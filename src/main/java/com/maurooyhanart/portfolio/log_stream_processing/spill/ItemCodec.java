@@ -0,0 +1,105 @@
+package com.maurooyhanart.portfolio.log_stream_processing.spill;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p> Compact binary form of a batch of DynamoDB put requests, as stored in the {@link SpillLog}. We only ever write
+ * string and number attributes, so that's all it supports. The items' event keys follow them, one per item. </p>
+ * <pre>
+ * batch = int itemCount, item*, str key*
+ * item  = short attrCount, attr*
+ * attr  = str name, byte type ('S' | 'N'), str value
+ * str   = int byteLength, UTF-8 bytes
+ * </pre>
+ */
+final class ItemCodec {
+    private static final byte TYPE_S = 'S';
+    private static final byte TYPE_N = 'N';
+
+    private ItemCodec() { }
+
+    /** @param keys the items' event keys, in the same order */
+    static byte[] encode(List<WriteRequest> items, List<String> keys) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(items.size() * 256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(items.size());
+            for (WriteRequest w : items) {
+                Map<String, AttributeValue> item = w.putRequest().item();
+                out.writeShort(item.size());
+                for (Map.Entry<String, AttributeValue> en : item.entrySet()) {
+                    writeString(out, en.getKey());
+                    AttributeValue v = en.getValue();
+                    if (v.s() != null) {
+                        out.writeByte(TYPE_S);
+                        writeString(out, v.s());
+                    } else if (v.n() != null) {
+                        out.writeByte(TYPE_N);
+                        writeString(out, v.n());
+                    } else {
+                        throw new IllegalArgumentException("Unsupported attribute type for " + en.getKey());
+                    }
+                }
+            }
+            for (String key : keys) writeString(out, key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<WriteRequest> decode(ByteBuffer in) {
+        int count = in.getInt();
+        List<WriteRequest> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int attrs = in.getShort();
+            Map<String, AttributeValue> item = new HashMap<>(attrs * 2);
+            for (int a = 0; a < attrs; a++) {
+                String name = readString(in);
+                byte type = in.get();
+                String value = readString(in);
+                item.put(name, type == TYPE_N
+                        ? AttributeValue.builder().n(value).build()
+                        : AttributeValue.builder().s(value).build());
+            }
+            items.add(WriteRequest.builder().putRequest(PutRequest.builder().item(item).build()).build());
+        }
+        return items;
+    }
+
+    /**
+     * @param in positioned right after the items
+     * @param count how many items there were
+     * @return their event keys
+     */
+    static List<String> decodeKeys(ByteBuffer in, int count) {
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) keys.add(readString(in));
+        return keys;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+}
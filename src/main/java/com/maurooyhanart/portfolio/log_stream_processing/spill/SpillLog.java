@@ -0,0 +1,276 @@
+package com.maurooyhanart.portfolio.log_stream_processing.spill;
+
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * <p> Append-only, memory-mapped write-ahead log of flushed batches for one shard. </p>
+ * <ul>
+ *     <li>the log is a sequence of fixed-size segment files ({@code 00000000000000000000.seg}, ...) in the shard's
+ *     directory. A position is {@code segmentIndex * segmentBytes + offset}, so positions only grow,</li>
+ *     <li>a record is {@code int length, int crc32c, payload}. The length is written last, and a zero length is
+ *     written right after every record, so a torn write just looks like the end of the log,</li>
+ *     <li>the record thread appends ({@link #append}); the {@link SpillReplayer} reads ({@link #next}) and, once a
+ *     batch is in DynamoDB, commits its end position ({@link #commit}). The committed position is persisted in
+ *     {@code committed.pos}, and segments entirely before it are deleted,</li>
+ *     <li>on open, anything after the committed position is replayed again. The write position is recovered by
+ *     walking the last segment until the first record that's empty or fails its CRC.</li>
+ * </ul>
+ * <p> Without {@code fsync} an append survives a process crash (the data is in the page cache), not a host crash.
+ * With it, every append is forced to disk before returning. </p>
+ */
+public final class SpillLog {
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMMITTED_FILE = "committed.pos";
+    private static final long COMMIT_PERSIST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String shardId;
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean fsync;
+    private final long maxBacklogBytes;
+    private final ConcurrentSkipListMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+
+    // writer side, record thread only (appends are synchronized in case a lease moves between threads)
+    private long writeSegment;
+    private int writeOffset;
+    private volatile long writePosition;
+
+    // reader side, replayer thread only
+    private long readPosition;
+    private volatile long committedPosition;
+    private long lastPersistNanos;
+
+    /**
+     * A batch read back from the log.
+     * @param keys the items' event keys
+     */
+    public record Entry(List<WriteRequest> items, List<String> keys, long endPosition) { }
+
+    private SpillLog(String shardId, Path dir, int segmentBytes, boolean fsync, long maxBacklogBytes) {
+        this.shardId = shardId;
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.maxBacklogBytes = maxBacklogBytes;
+    }
+
+    /**
+     * Opens (and recovers) the log in {@code dir}, creating it if needed.
+     */
+    static SpillLog open(String shardId, Path dir, int segmentBytes, boolean fsync, long maxBacklogBytes) throws IOException {
+        Files.createDirectories(dir);
+        SpillLog log = new SpillLog(shardId, dir, segmentBytes, fsync, maxBacklogBytes);
+        log.recover();
+        return log;
+    }
+
+    public String shardId() { return shardId; }
+
+    /** @return bytes appended but not yet committed (replayed to DynamoDB) */
+    public long backlogBytes() { return writePosition - committedPosition; }
+
+    /**
+     * Appends a batch. Blocks while the backlog is over {@code maxBacklogBytes}, which is how a long sink outage
+     * finally pushes back on the stream.
+     * @param items the batch
+     * @param keys the items' event keys, in the same order: they're what a replayed item is dead-lettered with
+     * @return a completed future, or a failed one if the append couldn't be done
+     */
+    public CompletableFuture<Void> append(List<WriteRequest> items, List<String> keys) {
+        try {
+            while (backlogBytes() > maxBacklogBytes) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            appendBytes(ItemCodec.encode(items, keys));
+            return CompletableFuture.completedFuture(null);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(ie);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    synchronized void appendBytes(byte[] payload) throws IOException {
+        int needed = HEADER_BYTES + payload.length + 4; // + the zero length that ends the log
+        if (needed > segmentBytes) {
+            throw new IllegalArgumentException("Batch of " + payload.length + " bytes doesn't fit a " + segmentBytes + " bytes segment");
+        }
+        if (writeOffset + needed > segmentBytes) {
+            // the rest of this segment stays zero, which reads as "go to the next segment"
+            writeSegment++;
+            writeOffset = 0;
+            segments.put(writeSegment, map(writeSegment));
+        }
+
+        MappedByteBuffer seg = segments.get(writeSegment);
+        int off = writeOffset;
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        seg.put(off + HEADER_BYTES, payload);
+        seg.putInt(off + 4, (int) crc.getValue());
+        seg.putInt(off + HEADER_BYTES + payload.length, 0);
+        seg.putInt(off, payload.length);
+        if (fsync) seg.force(off, HEADER_BYTES + payload.length + 4);
+
+        writeOffset = off + HEADER_BYTES + payload.length;
+        writePosition = position(writeSegment, writeOffset);
+    }
+
+    /**
+     * Reads the next batch after the last one returned, if there's one.
+     * @return the batch and the position right after it, or {@code null} if the reader caught up with the writer
+     */
+    Entry next() {
+        while (true) {
+            long limit = writePosition;
+            if (readPosition >= limit) return null;
+
+            long segIndex = readPosition / segmentBytes;
+            int off = (int) (readPosition % segmentBytes);
+            MappedByteBuffer seg = segments.get(segIndex);
+            int len = (seg == null || off + HEADER_BYTES > segmentBytes) ? 0 : seg.getInt(off);
+            if (len <= 0) {
+                // end of this segment, the writer rolled over
+                readPosition = position(segIndex + 1, 0);
+                continue;
+            }
+            byte[] payload = new byte[len];
+            seg.get(off + HEADER_BYTES, payload);
+            readPosition = position(segIndex, off + HEADER_BYTES + len);
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            List<WriteRequest> items = ItemCodec.decode(in);
+            return new Entry(items, ItemCodec.decodeKeys(in, items.size()), readPosition);
+        }
+    }
+
+    /**
+     * Marks everything before {@code position} as written to DynamoDB. Called in order, by the replayer only.
+     */
+    void commit(long position) {
+        if (position <= committedPosition) return;
+        long before = committedPosition;
+        committedPosition = position;
+
+        long now = System.nanoTime();
+        long firstKept = Math.min(position / segmentBytes, writeSegment);
+        // persisted before any segment is deleted: a crash never leaves committed.pos pointing into a deleted segment
+        boolean deletes = before / segmentBytes < firstKept;
+        if (deletes || now - lastPersistNanos >= COMMIT_PERSIST_INTERVAL_NANOS || position == writePosition) {
+            lastPersistNanos = now;
+            persistCommitted();
+        }
+        // drop segments the committed position moved past; never the one being written
+        for (long idx = before / segmentBytes; idx < firstKept; idx++) {
+            if (segments.remove(idx) != null) {
+                try {
+                    Files.deleteIfExists(segmentPath(idx));
+                } catch (IOException e) {
+                    System.err.printf("Spill %s: couldn't delete segment %d: %s%n", shardId, idx, e);
+                }
+            }
+        }
+    }
+
+    void persistCommitted() {
+        try {
+            Path tmp = dir.resolve(COMMITTED_FILE + ".tmp");
+            Files.writeString(tmp, Long.toString(committedPosition), StandardCharsets.US_ASCII);
+            Files.move(tmp, dir.resolve(COMMITTED_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recover() throws IOException {
+        Path committedFile = dir.resolve(COMMITTED_FILE);
+        long committed = Files.exists(committedFile)
+                ? Long.parseLong(Files.readString(committedFile, StandardCharsets.US_ASCII).trim())
+                : -1L;
+
+        long first = Long.MAX_VALUE;
+        long last = -1L;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+                long idx = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                if (committed >= 0 && idx < committed / segmentBytes) {
+                    Files.deleteIfExists(p); // already replayed
+                    continue;
+                }
+                first = Math.min(first, idx);
+                last = Math.max(last, idx);
+            }
+        }
+
+        if (last < 0) {
+            long start = Math.max(0L, committed) / segmentBytes;
+            first = start;
+            last = start;
+        }
+        for (long idx = first; idx <= last; idx++) {
+            segments.put(idx, map(idx));
+        }
+        if (committed < 0) committed = position(first, 0);
+
+        // walk the last segment to find where the valid records end
+        MappedByteBuffer seg = segments.get(last);
+        int off = 0;
+        CRC32C crc = new CRC32C();
+        while (off + HEADER_BYTES <= segmentBytes) {
+            int len = seg.getInt(off);
+            if (len <= 0 || off + HEADER_BYTES + len > segmentBytes) break;
+            byte[] payload = new byte[len];
+            seg.get(off + HEADER_BYTES, payload);
+            crc.reset();
+            crc.update(payload, 0, len);
+            if ((int) crc.getValue() != seg.getInt(off + 4)) break;
+            off += HEADER_BYTES + len;
+        }
+        if (off + 4 <= segmentBytes) seg.putInt(off, 0); // cut off whatever torn write followed
+
+        writeSegment = last;
+        writeOffset = off;
+        writePosition = position(last, off);
+        committedPosition = Math.min(committed, writePosition);
+        readPosition = committedPosition;
+
+        if (writePosition > committedPosition) {
+            System.out.printf("Spill %s: recovered %d bytes to replay%n", shardId, writePosition - committedPosition);
+        }
+    }
+
+    private MappedByteBuffer map(long idx) throws IOException {
+        try (FileChannel ch = FileChannel.open(segmentPath(idx),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private Path segmentPath(long idx) {
+        return dir.resolve(String.format("%020d%s", idx, SEGMENT_SUFFIX));
+    }
+
+    private long position(long segIndex, int offset) {
+        return segIndex * segmentBytes + offset;
+    }
+}
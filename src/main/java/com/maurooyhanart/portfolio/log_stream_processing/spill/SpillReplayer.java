@@ -0,0 +1,301 @@
+package com.maurooyhanart.portfolio.log_stream_processing.spill;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.maurooyhanart.portfolio.log_stream_processing.concurrent.Threads;
+import com.maurooyhanart.portfolio.log_stream_processing.config.AppConfig;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetter;
+import com.maurooyhanart.portfolio.log_stream_processing.deadletter.DeadLetterQueue;
+import com.maurooyhanart.portfolio.log_stream_processing.model.LogEvent;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.DynamoWriter;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.EncodedItem;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.LogSink;
+import com.maurooyhanart.portfolio.log_stream_processing.outputs.PoisonBatchException;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * <p> Owns every {@link SpillLog} of the process and drains them to DynamoDB on a background thread. </p>
+ * <ul>
+ *     <li>at startup it recovers every shard directory under {@link AppConfig#spillDir()}, including shards this
+ *     worker no longer owns: what's in a log was already checkpointed, so it must be replayed by whoever has it,</li>
+ *     <li>per log, at most {@link AppConfig#spillReplayMaxInFlight()} batches are in flight; on top of that every
+ *     call goes through the shared rate controller in {@link DynamoWriter}. That's the replayer's backpressure,</li>
+ *     <li>a log's committed position only moves forward in order, over batches that (and all before them) are
+ *     written. A failed batch is sent again,</li>
+ *     <li>unless it can't be written: a batch DynamoDB rejects as a {@link PoisonBatchException} is sent again item
+ *     by item, and the items it still rejects are dead-lettered. After {@link AppConfig#dlqMaxFlushAttempts()}
+ *     failed attempts the whole batch is dead-lettered, and the log moves past it. The dead letters hold the event
+ *     rebuilt from its item, as JSON, since the raw record isn't in the log,</li>
+ *     <li>without a dead-letter queue the rejected items are dropped (and logged): they would never be written, and
+ *     the backlog behind them would end up blocking the stream. Other failures are sent again, for as long as it
+ *     takes.</li>
+ * </ul>
+ */
+public class SpillReplayer implements AutoCloseable {
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final Path root;
+    private final int segmentBytes;
+    private final boolean fsync;
+    private final long maxBacklogBytes;
+    private final int maxInFlight;
+    private final DynamoWriter writer;
+    private final DeadLetterQueue deadLetters;
+    private final int maxAttempts;
+    private final ConcurrentHashMap<String, Drain> drains = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private SpillReplayer(AppConfig config, DynamoWriter writer, DeadLetterQueue deadLetters) {
+        this.root = Paths.get(config.spillDir());
+        this.segmentBytes = config.spillSegmentBytes();
+        this.fsync = config.spillFsync();
+        this.maxBacklogBytes = config.spillMaxBacklogBytes();
+        this.maxInFlight = Math.max(1, config.spillReplayMaxInFlight());
+        this.writer = writer;
+        this.deadLetters = deadLetters;
+        this.maxAttempts = Math.max(1, config.dlqMaxFlushAttempts());
+        this.thread = Threads.factory("spill-replayer", Threads.virtual(config)).newThread(this::loop);
+    }
+
+    /**
+     * Recovers every existing log and starts draining them.
+     * @param deadLetters where the items DynamoDB keeps rejecting go, or {@code null} if there's no dead-letter queue
+     * @return the replayer, or {@code null} if spilling is disabled ({@link AppConfig#spillDir()} is blank)
+     */
+    public static SpillReplayer start(AppConfig config, DynamoWriter writer, DeadLetterQueue deadLetters)
+            throws IOException {
+        if (config.spillDir() == null || config.spillDir().isBlank()) return null;
+        SpillReplayer replayer = new SpillReplayer(config, writer, deadLetters);
+        Files.createDirectories(replayer.root);
+        try (Stream<Path> dirs = Files.list(replayer.root)) {
+            for (Path d : (Iterable<Path>) dirs::iterator) {
+                if (Files.isDirectory(d)) replayer.logFor(d.getFileName().toString());
+            }
+        }
+        replayer.thread.start();
+        return replayer;
+    }
+
+    /**
+     * @param shardId the shard
+     * @return the shard's log, opened (and recovered) the first time it's asked for
+     */
+    public SpillLog logFor(String shardId) {
+        return drains.computeIfAbsent(shardId, id -> {
+            try {
+                return new Drain(SpillLog.open(id, root.resolve(id), segmentBytes, fsync, maxBacklogBytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).log;
+    }
+
+    /**
+     * @return the DynamoDB sink, spilled: items are encoded by the {@link DynamoWriter}, but each shard's flushes are
+     * appended to that shard's log, and this replayer writes them to DynamoDB later
+     */
+    public LogSink<EncodedItem> sink() {
+        return new SpillSink(null, null);
+    }
+
+    /** The spilled DynamoDB sink; bound to a shard's log by {@link #forShard}. */
+    private final class SpillSink implements LogSink<EncodedItem> {
+        private final SpillLog log;
+        private final String shardId;
+
+        SpillSink(SpillLog log, String shardId) {
+            this.log = log;
+            this.shardId = shardId;
+        }
+
+        @Override
+        public String name() { return writer.name(); }
+
+        @Override
+        public EncodedItem prepare(LogEvent e, String sequenceNumber) { return writer.encode(e, shardId, sequenceNumber); }
+
+        @Override
+        public int sizeOf(EncodedItem item) { return writer.sizeOf(item); }
+
+        @Override
+        public CompletableFuture<Void> write(List<EncodedItem> items) {
+            if (log == null) return CompletableFuture.failedFuture(new IllegalStateException("Spill sink not bound to a shard"));
+            List<String> keys = new ArrayList<>(items.size());
+            for (EncodedItem item : items) keys.add(item.key());
+            return log.append(DynamoWriter.requests(items), keys);
+        }
+
+        @Override
+        public LogSink<EncodedItem> forShard(String shardId) { return new SpillSink(logFor(shardId), shardId); }
+    }
+
+    /** @param attempts how many times the batch was sent, counting this one */
+    private record Replay(SpillLog.Entry entry, CompletableFuture<Void> future, int attempts) { }
+
+    /** Replay state of one log; only touched by the replayer thread. */
+    private static final class Drain {
+        final SpillLog log;
+        final ArrayDeque<Replay> inFlight = new ArrayDeque<>();
+
+        Drain(SpillLog log) { this.log = log; }
+    }
+
+    private void loop() {
+        while (running) {
+            boolean busy = false;
+            for (Drain d : drains.values()) {
+                try {
+                    busy |= drain(d);
+                } catch (RuntimeException e) {
+                    System.err.printf("Spill %s: replay error: %s%n", d.log.shardId(), e);
+                }
+            }
+            if (!busy) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Commits what finished in order, then starts new batches up to the in-flight limit.
+     * @return whether anything happened
+     */
+    private boolean drain(Drain d) {
+        boolean busy = false;
+
+        long committed = -1L;
+        while (!d.inFlight.isEmpty() && d.inFlight.peekFirst().future().isDone()) {
+            Replay head = d.inFlight.peekFirst();
+            if (head.future().isCompletedExceptionally()) {
+                // keep everything after it uncommitted until it's written or given up on
+                d.inFlight.pollFirst();
+                d.inFlight.addFirst(retry(d, head));
+                busy = true;
+                break;
+            }
+            d.inFlight.pollFirst();
+            committed = head.entry().endPosition();
+        }
+        if (committed >= 0) {
+            d.log.commit(committed);
+            busy = true;
+        }
+
+        while (d.inFlight.size() < maxInFlight) {
+            SpillLog.Entry e = d.log.next();
+            if (e == null) break;
+            d.inFlight.addLast(new Replay(e, writer.putBatchAsync(e.items(), d.log.shardId()), 1));
+            busy = true;
+        }
+        return busy;
+    }
+
+    /**
+     * Sends a failed batch again (the writer already backed off), item by item if it was rejected as poison, or gives
+     * up on it.
+     * @return the batch's next attempt; already done if it was given up on
+     */
+    private Replay retry(Drain d, Replay failed) {
+        SpillLog.Entry e = failed.entry();
+        Throwable failure = unwrap(failed.future().handle((r, err) -> err).join());
+        boolean poison = failure instanceof PoisonBatchException;
+        if ((poison && e.items().size() == 1) || (deadLetters != null && failed.attempts() >= maxAttempts)) {
+            for (int i = 0; i < e.items().size(); i++) deadLetter(d, e, i, failure);
+            return new Replay(e, DONE, failed.attempts());
+        }
+        CompletableFuture<Void> next = poison ? oneByOne(d, e) : writer.putBatchAsync(e.items(), d.log.shardId());
+        return new Replay(e, next, failed.attempts() + 1);
+    }
+
+    /** Writes every item on its own, dead-letters the ones DynamoDB still rejects as poison. */
+    private CompletableFuture<Void> oneByOne(Drain d, SpillLog.Entry e) {
+        CompletableFuture<?>[] each = new CompletableFuture<?>[e.items().size()];
+        for (int i = 0; i < each.length; i++) {
+            int item = i;
+            each[i] = writer.putBatchAsync(List.of(e.items().get(i)), d.log.shardId()).exceptionally(err -> {
+                Throwable cause = unwrap(err);
+                // anything else fails the batch, which is then sent again as a whole
+                if (!(cause instanceof PoisonBatchException)) throw new CompletionException(cause);
+                deadLetter(d, e, item, cause);
+                return null;
+            });
+        }
+        return CompletableFuture.allOf(each);
+    }
+
+    private void deadLetter(Drain d, SpillLog.Entry e, int item, Throwable cause) {
+        String shardId = d.log.shardId();
+        if (deadLetters == null) {
+            System.err.printf("Spill %s: dropped an item DynamoDB won't take: %s%n", shardId, cause);
+            return;
+        }
+        deadLetters.offer(DeadLetter.of(shardId, e.keys().get(item), "write:" + writer.name(), cause,
+                ByteBuffer.wrap(eventJson(e.items().get(item)))));
+    }
+
+    /** @return the event an item was built from, as the JSON the decoder reads: what its dead letter holds */
+    private static byte[] eventJson(WriteRequest w) {
+        Map<String, AttributeValue> item = w.putRequest().item();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (JsonGenerator g = JSON.createGenerator(bytes)) {
+            g.writeStartObject();
+            AttributeValue ts = item.get("ts");
+            if (ts != null) g.writeStringField("timestamp", Instant.ofEpochMilli(Long.parseLong(ts.n())).toString());
+            for (String field : new String[]{"service", "level", "message"}) {
+                AttributeValue v = item.get(field);
+                if (v != null) g.writeStringField(field, v.s());
+            }
+            g.writeEndObject();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t;
+    }
+
+    /**
+     * Stops the replayer thread and persists the committed positions. Batches still in flight are simply replayed
+     * again on the next start.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join(5_000L);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (Drain d : drains.values()) {
+            try {
+                d.log.persistCommitted();
+            } catch (UncheckedIOException e) {
+                System.err.printf("Spill %s: couldn't persist committed position: %s%n", d.log.shardId(), e);
+            }
+        }
+    }
+}
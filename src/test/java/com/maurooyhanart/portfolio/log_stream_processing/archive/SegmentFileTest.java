@@ -0,0 +1,173 @@
+package com.maurooyhanart.portfolio.log_stream_processing.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Archive segments end to end: the columnar block layout, a segment written, sealed and read back, and an open
+ * segment recovered after a crash.
+ */
+class SegmentFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void blockRoundTrip() {
+        List<ArchiveRow> rows = List.of(
+                new ArchiveRow(1_723_032_000_500L, "api", "INFO", "started", "4950:0"),
+                // timestamps aren't ordered within a block: the deltas go negative
+                new ArchiveRow(1_723_032_000_100L, "billing", "ERROR", "façade → 500", "4951"),
+                new ArchiveRow(0L, null, null, null, "4952:0:3"),
+                new ArchiveRow(1_723_032_001_000L, "api", "INFO", "", "4953"));
+        byte[] raw = BlockCodec.encode(rows);
+
+        List<ArchiveRow> decoded = BlockCodec.decode(raw);
+        assertEquals(rows.subList(0, 3), decoded.subList(0, 3));
+        // an empty message reads back as a missing one
+        assertEquals(new ArchiveRow(1_723_032_001_000L, "api", "INFO", null, "4953"), decoded.get(3));
+
+        BlockIndex index = BlockCodec.index(raw, 4L, 100);
+        assertEquals(new BlockIndex(4L, 100, 4, 0L, 1_723_032_001_000L, List.of("api", "billing", "")), index);
+        assertTrue(index.matches("billing", 1_723_032_000_000L, 1_723_032_000_200L));
+        assertFalse(index.matches("search", 0L, Long.MAX_VALUE));
+        assertFalse(index.matches(null, 1_723_032_002_000L, Long.MAX_VALUE));
+    }
+
+    @Test
+    void emptyBlockRoundTrip() {
+        byte[] raw = BlockCodec.encode(List.of());
+        assertEquals(List.of(), BlockCodec.decode(raw));
+        assertEquals(0, BlockCodec.index(raw, 0L, 0).rows());
+    }
+
+    @Test
+    void sealedSegmentReadsBackBlockByBlock() throws IOException {
+        SegmentFile seg = SegmentFile.create(dir, "seg1", false);
+        List<ArchiveRow> first = rows("api", 1_000L, 50);
+        List<ArchiveRow> second = rows("billing", 5_000L, 30);
+        seg.append(first, 1L);
+        seg.append(second, 2L);
+        assertEquals(Set.of(1L, 2L), seg.journalIds());
+        Path sealed = seg.seal();
+
+        assertEquals("1000-5029-seg1.lsg", sealed.getFileName().toString());
+        assertFalse(Files.exists(dir.resolve("seg1.open")));
+        assertEquals(1_000L, SegmentReader.timeRange(sealed.getFileName().toString())[0]);
+        assertEquals(5_029L, SegmentReader.timeRange(sealed.getFileName().toString())[1]);
+        assertNull(SegmentReader.timeRange("seg1.open"));
+
+        try (SegmentReader reader = SegmentReader.open(SegmentReader.file(sealed))) {
+            List<BlockIndex> blocks = reader.blocks();
+            assertEquals(2, blocks.size());
+            assertEquals(List.of("api"), blocks.get(0).services());
+            assertEquals(30, blocks.get(1).rows());
+            assertEquals(first, reader.read(blocks.get(0)));
+            assertEquals(second, reader.read(blocks.get(1)));
+        }
+    }
+
+    @Test
+    void emptySegmentIsDeletedWhenSealed() throws IOException {
+        SegmentFile seg = SegmentFile.create(dir, "empty", false);
+        assertNull(seg.seal());
+        assertFalse(Files.exists(dir.resolve("empty.open")));
+    }
+
+    @Test
+    void recoveryDropsATornBlock() throws IOException {
+        SegmentFile seg = SegmentFile.create(dir, "seg2", false);
+        seg.append(rows("api", 1_000L, 10), 7L);
+        long end = seg.size();
+        seg.abandon();
+        Path open = dir.resolve("seg2.open");
+        // a block header that made it to disk, but not its payload
+        write(open, end, ByteBuffer.allocate(SegmentFile.BLOCK_HEADER_BYTES).putInt(0, 4096).putInt(4, 8192));
+
+        SegmentFile recovered = SegmentFile.recover(open, false);
+        assertEquals(end, recovered.size());
+        assertEquals(Set.of(7L), recovered.journalIds());
+        recovered.append(rows("api", 2_000L, 5), 8L);
+        Path sealed = recovered.seal();
+        try (SegmentReader reader = SegmentReader.open(SegmentReader.file(sealed))) {
+            assertEquals(2, reader.blocks().size());
+            assertEquals(rows("api", 2_000L, 5), reader.read(reader.blocks().get(1)));
+        }
+    }
+
+    @Test
+    void recoveryStopsAtACorruptBlock() throws IOException {
+        SegmentFile seg = SegmentFile.create(dir, "seg3", false);
+        seg.append(rows("api", 1_000L, 10), 1L);
+        long second = seg.size();
+        seg.append(rows("api", 2_000L, 10), 2L);
+        seg.append(rows("api", 3_000L, 10), 3L);
+        seg.abandon();
+        Path open = dir.resolve("seg3.open");
+        flip(open, second + SegmentFile.BLOCK_HEADER_BYTES + 1);
+
+        SegmentFile recovered = SegmentFile.recover(open, false);
+        assertEquals(second, recovered.size());
+        assertEquals(Set.of(1L), recovered.journalIds());
+    }
+
+    @Test
+    void corruptBlockFailsItsRead() throws IOException {
+        SegmentFile seg = SegmentFile.create(dir, "seg4", false);
+        seg.append(rows("api", 1_000L, 10), 1L);
+        Path sealed = seg.seal();
+        flip(sealed, 4 + SegmentFile.BLOCK_HEADER_BYTES + 2);
+        try (SegmentReader reader = SegmentReader.open(SegmentReader.file(sealed))) {
+            assertThrows(IOException.class, () -> reader.read(reader.blocks().get(0)));
+        }
+    }
+
+    @Test
+    void openSegmentIsntReadAsASealedOne() throws IOException {
+        SegmentFile seg = SegmentFile.create(dir, "seg5", false);
+        seg.append(rows("api", 1_000L, 10), 1L);
+        seg.abandon();
+        assertThrows(IOException.class, () -> SegmentReader.open(SegmentReader.file(dir.resolve("seg5.open"))));
+    }
+
+    /** @return {@code count} rows of a service, a millisecond apart from {@code fromMillis} */
+    private static List<ArchiveRow> rows(String service, long fromMillis, int count) {
+        List<ArchiveRow> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new ArchiveRow(fromMillis + i, service, i % 7 == 0 ? "ERROR" : "INFO", "request " + i + " done",
+                    Long.toString(fromMillis + i)));
+        }
+        return rows;
+    }
+
+    private static void write(Path file, long position, ByteBuffer bytes) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            SegmentFile.writeFully(ch, bytes, position);
+        }
+    }
+
+    private static void flip(Path file, long position) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            SegmentFile.readFully(ch, b, position);
+            b.put(0, (byte) (b.get(0) ^ 0x5a)).rewind();
+            SegmentFile.writeFully(ch, b, position);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.maurooyhanart.portfolio.log_stream_processing.kinesis;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The checkpoint only moves past batches that are written, and every one before them: the writes are futures the test
+ * completes by hand, in whatever order it wants.
+ */
+class FlushPipelineTest {
+
+    @Test
+    void checkpointWaitsForTheHeadBatch() {
+        FlushPipeline pipeline = new FlushPipeline(4);
+        Write first = new Write();
+        Write second = new Write();
+        pipeline.submit(seq(1), first);
+        pipeline.submit(seq(2), second);
+
+        second.succeed();
+        assertNull(pipeline.drainCompleted());
+        first.succeed();
+        assertEquals(seq(2), pipeline.drainCompleted());
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    void failedHeadBatchIsRetriedAndHoldsTheCheckpoint() {
+        FlushPipeline pipeline = new FlushPipeline(4);
+        Write head = new Write();
+        Write next = new Write();
+        pipeline.submit(seq(1), head);
+        pipeline.submit(seq(2), next);
+
+        next.succeed();
+        head.fail();
+        assertNull(pipeline.drainCompleted());
+        assertEquals(2, head.calls.size());
+        assertEquals(1L, pipeline.retries());
+
+        // still running after its re-submit: nothing new
+        assertNull(pipeline.drainCompleted());
+        assertEquals(2, head.calls.size());
+
+        head.succeed();
+        assertEquals(seq(2), pipeline.drainCompleted());
+        assertEquals(1, next.calls.size());
+    }
+
+    @Test
+    void batchWithoutAWholeRecordDoesntMoveTheCheckpoint() {
+        FlushPipeline pipeline = new FlushPipeline(4);
+        Write partial = new Write();
+        Write rest = new Write();
+        // the first events of a record that carries many, then the rest of it
+        pipeline.submit(null, partial);
+        pipeline.submit(seq(1), rest);
+
+        partial.succeed();
+        assertNull(pipeline.drainCompleted());
+        rest.succeed();
+        assertEquals(seq(1), pipeline.drainCompleted());
+    }
+
+    @Test
+    void recordWithNothingToWriteGoesWithTheLastBatch() {
+        FlushPipeline pipeline = new FlushPipeline(4);
+        assertFalse(pipeline.extendLast(seq(1)));
+
+        Write w = new Write();
+        pipeline.submit(seq(2), w);
+        assertTrue(pipeline.extendLast(seq(3)));
+        assertNull(pipeline.drainCompleted());
+        w.succeed();
+        assertEquals(seq(3), pipeline.drainCompleted());
+    }
+
+    @Test
+    void awaitAllRetriesUntilEverythingIsWritten() {
+        FlushPipeline pipeline = new FlushPipeline(2);
+        int[] attempts = new int[1];
+        // fails twice, right away, then goes through
+        pipeline.submit(seq(1), () -> ++attempts[0] <= 2
+                ? CompletableFuture.failedFuture(new RuntimeException("throttled"))
+                : CompletableFuture.completedFuture(null));
+        pipeline.submit(seq(2), () -> CompletableFuture.completedFuture(null));
+
+        assertEquals(seq(2), pipeline.awaitAll());
+        assertEquals(3, attempts[0]);
+        assertEquals(2L, pipeline.retries());
+        assertEquals(0, pipeline.running());
+    }
+
+    @Test
+    void writeThatThrowsIsAFailedBatch() {
+        FlushPipeline pipeline = new FlushPipeline(1);
+        boolean[] thrown = new boolean[1];
+        pipeline.submit(seq(1), () -> {
+            if (!thrown[0]) {
+                thrown[0] = true;
+                throw new IllegalStateException("client closed");
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+        // the slot it held is free again, or this would block
+        assertNull(pipeline.drainCompleted());
+        assertEquals(seq(1), pipeline.drainCompleted());
+    }
+
+    private static ExtendedSequenceNumber seq(long n) {
+        return new ExtendedSequenceNumber(Long.toString(49_000_000L + n), 0L);
+    }
+
+    /** A write completed by the test; every call starts a new attempt. */
+    private static final class Write implements Supplier<CompletableFuture<Void>> {
+        final List<CompletableFuture<Void>> calls = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<Void> get() {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            calls.add(f);
+            return f;
+        }
+
+        void succeed() { calls.get(calls.size() - 1).complete(null); }
+
+        void fail() { calls.get(calls.size() - 1).completeExceptionally(new RuntimeException("throttled")); }
+    }
+}
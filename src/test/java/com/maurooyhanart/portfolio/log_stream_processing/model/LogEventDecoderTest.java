@@ -0,0 +1,150 @@
+package com.maurooyhanart.portfolio.log_stream_processing.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The streaming decoder against what the generic parsing would give: timestamps, the early stop of a filter, and the
+ * interned service and level.
+ */
+class LogEventDecoderTest {
+
+    @Test
+    void isoUtcTimestampsParseLikeInstantParse() {
+        for (String s : List.of("2024-08-07T12:00:00Z", "2024-08-07T12:00:00.1Z", "2024-08-07T12:00:00.123Z",
+                "2024-08-07T23:59:59.123456789Z", "2024-02-29T00:00:00Z", "1970-01-01T00:00:00Z",
+                "1969-12-31T23:59:59.5Z", "2000-03-01T01:02:03.000004Z")) {
+            assertEquals(Instant.parse(s), parse(s));
+        }
+    }
+
+    @Test
+    void anythingElseIsLeftToTheFallback() {
+        for (String s : List.of("2023-02-29T00:00:00Z", "2024-04-31T00:00:00Z", "2024-13-01T00:00:00Z",
+                "2024-08-07T24:00:00Z", "2024-08-07T12:00:00.Z", "2024-08-07T12:00:00.1234567891Z",
+                "2024-08-07T12:00:00+02:00", "2024-08-07 12:00:00Z", "2024-08-07T12:00:0xZ", "2024-08-07T12:00Z")) {
+            assertNull(parse(s), s);
+        }
+    }
+
+    @Test
+    void timestampsTheFastPathDoesntTakeStillDecode() throws IOException {
+        LogEventDecoder decoder = new LogEventDecoder(false);
+        assertEquals(Instant.parse("2024-08-07T10:00:00Z"),
+                decode(decoder, "{\"timestamp\":\"2024-08-07T12:00:00+02:00\"}").timestamp);
+        assertEquals(Instant.ofEpochSecond(1723032000L), decode(decoder, "{\"timestamp\":1723032000}").timestamp);
+        assertEquals(Instant.ofEpochSecond(1723032000L, 250_000_000),
+                decode(decoder, "{\"timestamp\":1723032000.25}").timestamp);
+        assertEquals(Instant.ofEpochSecond(1723032000L), decode(decoder, "{\"timestamp\":\"1723032000\"}").timestamp);
+        assertNull(decode(decoder, "{\"timestamp\":null}").timestamp);
+    }
+
+    @Test
+    void filterStopsTheDecodingOnceServiceAndLevelAreRead() throws IOException {
+        LogEventDecoder decoder = new LogEventDecoder(false);
+        String json = "{\"service\":\"api\",\"level\":\"DEBUG\",\"message\":\"hi\",\"timestamp\":\"2024-08-07T12:00:00Z\"}";
+        List<String> seen = new ArrayList<>();
+
+        LogEvent dropped = decoder.decode(heap(json), new LogEvent(), (service, level) -> {
+            seen.add(service + "/" + level);
+            return true;
+        });
+        assertEquals(List.of("api/DEBUG"), seen);
+        assertEquals("api", dropped.service);
+        assertEquals("DEBUG", dropped.level);
+        assertNull(dropped.message);
+        assertNull(dropped.timestamp);
+
+        LogEvent kept = decoder.decode(heap(json), new LogEvent(), (service, level) -> false);
+        assertEquals("hi", kept.message);
+        assertEquals(Instant.parse("2024-08-07T12:00:00Z"), kept.timestamp);
+    }
+
+    @Test
+    void filterIsntCalledWithoutAServiceOrALevel() throws IOException {
+        LogEventDecoder decoder = new LogEventDecoder(false);
+        LogEvent e = decoder.decode(heap("{\"level\":\"INFO\",\"message\":\"no service\"}"), new LogEvent(),
+                (service, level) -> { throw new AssertionError("called for " + service + "/" + level); });
+        assertEquals("no service", e.message);
+    }
+
+    @Test
+    void serviceAndLevelAreInterned() throws IOException {
+        LogEventDecoder decoder = new LogEventDecoder(false);
+        // one in a heap buffer, parsed in place, and one read-only, copied to the scratch array first
+        LogEvent a = decoder.decode(heap("{\"service\":\"checkout\",\"level\":\"WARN\"}"), new LogEvent());
+        LogEvent b = decoder.decode(readOnly("{\"level\":\"WARN\",\"message\":\"x\",\"service\":\"checkout\"}"),
+                new LogEvent());
+        assertEquals("checkout", a.service);
+        assertSame(a.service, b.service);
+        assertSame(a.level, b.level);
+    }
+
+    @Test
+    void bufferPositionIsLeftUntouched() throws IOException {
+        ByteBuffer data = readOnly("{\"service\":\"api\"}");
+        new LogEventDecoder(false).decode(data, new LogEvent());
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    void contextIsOnlyMaterializedForErrorsWhenAsked() throws IOException {
+        String error = "{\"level\":\"ERROR\",\"context\":{\"user\":\"u1\",\"n\":2},\"message\":\"boom\"}";
+        String info = "{\"level\":\"INFO\",\"context\":{\"user\":\"u1\"}}";
+        LogEvent withContext = new LogEventDecoder(true).decode(readOnly(error), new LogEvent());
+        assertEquals(Map.of("user", "u1", "n", 2), withContext.context);
+        assertEquals("boom", withContext.message);
+        assertNull(new LogEventDecoder(true).decode(readOnly(info), new LogEvent()).context);
+        assertNull(new LogEventDecoder(false).decode(readOnly(error), new LogEvent()).context);
+    }
+
+    @Test
+    void everyFieldIsOverwritten() throws IOException {
+        LogEventDecoder decoder = new LogEventDecoder(false);
+        LogEvent e = decoder.decode(heap("{\"service\":\"api\",\"level\":\"INFO\",\"message\":\"m\"}"), new LogEvent());
+        decoder.decode(heap("{\"message\":\"only\"}"), e);
+        assertNull(e.service);
+        assertNull(e.level);
+        assertEquals("only", e.message);
+    }
+
+    @Test
+    void anythingButAnObjectIsRejected() {
+        assertThrows(IOException.class, () -> new LogEventDecoder(false).decode(heap("[1,2]"), new LogEvent()));
+        assertThrows(IOException.class,
+                () -> new LogEventDecoder(false).decode(heap("{\"timestamp\":[]}"), new LogEvent()));
+    }
+
+    private static Instant parse(String s) {
+        // somewhere in the middle of a bigger array, like the parser's buffer
+        char[] c = ("xx" + s + "yy").toCharArray();
+        return LogEventDecoder.parseIsoUtc(c, 2, s.length());
+    }
+
+    private static LogEvent decode(LogEventDecoder decoder, String json) throws IOException {
+        return decoder.decode(heap(json), new LogEvent());
+    }
+
+    /** A line of a decompressed record: a slice of a bigger heap array. */
+    private static ByteBuffer heap(String json) {
+        byte[] b = ("\n" + json + "\n").getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(b, 1, b.length - 2).slice();
+    }
+
+    /** A KCL record: read-only, no backing array. */
+    private static ByteBuffer readOnly(String json) {
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
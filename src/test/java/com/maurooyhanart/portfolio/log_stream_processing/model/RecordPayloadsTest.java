@@ -0,0 +1,153 @@
+package com.maurooyhanart.portfolio.log_stream_processing.model;
+
+import com.github.luben.zstd.Zstd;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batched records: gzip members and their framing, zstd, the line splitting, and the cap on a line's size. Every
+ * payload is handed over read-only, the way KCL does.
+ */
+class RecordPayloadsTest {
+    private static final int MAX_LINE_BYTES = 4 * 1024 * 1024;
+
+    @Test
+    void formatIsToldFromTheMagicNumber() throws IOException {
+        assertEquals(RecordPayloads.Format.GZIP, RecordPayloads.formatOf(readOnly(gzip("{}"))));
+        assertEquals(RecordPayloads.Format.ZSTD, RecordPayloads.formatOf(readOnly(Zstd.compress(utf8("{}")))));
+        assertEquals(RecordPayloads.Format.PLAIN, RecordPayloads.formatOf(readOnly(utf8("{}"))));
+        assertEquals(RecordPayloads.Format.PLAIN, RecordPayloads.formatOf(readOnly(new byte[]{0x1F})));
+    }
+
+    @Test
+    void linesAreSplitWithoutBlankOnesOrCarriageReturns() throws IOException {
+        String text = "a\n\nb\r\n \t\nc";
+        assertEquals(List.of("a", "b", "c"), lines(readOnly(gzip(text)), RecordPayloads.Format.GZIP));
+        assertEquals(List.of("a", "b", "c"), lines(readOnly(Zstd.compress(utf8(text))), RecordPayloads.Format.ZSTD));
+    }
+
+    @Test
+    void gzipMembersBackToBackAreOnePayload() throws IOException {
+        byte[] payload = concat(gzip("a\nb\n"), gzip("c\n"));
+        assertEquals(List.of("a", "b", "c"), lines(readOnly(payload), RecordPayloads.Format.GZIP));
+    }
+
+    @Test
+    void gzipHeaderFieldsAreSkipped() throws IOException {
+        byte[] plain = gzip("a\nb");
+        // FEXTRA (2 bytes of data), FNAME and FCOMMENT, right after the fixed 10-byte header
+        byte[] fields = {2, 0, 'x', 'y', 'n', 'a', 'm', 'e', 0, 'c', 0};
+        byte[] header = Arrays.copyOf(plain, 10);
+        header[3] = (byte) (4 | 8 | 16);
+        byte[] payload = concat(header, fields, Arrays.copyOfRange(plain, 10, plain.length));
+        assertEquals(List.of("a", "b"), lines(readOnly(payload), RecordPayloads.Format.GZIP));
+    }
+
+    @Test
+    void gzipCrcAndSizeAreChecked() throws IOException {
+        byte[] payload = gzip("a\nb\n");
+        byte[] badCrc = payload.clone();
+        badCrc[payload.length - 8] ^= 0x01;
+        assertThrows(ZipException.class, () -> lines(readOnly(badCrc), RecordPayloads.Format.GZIP));
+        byte[] badSize = payload.clone();
+        badSize[payload.length - 4] ^= 0x01;
+        assertThrows(ZipException.class, () -> lines(readOnly(badSize), RecordPayloads.Format.GZIP));
+    }
+
+    @Test
+    void truncatedPayloadsFailAfterTheLinesBeforeTheDamage() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) text.append("line ").append(i).append('\n');
+        byte[] payload = gzip(text.toString());
+        List<String> seen = new ArrayList<>();
+        RecordPayloads payloads = new RecordPayloads();
+        assertThrows(EOFException.class, () -> payloads.forEachLine(
+                readOnly(Arrays.copyOf(payload, payload.length / 2)), RecordPayloads.Format.GZIP, collect(seen)));
+        assertTrue(!seen.isEmpty() && seen.size() < 20_000, "only the lines before the cut: " + seen.size());
+        assertEquals("line 0", seen.get(0));
+
+        byte[] zstd = Zstd.compress(utf8(text.toString()));
+        assertThrows(IOException.class, () -> payloads.forEachLine(
+                readOnly(Arrays.copyOf(zstd, zstd.length / 2)), RecordPayloads.Format.ZSTD, (line, index) -> { }));
+    }
+
+    @Test
+    void theBufferIsReusedAcrossRecords() throws IOException {
+        RecordPayloads payloads = new RecordPayloads();
+        // longer than the initial buffer, so it has to grow, then shift the lines already handed over
+        String big = "x".repeat(200_000);
+        List<String> first = new ArrayList<>();
+        payloads.forEachLine(readOnly(gzip("a\n" + big + "\nb")), RecordPayloads.Format.GZIP, collect(first));
+        assertEquals(List.of("a", big, "b"), first);
+        List<String> second = new ArrayList<>();
+        payloads.forEachLine(readOnly(Zstd.compress(utf8("c\nd\n"))), RecordPayloads.Format.ZSTD, collect(second));
+        assertEquals(List.of("c", "d"), second);
+    }
+
+    @Test
+    void linesAreCappedAtFourMegabytes() throws IOException {
+        String under = "y".repeat(MAX_LINE_BYTES - 1);
+        assertEquals(List.of(under), lines(readOnly(gzip(under)), RecordPayloads.Format.GZIP));
+        String over = "y".repeat(MAX_LINE_BYTES + 1);
+        IOException e = assertThrows(IOException.class, () -> lines(readOnly(gzip(over + "\n")), RecordPayloads.Format.GZIP));
+        assertTrue(e.getMessage().startsWith("Line over"), e.getMessage());
+        assertThrows(IOException.class, () -> lines(readOnly(Zstd.compress(utf8(over))), RecordPayloads.Format.ZSTD));
+    }
+
+    @Test
+    void payloadPositionIsLeftUntouched() throws IOException {
+        ByteBuffer data = readOnly(gzip("a\nb"));
+        new RecordPayloads().forEachLine(data, RecordPayloads.Format.GZIP, (line, index) -> { });
+        assertEquals(0, data.position());
+    }
+
+    private static List<String> lines(ByteBuffer data, RecordPayloads.Format format) throws IOException {
+        List<String> out = new ArrayList<>();
+        new RecordPayloads().forEachLine(data, format, collect(out));
+        return out;
+    }
+
+    /** @return a handler that copies every line out, checking they come with their index */
+    private static RecordPayloads.LineHandler collect(List<String> out) {
+        return (line, index) -> {
+            assertEquals(out.size(), index);
+            out.add(StandardCharsets.UTF_8.decode(line).toString());
+        };
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(utf8(text));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.writeBytes(p);
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer readOnly(byte[] b) {
+        return ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,92 @@
+package com.maurooyhanart.portfolio.log_stream_processing.rules;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Rules files compiled against a fixed list of sinks, and the masks {@link RuleSet#route} gives back.
+ */
+class RuleSetTest {
+    private static final List<String> SINKS = List.of("dynamodb", "dynamodb:payments-audit", "eventbridge");
+    private static final long DYNAMODB = 1L;
+    private static final long AUDIT = 2L;
+    private static final long EVENTBRIDGE = 4L;
+    private static final long ALL = DYNAMODB | AUDIT | EVENTBRIDGE;
+
+    @Test
+    void firstMatchingRuleWins() {
+        RuleSet rules = RuleSet.parse("""
+                # service          level        action
+                checkout,cart      DEBUG        drop
+                payments           *            keep dynamodb,dynamodb:payments-audit,eventbridge
+                *                  debug        keep dynamodb   # levels ignore case
+                """, SINKS);
+        assertEquals(3, rules.size());
+        assertEquals(RuleSet.DROPPED, rules.route("cart", "DEBUG", "1"));
+        assertEquals(ALL, rules.route("payments", "DEBUG", "1"));
+        assertEquals(DYNAMODB, rules.route("search", "Debug", "1"));
+        // services are case sensitive
+        assertEquals(DYNAMODB, rules.route("Checkout", "DEBUG", "1"));
+        // no rule matches: every sink
+        assertEquals(ALL, rules.route("search", "INFO", "1"));
+    }
+
+    @Test
+    void eventWithoutServiceOrLevelOnlyMatchesAny() {
+        RuleSet rules = RuleSet.parse("""
+                api    *      keep eventbridge
+                *      ERROR  keep dynamodb
+                """, SINKS);
+        assertEquals(ALL, rules.route(null, "INFO", "1"));
+        assertEquals(DYNAMODB, rules.route(null, "ERROR", "1"));
+        assertEquals(EVENTBRIDGE, rules.route("api", null, "1"));
+        assertEquals(ALL, rules.route("search", null, "1"));
+    }
+
+    @Test
+    void samplingIsDecidedByTheKey() {
+        RuleSet rules = RuleSet.parse("* INFO sample 0.25 dynamodb", SINKS);
+        int kept = 0;
+        for (int i = 0; i < 100_000; i++) {
+            String key = "4960" + i + ":0";
+            long mask = rules.route("api", "INFO", key);
+            // the same key always goes the same way: a replay doesn't change what was sampled
+            assertEquals(mask, rules.route("api", "INFO", key));
+            if (mask == DYNAMODB) kept++;
+            else assertEquals(RuleSet.DROPPED, mask);
+        }
+        assertTrue(kept > 24_000 && kept < 26_000, "kept " + kept);
+
+        assertEquals(RuleSet.DROPPED, RuleSet.parse("* * sample 0", SINKS).route("api", "INFO", "1"));
+        assertEquals(ALL, RuleSet.parse("* * sample 1", SINKS).route("api", "INFO", "1"));
+    }
+
+    @Test
+    void blankLinesAndCommentsAreSkipped() {
+        RuleSet rules = RuleSet.parse("\n# nothing here\n   \r\n* TRACE drop # noisy\n", SINKS);
+        assertEquals(1, rules.size());
+        assertEquals(RuleSet.DROPPED, rules.route("api", "TRACE", "1"));
+    }
+
+    @Test
+    void badLinesAreReportedWithTheirNumber() {
+        assertError("Rules line 2: expected <service> <level> <action>", "* DEBUG drop\napi INFO");
+        assertError("Rules line 1: unknown action: forward", "* * forward dynamodb");
+        assertError("Rules line 1: sample needs a rate", "* * sample");
+        assertError("Rules line 1: rate not in [0, 1]: 1.5", "* * sample 1.5");
+        assertError("Rules line 1: not in SINKS: s3", "* * keep s3");
+        assertError("Rules line 1: unexpected: dynamodb", "* * drop dynamodb");
+        assertError("Rules line 1: empty list: ,", ", * drop");
+        assertThrows(IllegalArgumentException.class, () -> RuleSet.parse("* * sample abc", SINKS));
+    }
+
+    private static void assertError(String message, String text) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> RuleSet.parse(text, SINKS));
+        assertEquals(message, e.getMessage());
+    }
+}
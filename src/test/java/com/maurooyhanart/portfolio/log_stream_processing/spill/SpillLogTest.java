@@ -0,0 +1,148 @@
+package com.maurooyhanart.portfolio.log_stream_processing.spill;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery of the spill log: every test writes a log, leaves it the way a crash would (the mapped segments are
+ * simply dropped, or edited through the file), and opens it again.
+ */
+class SpillLogTest {
+    private static final String SHARD = "shardId-000000000000";
+    private static final int SEGMENT_BYTES = 4096;
+    private static final long NO_BACKLOG_LIMIT = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tornLastFrameIsCutOff() throws IOException {
+        SpillLog log = open(SEGMENT_BYTES);
+        append(log, 0, 3);
+        int end = (int) log.backlogBytes();
+        // a record whose length made it to disk, but not its payload and CRC
+        write(segment(0), end, ByteBuffer.allocate(12).putInt(0, 200).putInt(8, 0xdeadbeef));
+
+        SpillLog reopened = open(SEGMENT_BYTES);
+        assertEquals(end, reopened.backlogBytes());
+        assertEquals(List.of(0, 1, 2), drain(reopened));
+
+        // the next append goes where the torn record was, and is read back
+        append(reopened, 3, 1);
+        assertEquals(List.of(3), drain(reopened));
+    }
+
+    @Test
+    void crcMismatchEndsTheLogAtTheCorruptRecord() throws IOException {
+        SpillLog log = open(SEGMENT_BYTES);
+        append(log, 0, 1);
+        int second = (int) log.backlogBytes();
+        append(log, 1, 3);
+        // flip a payload byte of the second record: it and everything after it are dropped
+        int payloadByte = second + 8 + 5;
+        ByteBuffer b = read(segment(0), payloadByte, 1);
+        write(segment(0), payloadByte, ByteBuffer.wrap(new byte[]{(byte) (b.get(0) ^ 0x5a)}));
+
+        SpillLog reopened = open(SEGMENT_BYTES);
+        assertEquals(second, reopened.backlogBytes());
+        assertEquals(List.of(0), drain(reopened));
+
+        append(reopened, 4, 1);
+        assertEquals(List.of(4), drain(reopened));
+    }
+
+    @Test
+    void replayResumesFromTheCommittedPosition() throws IOException {
+        SpillLog log = open(SEGMENT_BYTES);
+        append(log, 0, 5);
+        SpillLog.Entry third = null;
+        for (int i = 0; i < 3; i++) third = log.next();
+        log.commit(third.endPosition());
+        log.persistCommitted();
+
+        SpillLog reopened = open(SEGMENT_BYTES);
+        assertEquals(List.of(3, 4), drain(reopened));
+    }
+
+    @Test
+    void committedPositionIsPersistedBeforeSegmentsAreDeleted() throws IOException {
+        int small = 512;
+        SpillLog log = open(small);
+        append(log, 0, 40);
+        assertTrue(Files.exists(segment(2)), "the batches should span several segments");
+
+        // the first commit is persisted, which starts the persist throttle
+        log.commit(log.next().endPosition());
+        // right after it, a commit past the first two segments
+        long committed = -1L;
+        SpillLog.Entry e;
+        while ((e = log.next()) != null && e.endPosition() < 2L * small) committed = e.endPosition();
+        log.commit(committed);
+
+        assertFalse(Files.exists(segment(0)));
+        assertEquals(committed, Long.parseLong(Files.readString(dir.resolve("committed.pos"), StandardCharsets.US_ASCII)));
+    }
+
+    private SpillLog open(int segmentBytes) throws IOException {
+        return SpillLog.open(SHARD, dir, segmentBytes, false, NO_BACKLOG_LIMIT);
+    }
+
+    /** Appends {@code count} batches of one item each, numbered from {@code first}. */
+    private static void append(SpillLog log, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            WriteRequest w = WriteRequest.builder().putRequest(PutRequest.builder().item(Map.of(
+                    "pk", AttributeValue.builder().s("svc#2024080712#b0").build(),
+                    "n", AttributeValue.builder().n(Integer.toString(i)).build())).build()).build();
+            log.append(List.of(w), List.of(Integer.toString(i))).join();
+        }
+    }
+
+    /** @return the numbers of the batches left to replay, in order, committing each of them; checks their keys came back */
+    private static List<Integer> drain(SpillLog log) {
+        List<Integer> out = new ArrayList<>();
+        SpillLog.Entry e;
+        while ((e = log.next()) != null) {
+            String n = e.items().get(0).putRequest().item().get("n").n();
+            assertEquals(List.of(n), e.keys());
+            out.add(Integer.parseInt(n));
+            log.commit(e.endPosition());
+        }
+        return out;
+    }
+
+    private Path segment(long idx) {
+        return dir.resolve(String.format("%020d.seg", idx));
+    }
+
+    private static void write(Path file, long position, ByteBuffer bytes) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) position += ch.write(bytes, position);
+        }
+    }
+
+    private static ByteBuffer read(Path file, long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (b.hasRemaining()) position += ch.read(b, position);
+        }
+        return b;
+    }
+}